@@ -26,6 +26,7 @@ import java.util.Map;
 import org.ops4j.pax.useradmin.command.CommandException;
 import org.ops4j.pax.useradmin.command.spi.UserAdminDataReader;
 import org.ops4j.pax.useradmin.command.spi.UserAdminDataWriter;
+import org.ops4j.pax.useradmin.service.PaxRoleQueryService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.useradmin.Group;
@@ -38,6 +39,12 @@ import org.osgi.service.useradmin.UserAdmin;
  */
 public class ServiceDataReader implements UserAdminDataReader {
 
+    /**
+     * Name of the Pax UserAdmin service which lists members by name - the
+     * package is imported optionally, so the service is looked up by name.
+     */
+    private static final String PAX_ROLE_QUERY_SERVICE = "org.ops4j.pax.useradmin.service.PaxRoleQueryService";
+
     private BundleContext m_context = null;
     
     public ServiceDataReader(BundleContext context) {
@@ -69,6 +76,8 @@ public class ServiceDataReader implements UserAdminDataReader {
         if (null == service) {
             throw new CommandException("Could not find UserAdmin service in bundle: " + sourceId);
         }
+        // read member names without creating the member roles, if possible
+        Object queryService = ServiceUtils.getService(m_context, PAX_ROLE_QUERY_SERVICE, sourceId);
         try {
             Role[] roles = service.getRoles(null);
             if (null != roles) {
@@ -82,19 +91,14 @@ public class ServiceDataReader implements UserAdminDataReader {
                         Group group = (Group) role;
                         Role groupRole = createRole(group, targetWriter);
                         //
-                        Collection<String> basicMembers = new ArrayList<String>();
-                        Role[] members = group.getMembers();
-                        if (null != members) {
-                            for (Role member : members) {
-                                basicMembers.add(member.getName());
-                            }
-                        }
-                        Collection<String> requiredMembers = new ArrayList<String>();
-                        members = group.getRequiredMembers();
-                        if (null != members) {
-                            for (Role member : members) {
-                                requiredMembers.add(member.getName());
-                            }
+                        Collection<String> basicMembers;
+                        Collection<String> requiredMembers;
+                        if (null != queryService) {
+                            basicMembers = MemberNames.get(queryService, group, false);
+                            requiredMembers = MemberNames.get(queryService, group, true);
+                        } else {
+                            basicMembers = getNames(group.getMembers());
+                            requiredMembers = getNames(group.getRequiredMembers());
                         }
                         targetWriter.addMembers(groupRole, basicMembers, requiredMembers);
                     }
@@ -104,4 +108,29 @@ public class ServiceDataReader implements UserAdminDataReader {
             throw new CommandException("Unexpected InvalidSyntaxException: " + e.getMessage(), e);
         }
     }
+
+    /**
+     * Returns the names of the given roles.
+     */
+    private Collection<String> getNames(Role[] roles) {
+        Collection<String> names = new ArrayList<String>();
+        if (null != roles) {
+            for (Role role : roles) {
+                names.add(role.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads member names from a PaxRoleQueryService - only loaded if such a
+     * service was found.
+     */
+    private static final class MemberNames {
+
+        private static Collection<String> get(Object service, Group group, boolean required) {
+            PaxRoleQueryService queryService = (PaxRoleQueryService) service;
+            return required ? queryService.getRequiredMemberNames(group) : queryService.getMemberNames(group);
+        }
+    }
 }
@@ -38,12 +38,28 @@ class ServiceUtils {
      *         bundle does not exist or does not provide such a service.
      */
     static UserAdmin getUserAdminService(BundleContext context, String bundleName) {
-        UserAdmin service = null;
+        return (UserAdmin) getService(context, UserAdmin.class.getName(), bundleName);
+    }
+
+    /**
+     * Retrieves a service that is provided by the bundle with the given name.
+     * 
+     * @param context The BundleContext of the calling bundle.
+     * @param className The name of the service interface.
+     * @param bundleName The symbolic name of the bundle that provides the
+     *                   service.
+     * @return A service provided by the given bundle or null if the bundle
+     *         does not exist or does not provide such a service.
+     */
+    static Object getService(BundleContext context, String className, String bundleName) {
+        Object service = null;
         try {
-            for (ServiceReference ref : context.getServiceReferences(UserAdmin.class.getName(),
-                                                                     null)) {
-                if (bundleName.equals(ref.getBundle().getSymbolicName())) {
-                    service = (UserAdmin) context.getService(ref);
+            ServiceReference[] refs = context.getServiceReferences(className, null);
+            if (null != refs) {
+                for (ServiceReference ref : refs) {
+                    if (bundleName.equals(ref.getBundle().getSymbolicName())) {
+                        service = context.getService(ref);
+                    }
                 }
             }
         } catch (InvalidSyntaxException e) {
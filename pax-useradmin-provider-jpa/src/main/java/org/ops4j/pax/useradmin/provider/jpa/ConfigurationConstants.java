@@ -27,4 +27,12 @@ public interface ConfigurationConstants {
 
     String PUNIT_NAME           = "org.ops4j.pax.useradmin.jpa.punit";
 
+    /**
+     * (optional) property that controls the maximum number of roles kept in
+     * memory, other roles are read from the database when used and only the
+     * role names are kept. If not given (or 0), all roles are read at startup
+     * and kept. The property index is not used if the number is limited.
+     */
+    String PROPERTY_CACHE_SIZE  = "org.ops4j.pax.useradmin.jpa.cache.size";
+
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.persistence.criteria.AbstractQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.MapJoin;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
+import org.ops4j.pax.useradmin.service.spi.FilterTranslator;
+import org.ops4j.pax.useradmin.service.spi.QueryPlan;
+
+/**
+ * Translates role filters into Criteria API predicates over the properties of
+ * the roles, so the database can select the roles to be matched.
+ * <p>
+ * The collation of the database may differ from the filter semantics (case,
+ * accents, padding, ordering), so each term is translated into a predicate
+ * selecting a superset of the matching roles, the selected roles are still
+ * matched against the filter in memory. Ordering and approximate comparisons
+ * are reduced to the presence of the key, values not stored as strings (see
+ * {@link DBProperty}) are always selected. Negations select all roles, as the
+ * database might consider a key present the filter does not.
+ */
+final class CriteriaFilterTranslator implements FilterTranslator<Predicate> {
+
+    private final CriteriaBuilder  builder;
+
+    private final AbstractQuery<?> query;
+
+    private final Root<DBRole>     root;
+
+    private CriteriaFilterTranslator(CriteriaBuilder builder, AbstractQuery<?> query, Root<DBRole> root) {
+        this.builder = builder;
+        this.query = query;
+        this.root = root;
+    }
+
+    /**
+     * @param plan
+     *            The plan of the filter.
+     * @param builder
+     *            The builder of the query.
+     * @param query
+     *            The query selecting roles.
+     * @param root
+     *            The roles selected by the query.
+     * @return A predicate selecting a superset of the roles matching the
+     *         filter or null if the filter can't restrict the roles.
+     */
+    static Predicate restrict(QueryPlan plan, CriteriaBuilder builder, AbstractQuery<?> query, Root<DBRole> root) {
+        return plan.translate(new CriteriaFilterTranslator(builder, query, root));
+    }
+
+    @Override
+    public Predicate and(List<Predicate> children) {
+        List<Predicate> restricting = new ArrayList<Predicate>(children.size());
+        for (Predicate child : children) {
+            if (child != null) {
+                restricting.add(child);
+            }
+        }
+        return restricting.isEmpty() ? null : builder.and(toArray(restricting));
+    }
+
+    @Override
+    public Predicate or(List<Predicate> children) {
+        if (children.contains(null)) {
+            return null;
+        }
+        return builder.or(toArray(children));
+    }
+
+    @Override
+    public Predicate not(Predicate child) {
+        return null;
+    }
+
+    @Override
+    public Predicate equal(String key, String value) {
+        if (!isPlainKey(key)) {
+            return null;
+        }
+        Property property = new Property(key);
+        return property.exists(builder.or(property.stringData.isNull(), builder.equal(property.stringData, value)));
+    }
+
+    @Override
+    public Predicate present(String key) {
+        return keyOnly(key);
+    }
+
+    @Override
+    public Predicate substring(String key, List<String> parts) {
+        if (!isPlainKey(key)) {
+            return null;
+        }
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                pattern.append('%');
+            }
+            String part = parts.get(i);
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                if (c == '%' || c == '_' || c == '\\') {
+                    pattern.append('\\');
+                }
+                pattern.append(c);
+            }
+        }
+        Property property = new Property(key);
+        return property.exists(builder.or(property.stringData.isNull(), builder.like(property.stringData, pattern.toString(), '\\')));
+    }
+
+    @Override
+    public Predicate greaterOrEqual(String key, String value) {
+        return keyOnly(key);
+    }
+
+    @Override
+    public Predicate lessOrEqual(String key, String value) {
+        return keyOnly(key);
+    }
+
+    @Override
+    public Predicate approx(String key, String value) {
+        return keyOnly(key);
+    }
+
+    private Predicate keyOnly(String key) {
+        if (!isPlainKey(key)) {
+            return null;
+        }
+        return new Property(key).exists(null);
+    }
+
+    /**
+     * Keys are compared case insensitively, the database is only known to do
+     * the same for printable ASCII characters.
+     */
+    private static boolean isPlainKey(String key) {
+        if (key.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Predicate[] toArray(List<Predicate> predicates) {
+        return predicates.toArray(new Predicate[predicates.size()]);
+    }
+
+    /**
+     * A property of the selected role, correlated by a subquery.
+     */
+    private final class Property {
+
+        private final Subquery<Long> subquery;
+
+        private final Predicate      keyMatches;
+
+        private final Path<String>   stringData;
+
+        private Property(String key) {
+            subquery = query.subquery(Long.class);
+            Root<DBRole> role = subquery.correlate(root);
+            MapJoin<DBRole, String, DBProperty> property = role.joinMap("properties");
+            subquery.select(role.<Long> get("id"));
+            keyMatches = builder.equal(builder.lower(property.<String> get("key")), key.toLowerCase(Locale.ENGLISH));
+            stringData = property.get("stringData");
+        }
+
+        /**
+         * @param condition
+         *            The condition on the value or null.
+         * @return A predicate selecting the roles having the property with a
+         *         value meeting the condition.
+         */
+        private Predicate exists(Predicate condition) {
+            if (condition != null) {
+                subquery.where(keyMatches, condition);
+            } else {
+                subquery.where(keyMatches);
+            }
+            return builder.exists(subquery);
+        }
+    }
+}
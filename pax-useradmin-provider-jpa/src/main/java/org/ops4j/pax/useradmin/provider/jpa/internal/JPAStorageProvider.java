@@ -25,31 +25,45 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeSet;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
 import org.ops4j.pax.useradmin.provider.jpa.ConfigurationConstants;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBCredential;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBGroup;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBUser;
-import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBVersionedObject;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PropertyIndex;
+import org.ops4j.pax.useradmin.service.spi.QueryPlan;
+import org.ops4j.pax.useradmin.service.spi.QueryPlanner;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleReference;
 import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.useradmin.Group;
@@ -65,17 +79,41 @@ import org.slf4j.LoggerFactory;
  * is very conversative and pesemistic so it might not be very performant in
  * long network delay and heavy use scenarios. A caching JPA Provider like
  * EclipseLink would help here in increasing performance.
+ * <p>
+ * Reads are answered from immutable {@link RoleSnapshot}s of the committed
+ * roles and take no lock. Writers are serialized by the lock of this provider
+ * and use an <code>EntityManager</code> of their own per transaction.
+ * <p>
+ * By default all roles are read at startup and kept. For directories too
+ * large for that, {@link ConfigurationConstants#PROPERTY_CACHE_SIZE} limits
+ * the number of roles kept, roles are then read by name when used.
  */
 public class JPAStorageProvider
-        implements StorageProvider, CredentialProvider {
+        implements AtomicStorageProvider, PagedStorageProvider, MembershipStorageProvider, CredentialProvider {
 
-    private static final Logger                  LOG = LoggerFactory.getLogger(JPAStorageProvider.class);
+    private static final Logger                  LOG        = LoggerFactory.getLogger(JPAStorageProvider.class);
+
+    /**
+     * The number of roles read or migrated by one query when roles are
+     * enumerated.
+     */
+    private static final int                     CHUNK_SIZE = 500;
 
     private final EntityManagerFactory           entityManagerFactory;
     private ServiceRegistration<StorageProvider> serviceRegistration;
     private final Long                           trackedServiceID;
-    private Map<String, DBRole>                  roleNames;
-    private EntityManager                        entityManager;
+    private volatile RoleCache                   roles;
+    private volatile int                         cacheSize;
+    /**
+     * The property keys indexed by complete caches.
+     */
+    private volatile Collection<String>          indexKeys = Collections.<String> emptySet();
+    private final QueryPlanner                   queryPlanner;
+    /**
+     * Set once the string values of older properties are filled, guarded by
+     * this provider.
+     */
+    private boolean                              stringDataFilled;
 
     /**
      * @param entityManagerFactory
@@ -87,6 +125,13 @@ public class JPAStorageProvider
     JPAStorageProvider(EntityManagerFactory entityManagerFactory, Long trackedServiceID) {
         this.entityManagerFactory = entityManagerFactory;
         this.trackedServiceID = trackedServiceID;
+        this.queryPlanner = new QueryPlanner() {
+
+            @Override
+            protected Filter createFilter(String filterString) throws InvalidSyntaxException {
+                return JPAStorageProvider.this.createFilter(filterString);
+            }
+        };
     }
 
     /**
@@ -106,8 +151,8 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized User createUser(final UserAdminFactory factory, final String name) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        if (map.containsKey(name)) {
+        final RoleCache cache = getRoles();
+        if (cache.exists(name)) {
             return null;
         }
         return accessTransaction(new TransactionAccess<User>() {
@@ -118,7 +163,7 @@ public class JPAStorageProvider
                 user.setName(name);
                 manager.persist(user);
                 transaction.commit();
-                map.put(name, user);
+                cache.put(RoleSnapshot.of(user));
                 return factory.createUser(name, null, null);
             }
 
@@ -146,8 +191,8 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized Group createGroup(final UserAdminFactory factory, final String name) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        if (map.containsKey(name)) {
+        final RoleCache cache = getRoles();
+        if (cache.exists(name)) {
             return null;
         }
         return accessTransaction(new TransactionAccess<Group>() {
@@ -158,7 +203,7 @@ public class JPAStorageProvider
                 group.setName(name);
                 manager.persist(group);
                 transaction.commit();
-                map.put(name, group);
+                cache.put(RoleSnapshot.of(group));
                 return factory.createGroup(name, null, null);
             }
 
@@ -171,7 +216,7 @@ public class JPAStorageProvider
 
     /**
      * Deletes the role with the given name. The role is also removed from all
-     * groups it is a member of.
+     * groups it is a member of, only these groups are read from the database.
      * 
      * @see UserAdmin#removeRole(String)
      * @param role
@@ -181,29 +226,29 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized boolean deleteRole(final Role role) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole removedRole = map.remove(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot removedRole = findRole(cache, role.getName());
         if (removedRole != null) {
             return accessTransaction(new TransactionAccess<Boolean>() {
 
                 @Override
                 public Boolean doWork(EntityManager manager, EntityTransaction transaction) {
-                    DBRole find = refreshItem(manager, removedRole);
+                    DBRole find = refreshItem(manager, removedRole.getEntityClass(), removedRole);
                     // remove from groups
-                    for (DBRole otherRole : map.values()) {
-                        if (otherRole instanceof DBGroup) {
-                            DBGroup dbGroup = refreshItem(manager, (DBGroup) otherRole);
-                            boolean basicRemoved = dbGroup.getBasicMember().remove(find);
-                            boolean requredRemoved = dbGroup.getRequiredMember().remove(find);
-                            if (basicRemoved || requredRemoved) {
-                                //Update the item in the cache...
-                                map.put(dbGroup.getName(), dbGroup);
-                            }
-                        }
+                    List<DBGroup> changedGroups = listGroupsOf(manager, find);
+                    for (DBGroup dbGroup : changedGroups) {
+                        dbGroup.getBasicMember().remove(find);
+                        dbGroup.getRequiredMember().remove(find);
                     }
                     //remove role itself
                     manager.remove(find);
                     transaction.commit();
+                    //Update the cache...
+                    cache.remove(role.getName());
+                    for (DBGroup dbGroup : changedGroups) {
+                        cache.put(RoleSnapshot.of(dbGroup));
+                    }
+                    cache.getPropertyIndex().removeRole(role.getName());
                     return true;
                 }
 
@@ -217,6 +262,59 @@ public class JPAStorageProvider
         }
     }
 
+    /**
+     * Create a new role with the given name unless the name is already in use.
+     * The check and the creation happen while holding the lock of this
+     * provider.
+     * 
+     * @see UserAdmin#createRole(String, int)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the
+     *            implementation object.
+     * @param name
+     *            The role name.
+     * @param type
+     *            The role type.
+     * @return The new role or null if a role with the given name already
+     *         exists.
+     * @throws StorageException
+     *             if the role could not be created
+     */
+    @Override
+    public synchronized Role createIfAbsent(UserAdminFactory factory, String name, int type) throws StorageException {
+        switch (type) {
+            case Role.USER:
+                return createUser(factory, name);
+            case Role.GROUP:
+                return createGroup(factory, name);
+            default:
+                throw new StorageException("Invalid role type for role '" + name + "': " + type + " only USER and GROUP are allowed!");
+        }
+    }
+
+    /**
+     * Deletes the role with the given name if it exists. The role is also
+     * removed from all groups it is a member of.
+     * 
+     * @see UserAdmin#removeRole(String)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the
+     *            implementation object of the deleted role.
+     * @param name
+     *            The name of the role to delete.
+     * @return The deleted role or null if no role with the given name exists.
+     * @throws StorageException
+     *             if the role could not be deleted.
+     */
+    @Override
+    public synchronized Role deleteByName(UserAdminFactory factory, String name) throws StorageException {
+        Role role = loadRole(factory, name, null);
+        if (role != null && deleteRole(role)) {
+            return role;
+        }
+        return null;
+    }
+
     /**
      * Retrieve basic members of the given group. Eventually creates new Role
      * objects via the given factory.
@@ -251,6 +349,46 @@ public class JPAStorageProvider
         return loadMembers(factory, group, MemberType.REQUIRED);
     }
 
+    /**
+     * Retrieve the names of the basic members of the given group, without
+     * creating the member roles.
+     * 
+     * @see Group#getMembers()
+     * @param group
+     *            The <code>Group</code> whose members are retrieved.
+     * @return The names of the basic members of the given group.
+     */
+    @Override
+    public Collection<String> getMemberNames(Group group) throws StorageException {
+        return memberNames(getMemberSet(group, MemberType.BASIC));
+    }
+
+    /**
+     * Retrieve the names of the required members of the given group, without
+     * creating the member roles.
+     * 
+     * @see Group#getRequiredMembers()
+     * @param group
+     *            The <code>Group</code> whose members are retrieved.
+     * @return The names of the required members of the given group.
+     */
+    @Override
+    public Collection<String> getRequiredMemberNames(Group group) throws StorageException {
+        return memberNames(getMemberSet(group, MemberType.REQUIRED));
+    }
+
+    /**
+     * Counts the basic and required members of the given group.
+     * 
+     * @param group
+     *            The <code>Group</code> whose members are counted.
+     * @return The number of basic plus the number of required members.
+     */
+    @Override
+    public int getMemberCount(Group group) throws StorageException {
+        return getMemberSet(group, MemberType.BASIC).size() + getMemberSet(group, MemberType.REQUIRED).size();
+    }
+
     /**
      * Adds a role as a basic member to a group.
      * 
@@ -264,13 +402,12 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized boolean addMember(final Group group, final Role role) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        DBRole dbGroupRole = map.get(group.getName());
-        if (dbGroupRole instanceof DBGroup) {
-            final DBGroup dbGroup = (DBGroup) dbGroupRole;
-            final DBRole dbRole = map.get(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbGroup = findRole(cache, group.getName());
+        if (dbGroup != null && dbGroup.isGroup()) {
+            final RoleSnapshot dbRole = findRole(cache, role.getName());
             if (dbRole != null) {
-                if (dbGroup.getBasicMember().contains(dbRole)) {
+                if (dbGroup.getMembers(MemberType.BASIC).contains(dbRole.getName())) {
                     //Already present..
                     return false;
                 }
@@ -278,13 +415,12 @@ public class JPAStorageProvider
 
                     @Override
                     public Boolean doWork(EntityManager manager, EntityTransaction transaction) {
-                        DBGroup findGroup = refreshItem(manager, dbGroup);
-                        DBRole findRole = refreshItem(manager, dbRole);
+                        DBGroup findGroup = refreshItem(manager, DBGroup.class, dbGroup);
+                        DBRole findRole = refreshItem(manager, dbRole.getEntityClass(), dbRole);
                         findGroup.getBasicMember().add(findRole);
                         transaction.commit();
                         //Update cache...
-                        map.put(findGroup.getName(), findGroup);
-                        map.put(findRole.getName(), findRole);
+                        cache.put(RoleSnapshot.of(findGroup));
                         return true;
                     }
 
@@ -314,13 +450,12 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized boolean addRequiredMember(final Group group, final Role role) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        DBRole dbGroupRole = map.get(group.getName());
-        if (dbGroupRole instanceof DBGroup) {
-            final DBGroup dbGroup = (DBGroup) dbGroupRole;
-            final DBRole dbRole = map.get(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbGroup = findRole(cache, group.getName());
+        if (dbGroup != null && dbGroup.isGroup()) {
+            final RoleSnapshot dbRole = findRole(cache, role.getName());
             if (dbRole != null) {
-                if (dbGroup.getRequiredMember().contains(dbRole)) {
+                if (dbGroup.getMembers(MemberType.REQUIRED).contains(dbRole.getName())) {
                     //Already present..
                     return false;
                 }
@@ -328,13 +463,12 @@ public class JPAStorageProvider
 
                     @Override
                     public Boolean doWork(EntityManager manager, EntityTransaction transaction) {
-                        DBGroup findGroup = refreshItem(manager, dbGroup);
-                        DBRole findRole = refreshItem(manager, dbRole);
+                        DBGroup findGroup = refreshItem(manager, DBGroup.class, dbGroup);
+                        DBRole findRole = refreshItem(manager, dbRole.getEntityClass(), dbRole);
                         findGroup.getRequiredMember().add(findRole);
                         transaction.commit();
                         //Update cache...
-                        map.put(findGroup.getName(), findGroup);
-                        map.put(findRole.getName(), findRole);
+                        cache.put(RoleSnapshot.of(findGroup));
                         return true;
                     }
 
@@ -362,13 +496,12 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized boolean removeMember(final Group group, final Role role) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        DBRole dbGroupRole = map.get(group.getName());
-        if (dbGroupRole instanceof DBGroup) {
-            final DBGroup dbGroup = (DBGroup) dbGroupRole;
-            final DBRole dbRole = map.get(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbGroup = findRole(cache, group.getName());
+        if (dbGroup != null && dbGroup.isGroup()) {
+            final RoleSnapshot dbRole = findRole(cache, role.getName());
             if (dbRole != null) {
-                if (!dbGroup.getBasicMember().contains(dbRole) && !dbGroup.getRequiredMember().contains(dbRole)) {
+                if (!dbGroup.getMembers(MemberType.BASIC).contains(dbRole.getName()) && !dbGroup.getMembers(MemberType.REQUIRED).contains(dbRole.getName())) {
                     //not present..
                     return false;
                 }
@@ -376,14 +509,13 @@ public class JPAStorageProvider
 
                     @Override
                     public Boolean doWork(EntityManager manager, EntityTransaction transaction) {
-                        DBGroup findGroup = refreshItem(manager, dbGroup);
-                        DBRole findRole = refreshItem(manager, dbRole);
-                        findGroup.getBasicMember().remove(dbRole);
-                        findGroup.getRequiredMember().remove(dbRole);
+                        DBGroup findGroup = refreshItem(manager, DBGroup.class, dbGroup);
+                        DBRole findRole = refreshItem(manager, dbRole.getEntityClass(), dbRole);
+                        findGroup.getBasicMember().remove(findRole);
+                        findGroup.getRequiredMember().remove(findRole);
                         transaction.commit();
                         //Update cache...
-                        map.put(findGroup.getName(), findGroup);
-                        map.put(findRole.getName(), findRole);
+                        cache.put(RoleSnapshot.of(findGroup));
                         return true;
                     }
 
@@ -417,8 +549,8 @@ public class JPAStorageProvider
             return;
         }
         if (value instanceof String || value instanceof byte[]) {
-            final Map<String, DBRole> map = getRoleNamesMap();
-            final DBRole dbRole = map.get(role.getName());
+            final RoleCache cache = getRoles();
+            final RoleSnapshot dbRole = findRole(cache, role.getName());
             accessTransaction(new TransactionAccess<Void>() {
 
                 @Override
@@ -430,10 +562,11 @@ public class JPAStorageProvider
                     } else /*if (value instanceof byte[])*/ {
                         dbvalue.setData((byte[]) value);
                     }
-                    DBRole refreshItem = refreshItem(manager, dbRole);
+                    DBRole refreshItem = refreshItem(manager, dbRole.getEntityClass(), dbRole);
                     refreshItem.getProperties().put(key, dbvalue);
                     transaction.commit();
-                    map.put(refreshItem.getName(), refreshItem);
+                    cache.put(RoleSnapshot.of(refreshItem));
+                    cache.getPropertyIndex().put(refreshItem.getName(), key, value);
                     return null;
                 }
 
@@ -457,16 +590,17 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized void removeRoleAttribute(final Role role, final String key) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole dbRole = map.get(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbRole = findRole(cache, role.getName());
         accessTransaction(new TransactionAccess<Void>() {
 
             @Override
             public Void doWork(EntityManager manager, EntityTransaction transaction) {
-                DBRole refreshItem = refreshItem(manager, dbRole);
+                DBRole refreshItem = refreshItem(manager, dbRole.getEntityClass(), dbRole);
                 refreshItem.getProperties().remove(key);
                 transaction.commit();
-                map.put(refreshItem.getName(), refreshItem);
+                cache.put(RoleSnapshot.of(refreshItem));
+                cache.getPropertyIndex().remove(refreshItem.getName(), key);
                 return null;
             }
 
@@ -486,16 +620,17 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized void clearRoleAttributes(final Role role) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole dbRole = map.get(role.getName());
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbRole = findRole(cache, role.getName());
         accessTransaction(new TransactionAccess<Void>() {
 
             @Override
             public Void doWork(EntityManager manager, EntityTransaction transaction) {
-                DBRole refreshItem = refreshItem(manager, dbRole);
+                DBRole refreshItem = refreshItem(manager, dbRole.getEntityClass(), dbRole);
                 refreshItem.getProperties().clear();
                 transaction.commit();
-                map.put(refreshItem.getName(), refreshItem);
+                cache.put(RoleSnapshot.of(refreshItem));
+                cache.getPropertyIndex().removeRole(refreshItem.getName());
                 return null;
             }
 
@@ -523,10 +658,9 @@ public class JPAStorageProvider
             removeUserCredential(user, key);
             return;
         }
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole dbRole = map.get(user.getName());
-        if (dbRole instanceof DBUser) {
-            final DBUser dbUser = (DBUser) dbRole;
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbUser = findRole(cache, user.getName());
+        if (dbUser != null && dbUser.getCredentials() != null) {
             final DBCredential dbvalue = new DBCredential();
             EncryptedValue encrypt;
             if (value instanceof String) {
@@ -545,10 +679,10 @@ public class JPAStorageProvider
 
                 @Override
                 public Void doWork(EntityManager manager, EntityTransaction transaction) {
-                    DBUser refreshItem = refreshItem(manager, dbUser);
+                    DBUser refreshItem = refreshItem(manager, DBUser.class, dbUser);
                     refreshItem.getCredentials().put(key, dbvalue);
                     transaction.commit();
-                    map.put(refreshItem.getName(), refreshItem);
+                    cache.put(RoleSnapshot.of(refreshItem));
                     return null;
                 }
 
@@ -564,18 +698,17 @@ public class JPAStorageProvider
 
     @Override
     public synchronized void removeUserCredential(final User user, final String key) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole dbRole = map.get(user.getName());
-        if (dbRole instanceof DBUser) {
-            final DBUser dbUser = (DBUser) dbRole;
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbUser = findRole(cache, user.getName());
+        if (dbUser != null && dbUser.getCredentials() != null) {
             accessTransaction(new TransactionAccess<Void>() {
 
                 @Override
                 public Void doWork(EntityManager manager, EntityTransaction transaction) {
-                    DBUser refreshItem = refreshItem(manager, dbUser);
+                    DBUser refreshItem = refreshItem(manager, DBUser.class, dbUser);
                     refreshItem.getCredentials().remove(key);
                     transaction.commit();
-                    map.put(refreshItem.getName(), refreshItem);
+                    cache.put(RoleSnapshot.of(refreshItem));
                     return null;
                 }
 
@@ -597,18 +730,17 @@ public class JPAStorageProvider
      */
     @Override
     public synchronized void clearUserCredentials(final User user) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        final DBRole dbRole = map.get(user.getName());
-        if (dbRole instanceof DBUser) {
-            final DBUser dbUser = (DBUser) dbRole;
+        final RoleCache cache = getRoles();
+        final RoleSnapshot dbUser = findRole(cache, user.getName());
+        if (dbUser != null && dbUser.getCredentials() != null) {
             accessTransaction(new TransactionAccess<Void>() {
 
                 @Override
                 public Void doWork(EntityManager manager, EntityTransaction transaction) {
-                    DBUser refreshItem = refreshItem(manager, dbUser);
+                    DBUser refreshItem = refreshItem(manager, DBUser.class, dbUser);
                     refreshItem.getCredentials().clear();
                     transaction.commit();
-                    map.put(refreshItem.getName(), refreshItem);
+                    cache.put(RoleSnapshot.of(refreshItem));
                     return null;
                 }
 
@@ -655,8 +787,8 @@ public class JPAStorageProvider
     @Override
     public User getUser(UserAdminFactory factory, String key, String value) throws StorageException {
         try {
-            Filter filter = createFilter("(" + key + "=" + value + ")");
-            Collection<Role> roles = loadRoles(factory, filter);
+            QueryPlan plan = queryPlanner.plan("(" + key + "=" + value + ")");
+            Collection<Role> roles = loadRoles(factory, plan);
             Collection<User> users = new ArrayList<User>();
             for (Role role : roles) {
                 if (Role.USER == role.getType()) {
@@ -684,26 +816,134 @@ public class JPAStorageProvider
     @Override
     public Collection<Role> findRoles(UserAdminFactory factory, String filterString) throws StorageException {
         try {
-            Filter filter = null;
+            QueryPlan plan = null;
             if (filterString != null) {
-                filter = createFilter(filterString);
+                plan = queryPlanner.plan(filterString);
             }
-            return loadRoles(factory, filter);
+            return loadRoles(factory, plan);
         } catch (InvalidSyntaxException e) {
             throwStorageException("Invalid filter '" + e.getFilter() + "'", e);
         }
         return Collections.emptyList();
     }
 
+    /**
+     * Returns a page of the roles that match the given filter, ordered by
+     * name. The continuation is the name of the last role examined. If the
+     * filter can be answered by the property index only the candidates are
+     * examined, otherwise the names following the continuation are read from
+     * the database in chunks of the page size, restricted by the filter as far
+     * as it can be translated into a query.
+     * 
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to eventually create
+     *            the implementation objects.
+     * @param filterString
+     *            The search filter for the roles to be retreived.
+     * @param continuation
+     *            The name of the last role of the previous page or null.
+     * @param pageSize
+     *            The maximum number of roles to return.
+     */
+    @Override
+    public RolePage findRoles(UserAdminFactory factory, String filterString, String continuation, int pageSize) throws StorageException {
+        QueryPlan plan = null;
+        try {
+            if (filterString != null) {
+                plan = queryPlanner.plan(filterString);
+            }
+        } catch (InvalidSyntaxException e) {
+            throwStorageException("Invalid filter '" + e.getFilter() + "'", e);
+        }
+        RoleCache cache = getRoles();
+        Filter filter = plan != null ? plan.getFilter() : null;
+        Collection<String> candidates = plan != null ? plan.getCandidates(cache.getPropertyIndex()) : null;
+        List<Role> roles = new ArrayList<Role>();
+        String last = continuation;
+        if (candidates != null) {
+            TreeSet<String> names = new TreeSet<String>(candidates);
+            Iterator<String> iterator = (last != null ? names.tailSet(last, false) : names).iterator();
+            while (roles.size() < pageSize && iterator.hasNext()) {
+                // at most the missing number of roles, so the page never overflows
+                List<String> chunk = new ArrayList<String>();
+                while (chunk.size() < pageSize - roles.size() && iterator.hasNext()) {
+                    chunk.add(iterator.next());
+                }
+                last = chunk.get(chunk.size() - 1);
+                addRoles(factory, cache, chunk, filter, roles);
+            }
+            return new RolePage(roles, iterator.hasNext() ? last : null);
+        }
+        boolean more = true;
+        while (roles.size() < pageSize && more) {
+            int missing = pageSize - roles.size();
+            List<String> names = loadRoleNames(last, missing, plan);
+            if (!names.isEmpty()) {
+                last = names.get(names.size() - 1);
+                addRoles(factory, cache, names, filter, roles);
+            }
+            // a full chunk means there might be more
+            more = names.size() == missing;
+        }
+        return new RolePage(roles, more ? last : null);
+    }
+
+    /**
+     * Reads the names of the roles following the given name (ordered by name)
+     * from the database, the roles not matching the plan are skipped if the
+     * database can tell.
+     */
+    private List<String> loadRoleNames(final String after, final int maxResults, final QueryPlan plan) throws StorageException {
+        return readTransaction(new TransactionAccess<List<String>>() {
+
+            @Override
+            public List<String> doWork(EntityManager manager, EntityTransaction transaction) {
+                CriteriaBuilder builder = manager.getCriteriaBuilder();
+                CriteriaQuery<String> query = builder.createQuery(String.class);
+                Root<DBRole> root = query.from(DBRole.class);
+                Path<String> name = root.get("name");
+                query.select(name);
+                List<Predicate> predicates = new ArrayList<Predicate>();
+                if (after != null) {
+                    predicates.add(builder.greaterThan(name, after));
+                }
+                if (plan != null) {
+                    Predicate restriction = CriteriaFilterTranslator.restrict(plan, builder, query, root);
+                    if (restriction != null) {
+                        predicates.add(restriction);
+                    }
+                }
+                query.where(predicates.toArray(new Predicate[predicates.size()]));
+                query.orderBy(builder.asc(name));
+                TypedQuery<String> typedQuery = manager.createQuery(query);
+                typedQuery.setMaxResults(maxResults);
+                return typedQuery.getResultList();
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading role names from the database failed!";
+            }
+        });
+    }
+
     private Role loadRole(UserAdminFactory factory, String name, Filter filter) throws StorageException {
-        DBRole dbRole = getRoleFromMap(name);
+        RoleSnapshot dbRole = findRole(getRoles(), name);
         if (dbRole == null) {
             return null;
         }
+        return createRole(factory, dbRole, filter);
+    }
+
+    /**
+     * @return The role of the given snapshot or null if it does not match the
+     *         filter.
+     */
+    private Role createRole(UserAdminFactory factory, RoleSnapshot dbRole, Filter filter) throws StorageException {
+        String name = dbRole.getName();
         Hashtable<String, Object> properties = new Hashtable<String, Object>();
-        for (Entry<String, DBProperty> entry : dbRole.getProperties().entrySet()) {
-            DBProperty value = entry.getValue();
-            properties.put(entry.getKey(), value.getType() == DBProperty.TYPE_STRING ? value.getDataAsString() : value.getData());
+        for (Entry<String, Object> entry : dbRole.getProperties().entrySet()) {
+            properties.put(factory.intern(entry.getKey()), entry.getValue());
         }
         if (filter != null) {
             if (properties.isEmpty()) {
@@ -714,11 +954,9 @@ public class JPAStorageProvider
             }
         }
         Set<String> keySet = null;
-        if (dbRole instanceof DBUser) {
-            Map<String, DBCredential> credentials = ((DBUser) dbRole).getCredentials();
-            if (credentials != null) {
-                keySet = credentials.keySet();
-            }
+        Map<String, DBCredential> credentials = dbRole.getCredentials();
+        if (credentials != null) {
+            keySet = credentials.keySet();
         }
         Role role;
         switch (dbRole.getType()) {
@@ -735,108 +973,351 @@ public class JPAStorageProvider
     }
 
     /**
-     * Fetch a given role by name in a syncronized fashion...
+     * Loads the roles matching the given plan, only the candidates selected by
+     * the property index are matched if the plan can be answered by it,
+     * otherwise the candidates selected by the database if the plan can be
+     * translated into a query.
      */
-    private synchronized DBRole getRoleFromMap(String name) throws StorageException {
-        Map<String, DBRole> roleNamesMap = getRoleNamesMap();
-        return roleNamesMap.get(name);
+    private Collection<Role> loadRoles(UserAdminFactory factory, QueryPlan plan) throws StorageException {
+        RoleCache cache = getRoles();
+        Collection<String> names = cache.getNames();
+        Filter filter = null;
+        if (plan != null) {
+            filter = plan.getFilter();
+            Collection<String> candidates = plan.getCandidates(cache.getPropertyIndex());
+            if (candidates == null) {
+                candidates = queryCandidates(plan);
+            }
+            if (candidates != null) {
+                names = candidates;
+            }
+        }
+        Collection<Role> roles = new ArrayList<Role>();
+        addRoles(factory, cache, names, filter, roles);
+        return roles;
     }
 
-    private synchronized Collection<Role> loadRoles(UserAdminFactory factory, Filter filter) throws StorageException {
-        Collection<Role> roles = new ArrayList<Role>();
-        for (String name : getRoleNamesMap().keySet()) {
-            Role role = loadRole(factory, name, filter);
-            if (role != null) {
-                roles.add(role);
+    /**
+     * Adds the roles of the given names matching the filter, in the order of
+     * the names. Roles a bounded cache does not hold are read from the
+     * database by chunks of names and not added to the cache, so enumerating
+     * roles does not evict the recently used ones.
+     */
+    private void addRoles(UserAdminFactory factory, RoleCache cache, Collection<String> names, Filter filter, Collection<Role> roles)
+            throws StorageException {
+        if (cache.isComplete()) {
+            for (String name : names) {
+                RoleSnapshot dbRole = cache.get(name);
+                if (dbRole != null) {
+                    addRole(factory, dbRole, filter, roles);
+                }
             }
+            return;
+        }
+        Iterator<String> iterator = names.iterator();
+        while (iterator.hasNext()) {
+            List<String> chunk = new ArrayList<String>(Math.min(CHUNK_SIZE, names.size()));
+            while (chunk.size() < CHUNK_SIZE && iterator.hasNext()) {
+                chunk.add(iterator.next());
+            }
+            Map<String, RoleSnapshot> snapshots = new HashMap<String, RoleSnapshot>();
+            List<String> missing = new ArrayList<String>();
+            for (String name : chunk) {
+                RoleSnapshot dbRole = cache.get(name);
+                if (dbRole != null) {
+                    snapshots.put(name, dbRole);
+                } else if (cache.exists(name)) {
+                    missing.add(name);
+                }
+            }
+            if (!missing.isEmpty()) {
+                snapshots.putAll(loadRoles(missing));
+            }
+            for (String name : chunk) {
+                RoleSnapshot dbRole = snapshots.get(name);
+                if (dbRole != null) {
+                    addRole(factory, dbRole, filter, roles);
+                }
+            }
+        }
+    }
+
+    private void addRole(UserAdminFactory factory, RoleSnapshot dbRole, Filter filter, Collection<Role> roles) throws StorageException {
+        Role role = createRole(factory, dbRole, filter);
+        if (role != null) {
+            roles.add(role);
         }
-        return roles;
     }
 
-    private synchronized Collection<Role> loadMembers(UserAdminFactory factory, Group group, MemberType memberType) throws StorageException {
-        DBRole dbRole = getRoleNamesMap().get(group.getName());
-        if (dbRole instanceof DBGroup) {
-            DBGroup dbGroup = (DBGroup) dbRole;
-            Set<DBRole> member;
-            switch (memberType) {
-                case BASIC:
-                    member = dbGroup.getBasicMember();
-                    break;
-                case REQUIRED:
-                    member = dbGroup.getRequiredMember();
-                    break;
-                default:
-                    throw new StorageException("the MEMBER type " + memberType + " is not supported");
-            }
-            Collection<Role> members = new ArrayList<Role>();
-            for (DBRole dbrole : member) {
-                Role role = loadRole(factory, dbrole.getName(), null);
-                if (role != null) {
-                    members.add(role);
+    /**
+     * Reads the roles of the given names from the database.
+     */
+    private Map<String, RoleSnapshot> loadRoles(final List<String> names) throws StorageException {
+        Map<String, RoleLoader.RoleRow> rows = readTransaction(new TransactionAccess<Map<String, RoleLoader.RoleRow>>() {
+
+            @Override
+            public Map<String, RoleLoader.RoleRow> doWork(EntityManager manager, EntityTransaction transaction) {
+                return RoleLoader.loadRoles(manager, names);
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading " + names.size() + " roles from the database failed!";
+            }
+        });
+        return RoleLoader.createSnapshots(rows.values());
+    }
+
+    /**
+     * @return The names of the roles the database selects for the given plan
+     *         or null if the plan can't be translated into a restricting
+     *         query.
+     */
+    private List<String> queryCandidates(final QueryPlan plan) throws StorageException {
+        return readTransaction(new TransactionAccess<List<String>>() {
+
+            @Override
+            public List<String> doWork(EntityManager manager, EntityTransaction transaction) {
+                CriteriaBuilder builder = manager.getCriteriaBuilder();
+                CriteriaQuery<String> query = builder.createQuery(String.class);
+                Root<DBRole> root = query.from(DBRole.class);
+                Predicate restriction = CriteriaFilterTranslator.restrict(plan, builder, query, root);
+                if (restriction == null) {
+                    return null;
                 }
+                query.select(root.<String> get("name"));
+                query.where(restriction);
+                return manager.createQuery(query).getResultList();
+            }
+
+            @Override
+            public String getProblemString() {
+                return "selecting roles in the database failed!";
             }
-            return members;
+        });
+    }
+
+    private Collection<Role> loadMembers(UserAdminFactory factory, Group group, MemberType memberType) throws StorageException {
+        Collection<Role> members = new ArrayList<Role>();
+        addRoles(factory, getRoles(), getMemberSet(group, memberType), null, members);
+        return members;
+    }
+
+    private Set<String> getMemberSet(Group group, MemberType memberType) throws StorageException {
+        RoleSnapshot dbRole = findRole(getRoles(), group.getName());
+        if (dbRole != null && dbRole.isGroup()) {
+            return dbRole.getMembers(memberType);
         } else {
             throw new StorageException("The group " + group.getName() + " is invalid");
         }
     }
 
-    private synchronized Map<String, DBRole> getRoleNamesMap() throws StorageException {
-        if (roleNames == null) {
-            //Initial load from the DB...
-            roleNames = accessTransaction(new TransactionAccess<Map<String, DBRole>>() {
+    private static Collection<String> memberNames(Set<String> member) {
+        return new ArrayList<String>(member);
+    }
 
-                @Override
-                public Map<String, DBRole> doWork(EntityManager manager, EntityTransaction transaction) {
-                    Map<String, DBRole> loadedRoles = new HashMap<String, DBRole>();
-                    addRoles(listItems(DBGroup.class, manager), loadedRoles);
-                    addRoles(listItems(DBUser.class, manager), loadedRoles);
-                    addRoles(listItems(DBRole.class, manager), loadedRoles);
-                    if (!loadedRoles.containsKey(Role.USER_ANYONE)) {
-                        //create default role...
-                        DBUser dbRole = new DBUser();
-                        dbRole.setName(Role.USER_ANYONE);
-                        manager.persist(dbRole);
-                        loadedRoles.put(dbRole.getName(), dbRole);
-                    }
-                    return loadedRoles;
+    /**
+     * @return The role cache, the roles (or only their names if the cache is
+     *         bounded) are read from the database on first use.
+     */
+    private RoleCache getRoles() throws StorageException {
+        RoleCache current = roles;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            current = roles;
+            if (current == null) {
+                if (!stringDataFilled) {
+                    stringDataFilled = fillStringData();
                 }
-
-                <T> List<T> listItems(Class<T> type, EntityManager manager) {
-                    final CriteriaBuilder builder = manager.getCriteriaBuilder();
-                    final CriteriaQuery<T> query = builder.createQuery(type);
-                    query.from(type);
-                    TypedQuery<T> typedQuery = manager.createQuery(query);
-                    return typedQuery.getResultList();
+                if (cacheSize > 0) {
+                    current = RoleCache.bounded(loadAllRoleNames(), cacheSize);
+                } else {
+                    current = loadAllRoles();
                 }
+                roles = current;
+            }
+            return current;
+        }
+    }
 
-                <T extends DBRole> void addRoles(Collection<T> list, Map<String, DBRole> loadedRoles) {
-                    for (T dbGroup : list) {
-                        loadedRoles.put(dbGroup.getName(), dbGroup);
-                    }
+    /**
+     * Fills the column <code>cstring</code> of the string properties written
+     * before it was introduced, by chunks of roles. A failure is only logged,
+     * the database keeps selecting these properties for every filter then.
+     *
+     * @return True if all properties were filled.
+     */
+    private boolean fillStringData() {
+        long start = System.nanoTime();
+        try {
+            List<Long> ids = readTransaction(new TransactionAccess<List<Long>>() {
+
+                @Override
+                public List<Long> doWork(EntityManager manager, EntityTransaction transaction) {
+                    return StringDataMigration.findRoles(manager);
                 }
 
                 @Override
                 public String getProblemString() {
-                    return "reading roles from the database failed!";
+                    return "reading properties without string values failed!";
                 }
             });
+            int filled = 0;
+            for (int i = 0; i < ids.size(); i += CHUNK_SIZE) {
+                final List<Long> chunk = ids.subList(i, Math.min(i + CHUNK_SIZE, ids.size()));
+                filled += accessTransaction(new TransactionAccess<Integer>() {
+
+                    @Override
+                    public Integer doWork(EntityManager manager, EntityTransaction transaction) {
+                        return StringDataMigration.fillStringData(manager, chunk);
+                    }
+
+                    @Override
+                    public String getProblemString() {
+                        return "filling the string values of properties failed!";
+                    }
+                });
+            }
+            if (!ids.isEmpty()) {
+                LOG.info("[{}] filled {} string values of {} roles in {} ms", new Object[] { trackedServiceID, filled, ids.size(),
+                        (System.nanoTime() - start) / 1000000 });
+            }
+            return true;
+        } catch (StorageException e) {
+            LOG.warn("[{}] string values of properties are not filled, filters select them all: {}", trackedServiceID, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return The snapshot of the role with the given name, read from the
+     *         database if the cache does not hold it, or null if there is no
+     *         such role.
+     */
+    private RoleSnapshot findRole(RoleCache cache, final String name) throws StorageException {
+        RoleSnapshot role = cache.get(name);
+        if (role != null || cache.isComplete() || !cache.exists(name)) {
+            return role;
+        }
+        long stamp = cache.getStamp();
+        role = readTransaction(new TransactionAccess<RoleSnapshot>() {
+
+            @Override
+            public RoleSnapshot doWork(EntityManager manager, EntityTransaction transaction) {
+                DBRole dbRole = RoleLoader.findRole(manager, name);
+                return dbRole != null ? RoleSnapshot.of(dbRole) : null;
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading the role '" + name + "' from the database failed!";
+            }
+        });
+        if (role != null) {
+            cache.putLoaded(role, stamp);
         }
-        return roleNames;
+        return role;
     }
 
     /**
-     * Handles the (transactional) access to the database
+     * Initial load of the role names from the DB for a bounded cache.
      */
-    private synchronized <T> T accessTransaction(TransactionAccess<T> callable) throws StorageException {
-        if (entityManager == null) {
-            entityManager = entityManagerFactory.createEntityManager();
+    private List<String> loadAllRoleNames() throws StorageException {
+        final long start = System.nanoTime();
+        List<String> names = accessTransaction(new TransactionAccess<List<String>>() {
+
+            @Override
+            public List<String> doWork(EntityManager manager, EntityTransaction transaction) {
+                List<String> loadedNames = RoleLoader.loadRoleNames(manager);
+                if (!loadedNames.contains(Role.USER_ANYONE)) {
+                    //create default role...
+                    DBUser dbRole = new DBUser();
+                    dbRole.setName(Role.USER_ANYONE);
+                    manager.persist(dbRole);
+                    transaction.commit();
+                    loadedNames = new ArrayList<String>(loadedNames);
+                    loadedNames.add(dbRole.getName());
+                }
+                return loadedNames;
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading role names from the database failed!";
+            }
+        });
+        LOG.info("[{}] loaded {} role names in {} ms, keeping at most {} roles", new Object[] { trackedServiceID, names.size(),
+                (System.nanoTime() - start) / 1000000, cacheSize });
+        return names;
+    }
+
+    /**
+     * Initial load from the DB for a complete cache, together with a new
+     * property index.
+     */
+    private RoleCache loadAllRoles() throws StorageException {
+        final long start = System.nanoTime();
+        Map<String, RoleLoader.RoleRow> rows = accessTransaction(new TransactionAccess<Map<String, RoleLoader.RoleRow>>() {
+
+            @Override
+            public Map<String, RoleLoader.RoleRow> doWork(EntityManager manager, EntityTransaction transaction) {
+                Map<String, RoleLoader.RoleRow> loadedRoles = RoleLoader.loadRoles(manager, null);
+                if (!loadedRoles.containsKey(Role.USER_ANYONE)) {
+                    //create default role...
+                    DBUser dbRole = new DBUser();
+                    dbRole.setName(Role.USER_ANYONE);
+                    manager.persist(dbRole);
+                    transaction.commit();
+                    loadedRoles.put(dbRole.getName(), new RoleLoader.RoleRow(DBUser.class, dbRole.getID(), dbRole.getName()));
+                }
+                return loadedRoles;
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading roles from the database failed!";
+            }
+        });
+        // the rows hold plain values, the manager is closed already
+        long queried = System.nanoTime();
+        Map<String, RoleSnapshot> snapshots = RoleLoader.createSnapshots(rows.values());
+        long created = System.nanoTime();
+        PropertyIndex index = new PropertyIndex(indexKeys);
+        for (RoleSnapshot dbRole : snapshots.values()) {
+            index.putAll(dbRole.getName(), dbRole.getProperties());
         }
+        long indexed = System.nanoTime();
+        LOG.info("[{}] loaded {} roles in {} ms (queries {} ms, snapshots {} ms, index {} ms)", new Object[] { trackedServiceID, snapshots.size(),
+                (indexed - start) / 1000000, (queried - start) / 1000000, (created - queried) / 1000000, (indexed - created) / 1000000 });
+        return RoleCache.complete(snapshots, index);
+    }
+
+    /**
+     * Handles the (transactional) access to the database, each call uses an
+     * <code>EntityManager</code> of its own. If the access fails the cache
+     * might differ from the database, it is read again on next use.
+     */
+    private <T> T accessTransaction(TransactionAccess<T> callable) throws StorageException {
+        return accessTransaction(callable, true);
+    }
+
+    /**
+     * Handles an access to the database which does not change it, so the
+     * cache is kept if the access fails.
+     */
+    private <T> T readTransaction(TransactionAccess<T> callable) throws StorageException {
+        return accessTransaction(callable, false);
+    }
+
+    private <T> T accessTransaction(TransactionAccess<T> callable, boolean write) throws StorageException {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
         EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
         T result = null;
         RuntimeException exception = null;
         try {
+            transaction.begin();
             result = callable.doWork(entityManager, transaction);
             if (transaction.isActive()) {
                 transaction.commit();
@@ -851,35 +1332,56 @@ public class JPAStorageProvider
             } catch (RuntimeException e) {
                 //ignore...
             }
-        }
-        if (exception != null) {
             try {
-                //recreate EM on exception...
                 entityManager.close();
             } catch (RuntimeException e) {
                 //ignore...
             }
-            entityManager = null;
-            LOG.error("[{}] database operation failed, purge internal cache to syncronize with database!", trackedServiceID, exception);
-            if (roleNames != null) {
-                roleNames.clear();
-                roleNames = null;
+        }
+        if (exception != null) {
+            if (write) {
+                LOG.error("[{}] database operation failed, purge internal cache to syncronize with database!", trackedServiceID, exception);
+                roles = null;
+            } else {
+                LOG.error("[{}] reading from the database failed", trackedServiceID, exception);
             }
             throwStorageException(callable.getProblemString(), exception);
         }
         return result;
     }
 
-    private <T extends DBVersionedObject> T refreshItem(EntityManager manager, T object) {
-        @SuppressWarnings("unchecked")
-        T find = (T) manager.find(object.getClass(), object.getID());
+    /**
+     * @return The entity of the given role managed by the given manager.
+     */
+    private static <T extends DBRole> T refreshItem(EntityManager manager, Class<T> type, RoleSnapshot role) {
+        T find = manager.find(type, role.getID());
         if (find == null) {
-            throw new IllegalStateException("The database item of type " + object.getClass().getName() + " with id " + object.getID()
+            throw new IllegalStateException("The database item of type " + type.getName() + " with id " + role.getID()
                     + " can't be found in the database");
         }
         return find;
     }
 
+    /**
+     * @return The groups having the given role as basic or required member.
+     */
+    private static List<DBGroup> listGroupsOf(EntityManager manager, DBRole member) {
+        // one query per member set: or-ing both conditions joins both sets,
+        // which drops the groups having no member of one kind
+        Set<DBGroup> groups = new LinkedHashSet<DBGroup>(listGroupsOf(manager, member, "basicMember"));
+        groups.addAll(listGroupsOf(manager, member, "requiredMember"));
+        return new ArrayList<DBGroup>(groups);
+    }
+
+    private static List<DBGroup> listGroupsOf(EntityManager manager, DBRole member, String memberSet) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<DBGroup> query = builder.createQuery(DBGroup.class);
+        Root<DBGroup> root = query.from(DBGroup.class);
+        Path<Set<DBRole>> members = root.get(memberSet);
+        query.where(builder.isMember(member, members));
+        return manager.createQuery(query).getResultList();
+    }
+
     /**
      * register this service under the given {@link BundleContext}
      */
@@ -901,8 +1403,8 @@ public class JPAStorageProvider
         if (loader instanceof BundleReference) {
             return ((BundleReference) loader).getBundle().getBundleContext().createFilter(filterString);
         } else {
-            //This should never happen...
-            throw new AssertionError("Provider is not loaded by OSGi!");
+            // not loaded by OSGi, e.g. in tests
+            return FrameworkUtil.createFilter(filterString);
         }
     }
 
@@ -915,10 +1417,7 @@ public class JPAStorageProvider
         }
         serviceRegistration.unregister();
         serviceRegistration = null;
-        if (roleNames != null) {
-            roleNames.clear();
-            roleNames = null;
-        }
+        roles = null;
     }
 
     private static void throwStorageException(String message, Throwable throwable) throws StorageException {
@@ -926,12 +1425,10 @@ public class JPAStorageProvider
     }
 
     @Override
-    public synchronized Object getUserCredential(Decryptor decryptor, User user, String key) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        DBRole role = map.get(user.getName());
-        if (role instanceof DBUser) {
-            DBUser dbuser = (DBUser) role;
-            DBCredential dbCredential = dbuser.getCredentials().get(key);
+    public Object getUserCredential(Decryptor decryptor, User user, String key) throws StorageException {
+        RoleSnapshot role = findRole(getRoles(), user.getName());
+        if (role != null && role.getCredentials() != null) {
+            DBCredential dbCredential = role.getCredentials().get(key);
             if (dbCredential != null) {
                 return decryptor.decrypt(dbCredential.getEncryptedBytes(), dbCredential.getVerificationBytes(), dbCredential.getSalt(), dbCredential.getAlgorithmParameter());
             }
@@ -940,12 +1437,10 @@ public class JPAStorageProvider
     }
 
     @Override
-    public synchronized boolean hasUserCredential(Decryptor decryptor, User user, String key, Object value) throws StorageException {
-        final Map<String, DBRole> map = getRoleNamesMap();
-        DBRole role = map.get(user.getName());
-        if (role instanceof DBUser) {
-            DBUser dbuser = (DBUser) role;
-            DBCredential dbCredential = dbuser.getCredentials().get(key);
+    public boolean hasUserCredential(Decryptor decryptor, User user, String key, Object value) throws StorageException {
+        RoleSnapshot role = findRole(getRoles(), user.getName());
+        if (role != null && role.getCredentials() != null) {
+            DBCredential dbCredential = role.getCredentials().get(key);
             if (dbCredential != null) {
                 if (value instanceof String) {
                     return decryptor.verify(key, (String) value, dbCredential.getVerificationBytes(), dbCredential.getSalt(), dbCredential.getAlgorithmParameter());
@@ -964,7 +1459,37 @@ public class JPAStorageProvider
     }
 
     @Override
-    public void configurationUpdated(Map<String, ?> properties) {
+    public synchronized void configurationUpdated(Map<String, ?> properties) {
         LOG.info("Configuration updated: {}", properties);
+        int size = getCacheSize(properties);
+        if (size != cacheSize) {
+            // read again in the new mode on next use
+            cacheSize = size;
+            roles = null;
+        }
+        indexKeys = PropertyIndex.fromConfiguration(properties).getKeys();
+        RoleCache current = roles;
+        if (current != null && current.isComplete()) {
+            // the cache is published again together with the new index
+            PropertyIndex index = new PropertyIndex(indexKeys);
+            for (RoleSnapshot dbRole : current.getSnapshots()) {
+                index.putAll(dbRole.getName(), dbRole.getProperties());
+            }
+            roles = current.withPropertyIndex(index);
+        }
+    }
+
+    private int getCacheSize(Map<String, ?> properties) {
+        String value = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROPERTY_CACHE_SIZE, "0");
+        try {
+            int size = Integer.parseInt(value.trim());
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        LOG.warn("[{}] invalid value '{}' of " + ConfigurationConstants.PROPERTY_CACHE_SIZE + ", keeping all roles", trackedServiceID, value);
+        return 0;
     }
 }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.useradmin.service.spi.PropertyIndex;
+
+/**
+ * The role snapshots kept by the {@link JPAStorageProvider}. Either every role
+ * is kept ({@link #complete(Map, PropertyIndex)}) or only the recently used ones together
+ * with the names of all roles ({@link #bounded(Collection, int)}), the other
+ * roles are then read from the database on demand.
+ * <p>
+ * Writers call {@link #put(RoleSnapshot)} and {@link #remove(String)} after
+ * their transaction is committed. Readers which read a missing role add it by
+ * {@link #putLoaded(RoleSnapshot, long)}, which ignores the role if the cache
+ * was changed meanwhile, so a stale copy never replaces a committed one.
+ * <p>
+ * The {@link PropertyIndex} of the roles belongs to the cache, so a reloaded
+ * cache and its index are published together and readers never see an index
+ * being rebuilt. Only complete caches can keep the index up to date, bounded
+ * caches have an index without keys.
+ */
+abstract class RoleCache {
+
+    private final PropertyIndex propertyIndex;
+
+    private RoleCache(PropertyIndex propertyIndex) {
+        this.propertyIndex = propertyIndex;
+    }
+
+    /**
+     * @param roles
+     *            The snapshots of all roles by name, a concurrent map.
+     * @param propertyIndex
+     *            The index holding the properties of all roles.
+     * @return A cache holding all roles.
+     */
+    static RoleCache complete(Map<String, RoleSnapshot> roles, PropertyIndex propertyIndex) {
+        return new CompleteCache(roles, propertyIndex);
+    }
+
+    /**
+     * @param names
+     *            The names of all roles.
+     * @param maxSize
+     *            The maximum number of snapshots kept, positive.
+     * @return A cache keeping the given number of recently used roles. The
+     *         roles are split by name into stripes locked separately, each
+     *         stripe evicts its least recently used role.
+     */
+    static RoleCache bounded(Collection<String> names, int maxSize) {
+        return new BoundedCache(names, maxSize);
+    }
+
+    /**
+     * @return The index of the properties of the roles, to be updated by
+     *         writers together with the roles.
+     */
+    PropertyIndex getPropertyIndex() {
+        return propertyIndex;
+    }
+
+    /**
+     * @param index
+     *            A new index holding the properties of all roles kept.
+     * @return A cache sharing the roles of this cache with the given index,
+     *         this cache if it can't keep an index.
+     */
+    abstract RoleCache withPropertyIndex(PropertyIndex index);
+
+    /**
+     * @return True if every role is kept, otherwise roles not kept have to be
+     *         read from the database.
+     */
+    abstract boolean isComplete();
+
+    /**
+     * @param name
+     *            The name of a role.
+     * @return The snapshot of the role if it is kept, null otherwise.
+     */
+    abstract RoleSnapshot get(String name);
+
+    /**
+     * @param name
+     *            The name of a role.
+     * @return True if a role of the given name exists.
+     */
+    abstract boolean exists(String name);
+
+    /**
+     * @return The names of all roles.
+     */
+    abstract Collection<String> getNames();
+
+    /**
+     * @return The snapshots currently kept.
+     */
+    abstract Collection<RoleSnapshot> getSnapshots();
+
+    /**
+     * @return The current modification stamp, to be passed to
+     *         {@link #putLoaded(RoleSnapshot, long)}.
+     */
+    abstract long getStamp();
+
+    /**
+     * Keeps a role a reader has read from the database.
+     *
+     * @param role
+     *            The role read.
+     * @param stamp
+     *            The modification stamp taken before the role was read.
+     */
+    abstract void putLoaded(RoleSnapshot role, long stamp);
+
+    /**
+     * Keeps the committed state of a role.
+     *
+     * @param role
+     *            The role created or changed.
+     */
+    abstract void put(RoleSnapshot role);
+
+    /**
+     * Forgets a deleted role.
+     *
+     * @param name
+     *            The name of the role.
+     */
+    abstract void remove(String name);
+
+    private static final class CompleteCache extends RoleCache {
+
+        private final Map<String, RoleSnapshot> roles;
+
+        private CompleteCache(Map<String, RoleSnapshot> roles, PropertyIndex propertyIndex) {
+            super(propertyIndex);
+            this.roles = roles;
+        }
+
+        @Override
+        RoleCache withPropertyIndex(PropertyIndex index) {
+            return new CompleteCache(roles, index);
+        }
+
+        @Override
+        boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        RoleSnapshot get(String name) {
+            return roles.get(name);
+        }
+
+        @Override
+        boolean exists(String name) {
+            return roles.containsKey(name);
+        }
+
+        @Override
+        Collection<String> getNames() {
+            return roles.keySet();
+        }
+
+        @Override
+        Collection<RoleSnapshot> getSnapshots() {
+            return roles.values();
+        }
+
+        @Override
+        long getStamp() {
+            return 0;
+        }
+
+        @Override
+        void putLoaded(RoleSnapshot role, long stamp) {
+            // all roles are kept already
+        }
+
+        @Override
+        void put(RoleSnapshot role) {
+            roles.put(role.getName(), role);
+        }
+
+        @Override
+        void remove(String name) {
+            roles.remove(name);
+        }
+    }
+
+    private static final class BoundedCache extends RoleCache {
+
+        /**
+         * The maximum number of stripes, each guarded by a lock of its own.
+         */
+        private static final int STRIPES = 16;
+
+        /**
+         * The existence index, read without locking.
+         */
+        private final Set<String> names;
+
+        /**
+         * The recently used roles, each stripe is guarded by itself.
+         */
+        private final Stripe[]    stripes;
+
+        /**
+         * Incremented by every change.
+         */
+        private final AtomicLong  stamp = new AtomicLong();
+
+        private BoundedCache(Collection<String> names, int maxSize) {
+            super(new PropertyIndex(Collections.<String> emptySet()));
+            this.names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(names.size() * 4 / 3 + 1));
+            this.names.addAll(names);
+            stripes = new Stripe[Math.min(STRIPES, maxSize)];
+            for (int i = 0; i < stripes.length; i++) {
+                // the sizes of the stripes add up to the maximum size
+                stripes[i] = new Stripe(maxSize / stripes.length + (i < maxSize % stripes.length ? 1 : 0));
+            }
+        }
+
+        private Stripe stripe(String name) {
+            int hash = name.hashCode();
+            hash ^= hash >>> 16;
+            return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+        }
+
+        @Override
+        RoleCache withPropertyIndex(PropertyIndex index) {
+            return this;
+        }
+
+        @Override
+        boolean isComplete() {
+            return false;
+        }
+
+        @Override
+        RoleSnapshot get(String name) {
+            Stripe stripe = stripe(name);
+            synchronized (stripe) {
+                return stripe.get(name);
+            }
+        }
+
+        @Override
+        boolean exists(String name) {
+            return names.contains(name);
+        }
+
+        @Override
+        Collection<String> getNames() {
+            return names;
+        }
+
+        @Override
+        Collection<RoleSnapshot> getSnapshots() {
+            Collection<RoleSnapshot> snapshots = new ArrayList<RoleSnapshot>();
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    snapshots.addAll(stripe.values());
+                }
+            }
+            return snapshots;
+        }
+
+        @Override
+        long getStamp() {
+            return stamp.get();
+        }
+
+        @Override
+        void putLoaded(RoleSnapshot role, long stamp) {
+            Stripe stripe = stripe(role.getName());
+            synchronized (stripe) {
+                // writers change the stamp before the stripe
+                if (this.stamp.get() == stamp) {
+                    stripe.put(role.getName(), role);
+                }
+            }
+        }
+
+        @Override
+        void put(RoleSnapshot role) {
+            stamp.incrementAndGet();
+            names.add(role.getName());
+            Stripe stripe = stripe(role.getName());
+            synchronized (stripe) {
+                stripe.put(role.getName(), role);
+            }
+        }
+
+        @Override
+        void remove(String name) {
+            stamp.incrementAndGet();
+            names.remove(name);
+            Stripe stripe = stripe(name);
+            synchronized (stripe) {
+                stripe.remove(name);
+            }
+        }
+    }
+
+    /**
+     * A part of the recently used roles in access order, evicting the least
+     * recently used role of the part.
+     */
+    private static final class Stripe extends LinkedHashMap<String, RoleSnapshot> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int         maxSize;
+
+        private Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RoleSnapshot> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBCredential;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBGroup;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBUser;
+
+/**
+ * Reads all roles with a fixed number of queries: the collections of the
+ * roles are selected by joins instead of one select per role and collection.
+ * The same queries read chunks of roles by name for the bounded
+ * {@link RoleCache}, as well as single roles and the role names.
+ */
+final class RoleLoader {
+
+    /**
+     * The minimum number of roles worth a thread of its own when creating the
+     * snapshots.
+     */
+    private static final int MIN_ROLES_PER_THREAD = 10000;
+
+    private RoleLoader() {
+        // static methods only
+    }
+
+    /**
+     * Reads the roles, their properties, the credentials of the users and the
+     * members of the groups, each by queries of their own: properties and
+     * credentials joined together would be read as their product. Only
+     * columns are selected, so the rows hold plain values and no entity is
+     * read or kept by the manager.
+     *
+     * @param manager
+     *            The manager to read with.
+     * @param names
+     *            The names of the roles to read, null to read all roles. The
+     *            names are passed as one list to the database, so callers
+     *            should pass at most a few hundred.
+     * @return The rows of the roles by name.
+     */
+    static Map<String, RoleRow> loadRoles(EntityManager manager, Collection<String> names) {
+        Map<Long, RoleRow> rows = new HashMap<Long, RoleRow>();
+        if (names != null && names.isEmpty()) {
+            return new LinkedHashMap<String, RoleRow>();
+        }
+        addRoles(manager, DBRole.class, names, rows);
+        addRoles(manager, DBUser.class, names, rows);
+        addRoles(manager, DBGroup.class, names, rows);
+        // elements of roles created after their roles were read are skipped
+        for (Object[] row : select(manager, DBRole.class, names, "properties", "key", "type", "data")) {
+            RoleRow role = rows.get(row[0]);
+            if (role != null) {
+                role.properties.add(row);
+            }
+        }
+        for (Object[] row : select(manager, DBUser.class, names, "credentials", "key", "algorithmParameter", "salt", "verificationBytes", "encryptedBytes")) {
+            RoleRow role = rows.get(row[0]);
+            if (role != null) {
+                role.credentials.add(row);
+            }
+        }
+        for (Object[] row : select(manager, DBGroup.class, names, "basicMember", "name")) {
+            RoleRow role = rows.get(row[0]);
+            if (role != null) {
+                role.basicMembers.add((String) row[1]);
+            }
+        }
+        for (Object[] row : select(manager, DBGroup.class, names, "requiredMember", "name")) {
+            RoleRow role = rows.get(row[0]);
+            if (role != null) {
+                role.requiredMembers.add((String) row[1]);
+            }
+        }
+        Map<String, RoleRow> roles = new LinkedHashMap<String, RoleRow>(rows.size() * 4 / 3 + 1);
+        for (RoleRow row : rows.values()) {
+            roles.put(row.name, row);
+        }
+        return roles;
+    }
+
+    /**
+     * Reads one role by its (unique and indexed) name.
+     *
+     * @param manager
+     *            The manager to read with.
+     * @param name
+     *            The name of the role.
+     * @return The role with its properties fetched or null if there is no
+     *         role of the given name.
+     */
+    static DBRole findRole(EntityManager manager, String name) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<DBRole> query = builder.createQuery(DBRole.class);
+        Root<DBRole> role = query.from(DBRole.class);
+        role.fetch("properties", JoinType.LEFT);
+        ParameterExpression<String> parameter = builder.parameter(String.class);
+        query.where(builder.equal(role.get("name"), parameter));
+        query.distinct(true);
+        TypedQuery<DBRole> typedQuery = manager.createQuery(query);
+        typedQuery.setParameter(parameter, name);
+        List<DBRole> result = typedQuery.getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * @param manager
+     *            The manager to read with.
+     * @return The names of all roles.
+     */
+    static List<String> loadRoleNames(EntityManager manager) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<String> query = builder.createQuery(String.class);
+        query.select(query.from(DBRole.class).<String> get("name"));
+        return manager.createQuery(query).getResultList();
+    }
+
+    /**
+     * Adds the id and name of the roles of exactly the given entity class,
+     * restricted to the given names unless they are null.
+     */
+    private static void addRoles(EntityManager manager, Class<? extends DBRole> entityClass, Collection<String> names, Map<Long, RoleRow> rows) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<? extends DBRole> role = query.from(entityClass);
+        query.multiselect(role.get("id"), role.get("name"));
+        if (names != null) {
+            query.where(builder.equal(role.type(), entityClass), role.get("name").in(names));
+        } else {
+            query.where(builder.equal(role.type(), entityClass));
+        }
+        for (Object[] row : manager.createQuery(query).getResultList()) {
+            Long id = (Long) row[0];
+            rows.put(id, new RoleRow(entityClass, id.longValue(), (String) row[1]));
+        }
+    }
+
+    /**
+     * Selects the id of the role and the given columns of the elements of a
+     * collection, one row per element, restricted to the roles of the given
+     * names unless they are null.
+     */
+    private static List<Object[]> select(EntityManager manager, Class<? extends DBRole> entityClass, Collection<String> names, String attribute,
+            String... columns) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<? extends DBRole> role = query.from(entityClass);
+        Join<?, ?> element = role.join(attribute);
+        List<Selection<?>> selections = new ArrayList<Selection<?>>(columns.length + 1);
+        selections.add(role.get("id"));
+        for (String column : columns) {
+            selections.add(element.get(column));
+        }
+        query.multiselect(selections);
+        if (names != null) {
+            query.where(role.get("name").in(names));
+        }
+        return manager.createQuery(query).getResultList();
+    }
+
+    /**
+     * Creates the snapshots of the given roles, large numbers of roles are
+     * split among several threads. The rows only hold plain values, so they
+     * don't need the manager they were read with.
+     *
+     * @param dbRoles
+     *            The rows of the roles.
+     * @return A concurrent map of the snapshots by role name.
+     */
+    static Map<String, RoleSnapshot> createSnapshots(Collection<RoleRow> dbRoles) {
+        final Map<String, RoleSnapshot> snapshots = new ConcurrentHashMap<String, RoleSnapshot>(dbRoles.size() * 4 / 3 + 1);
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), dbRoles.size() / MIN_ROLES_PER_THREAD);
+        if (threads <= 1) {
+            addSnapshots(dbRoles, snapshots);
+            return snapshots;
+        }
+        List<RoleRow> list = new ArrayList<RoleRow>(dbRoles);
+        int chunkSize = (list.size() + threads - 1) / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+            for (int start = 0; start < list.size(); start += chunkSize) {
+                final List<RoleRow> chunk = list.subList(start, Math.min(start + chunkSize, list.size()));
+                futures.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        addSnapshots(chunk, snapshots);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while creating the role snapshots", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("creating the role snapshots failed", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return snapshots;
+    }
+
+    private static void addSnapshots(Collection<RoleRow> dbRoles, Map<String, RoleSnapshot> snapshots) {
+        for (RoleRow dbRole : dbRoles) {
+            snapshots.put(dbRole.name, dbRole.toSnapshot());
+        }
+    }
+
+    /**
+     * The values of a role as read by {@link RoleLoader#loadRoles}: the rows
+     * of its properties and credentials are converted by
+     * {@link #toSnapshot()}.
+     */
+    static final class RoleRow {
+
+        private final Class<? extends DBRole> entityClass;
+
+        private final long                    id;
+
+        private final String                  name;
+
+        private final List<Object[]>          properties      = new ArrayList<Object[]>();
+
+        private final List<Object[]>          credentials     = new ArrayList<Object[]>();
+
+        private final Set<String>             basicMembers    = new HashSet<String>();
+
+        private final Set<String>             requiredMembers = new HashSet<String>();
+
+        /**
+         * @param entityClass
+         *            The entity class of the role.
+         * @param id
+         *            The id of the role.
+         * @param name
+         *            The name of the role.
+         */
+        RoleRow(Class<? extends DBRole> entityClass, long id, String name) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.name = name;
+        }
+
+        RoleSnapshot toSnapshot() {
+            Map<String, Object> values = new HashMap<String, Object>(properties.size() * 4 / 3 + 1);
+            for (Object[] row : properties) {
+                byte[] data = (byte[]) row[3];
+                if (((Number) row[2]).shortValue() == DBProperty.TYPE_STRING) {
+                    values.put((String) row[1], DBProperty.decode(data));
+                } else {
+                    values.put((String) row[1], data != null ? data : DBProperty.EMPTY_ARRAY);
+                }
+            }
+            Map<String, DBCredential> credentialValues = null;
+            if (DBRole.class != entityClass) {
+                credentialValues = new HashMap<String, DBCredential>(credentials.size() * 4 / 3 + 1);
+                for (Object[] row : credentials) {
+                    DBCredential credential = new DBCredential();
+                    credential.setKey((String) row[1]);
+                    credential.setParameter((byte[]) row[2]);
+                    credential.setSalt((byte[]) row[3]);
+                    credential.setVerificationBytes((byte[]) row[4]);
+                    credential.setData((byte[]) row[5]);
+                    credentialValues.put((String) row[1], credential);
+                }
+            }
+            return RoleSnapshot.of(entityClass, id, name, values, credentialValues, basicMembers, requiredMembers);
+        }
+    }
+}
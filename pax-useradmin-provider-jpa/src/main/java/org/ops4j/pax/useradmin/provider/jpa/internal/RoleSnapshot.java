@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBCredential;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBGroup;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBUser;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * An immutable copy of the committed state of a {@link DBRole}. Readers only
+ * see snapshots, so they neither need the lock of the writers nor an
+ * <code>EntityManager</code>; a writer publishes a new snapshot of each role
+ * it changed after its transaction is committed.
+ */
+final class RoleSnapshot {
+
+    private final Class<? extends DBRole>   entityClass;
+
+    private final long                      id;
+
+    private final String                    name;
+
+    private final int                       type;
+
+    private final Map<String, Object>       properties;
+
+    private final Map<String, DBCredential> credentials;
+
+    private final Set<String>               basicMembers;
+
+    private final Set<String>               requiredMembers;
+
+    private RoleSnapshot(Class<? extends DBRole> entityClass, long id, String name, Map<String, Object> properties,
+            Map<String, DBCredential> credentials, Set<String> basicMembers, Set<String> requiredMembers) {
+        this.entityClass = entityClass;
+        this.id = id;
+        this.name = name;
+        type = DBGroup.class == entityClass ? Role.GROUP : DBUser.class == entityClass ? Role.USER : Role.ROLE;
+        this.properties = Collections.unmodifiableMap(properties);
+        this.credentials = credentials != null ? Collections.unmodifiableMap(credentials) : null;
+        this.basicMembers = basicMembers;
+        this.requiredMembers = requiredMembers;
+    }
+
+    /**
+     * @param dbRole
+     *            A role read or written by an open <code>EntityManager</code>,
+     *            its members are read.
+     * @return The snapshot of the given role.
+     */
+    static RoleSnapshot of(DBRole dbRole) {
+        Class<? extends DBRole> entityClass = dbRole instanceof DBGroup ? DBGroup.class : dbRole instanceof DBUser ? DBUser.class : DBRole.class;
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Entry<String, DBProperty> entry : dbRole.getProperties().entrySet()) {
+            DBProperty value = entry.getValue();
+            values.put(entry.getKey(), value.getType() == DBProperty.TYPE_STRING ? value.getDataAsString() : value.getData());
+        }
+        Map<String, DBCredential> credentials = null;
+        if (dbRole instanceof DBUser) {
+            credentials = new HashMap<String, DBCredential>(((DBUser) dbRole).getCredentials());
+        }
+        Set<String> basicMembers = Collections.emptySet();
+        Set<String> requiredMembers = Collections.emptySet();
+        if (dbRole instanceof DBGroup) {
+            basicMembers = names(((DBGroup) dbRole).getBasicMember());
+            requiredMembers = names(((DBGroup) dbRole).getRequiredMember());
+        }
+        return new RoleSnapshot(entityClass, dbRole.getID(), dbRole.getName(), values, credentials, basicMembers, requiredMembers);
+    }
+
+    /**
+     * Creates a snapshot from plain values, which are not copied.
+     *
+     * @param entityClass
+     *            The entity class of the role.
+     * @param properties
+     *            The property values by key, either <code>String</code> or
+     *            <code>byte[]</code>.
+     * @param credentials
+     *            The credentials by key, null if the role is no user.
+     * @param basicMembers
+     *            The names of the basic members, empty if the role is no
+     *            group.
+     * @param requiredMembers
+     *            The names of the required members, empty if the role is no
+     *            group.
+     * @return The snapshot of the role.
+     */
+    static RoleSnapshot of(Class<? extends DBRole> entityClass, long id, String name, Map<String, Object> properties,
+            Map<String, DBCredential> credentials, Set<String> basicMembers, Set<String> requiredMembers) {
+        return new RoleSnapshot(entityClass, id, name, properties, credentials, unmodifiable(basicMembers), unmodifiable(requiredMembers));
+    }
+
+    private static Set<String> unmodifiable(Set<String> names) {
+        return names.isEmpty() ? Collections.<String> emptySet() : Collections.unmodifiableSet(names);
+    }
+
+    private static Set<String> names(Set<DBRole> roles) {
+        if (roles.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<String>();
+        for (DBRole role : roles) {
+            names.add(role.getName());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return The entity class to find the role with.
+     */
+    Class<? extends DBRole> getEntityClass() {
+        return entityClass;
+    }
+
+    long getID() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    boolean isGroup() {
+        return Role.GROUP == type && DBGroup.class == entityClass;
+    }
+
+    /**
+     * @return The property values by key, either <code>String</code> or
+     *         <code>byte[]</code>.
+     */
+    Map<String, Object> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return The credentials by key or null if the role can't hold
+     *         credentials.
+     */
+    Map<String, DBCredential> getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @param memberType
+     *            The kind of members.
+     * @return The names of the members of the given kind, empty if the role
+     *         is not a group.
+     */
+    Set<String> getMembers(MemberType memberType) {
+        return MemberType.REQUIRED == memberType ? requiredMembers : basicMembers;
+    }
+}
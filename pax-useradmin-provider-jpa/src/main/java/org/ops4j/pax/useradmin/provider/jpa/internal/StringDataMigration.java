@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.MapJoin;
+import javax.persistence.criteria.Root;
+
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
+
+/**
+ * Fills the column <code>cstring</code> of the string properties written
+ * before it was introduced (see {@link DBProperty}), the database has to
+ * select these properties for every filter otherwise. Values too long for the
+ * column are selected again on each run, they are left as they are.
+ */
+final class StringDataMigration {
+
+    private StringDataMigration() {
+        // static methods only
+    }
+
+    /**
+     * @param manager
+     *            The manager to read with.
+     * @return The ids of the roles having string properties without
+     *         <code>cstring</code>.
+     */
+    static List<Long> findRoles(EntityManager manager) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<DBRole> role = query.from(DBRole.class);
+        MapJoin<DBRole, String, DBProperty> property = role.joinMap("properties");
+        query.select(role.<Long> get("id"));
+        query.where(property.get("stringData").isNull(), builder.equal(property.get("type"), DBProperty.TYPE_STRING));
+        query.distinct(true);
+        return manager.createQuery(query).getResultList();
+    }
+
+    /**
+     * Fills the missing string values of the given roles, the caller commits.
+     *
+     * @param manager
+     *            The manager to write with.
+     * @param ids
+     *            The ids of the roles, at most a few hundred.
+     * @return The number of properties filled.
+     */
+    static int fillStringData(EntityManager manager, Collection<Long> ids) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<DBRole> query = builder.createQuery(DBRole.class);
+        Root<DBRole> role = query.from(DBRole.class);
+        query.where(role.get("id").in(ids));
+        int filled = 0;
+        for (DBRole dbRole : manager.createQuery(query).getResultList()) {
+            for (DBProperty property : dbRole.getProperties().values()) {
+                if (property.fillStringData()) {
+                    filled++;
+                }
+            }
+        }
+        return filled;
+    }
+}
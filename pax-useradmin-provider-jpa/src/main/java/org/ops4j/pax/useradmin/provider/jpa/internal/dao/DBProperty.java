@@ -25,7 +25,19 @@ import javax.persistence.Lob;
 import org.osgi.service.useradmin.Role;
 
 /**
- * This DAO represents a single {@link Role} property in the database
+ * This DAO represents a single {@link Role} property in the database. String
+ * values short enough are stored in the column <code>cstring</code> as well,
+ * so filters can be evaluated by the database; the indexes it needs are
+ * declared by <code>META-INF/sql/pax-useradmin-jpa-indexes.sql</code>. The
+ * column is null for binary and long values, which are then matched in
+ * memory.
+ * <p>
+ * Upgrading from a version without the column: run
+ * <code>META-INF/sql/pax-useradmin-jpa-upgrade.sql</code>, which adds it,
+ * and then the index script before starting the provider, unless the
+ * persistence provider extends the tables itself. The string values written
+ * before are filled in by {@link #fillStringData()} when the roles are first
+ * read.
  */
 @Embeddable
 public class DBProperty {
@@ -35,6 +47,11 @@ public class DBProperty {
     private static final short TYPE_BYTE   = 2;
     public static final byte[] EMPTY_ARRAY = new byte[0];
 
+    /**
+     * The maximum length of a string value stored in <code>cstring</code>.
+     */
+    public static final int    MAX_STRING_LENGTH = 255;
+
     @Column(name = "ckey")
     private String            key;
 
@@ -42,6 +59,9 @@ public class DBProperty {
     @Column(name = "cdata")
     private byte[]            data;
 
+    @Column(name = "cstring", length = MAX_STRING_LENGTH)
+    private String            stringData;
+
     private short             type;
 
     /**
@@ -55,6 +75,15 @@ public class DBProperty {
     }
 
     public String getDataAsString() {
+        return decode(data);
+    }
+
+    /**
+     * @param data
+     *            The data of a string value, may be null.
+     * @return The string value of the given data.
+     */
+    public static String decode(byte[] data) {
         if (data == null) {
             return "";
         }
@@ -72,17 +101,37 @@ public class DBProperty {
     public void setData(byte[] data) {
         this.type = TYPE_BYTE;
         this.data = data;
+        this.stringData = null;
     }
 
     public void setData(String data) {
         try {
             this.type = TYPE_STRING;
             this.data = data.getBytes("UTF-8");
+            this.stringData = data.length() <= MAX_STRING_LENGTH ? data : null;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Sets <code>cstring</code> of a string value written before the column
+     * was introduced.
+     *
+     * @return True if the column was missing and is set now.
+     */
+    public boolean fillStringData() {
+        if (type != TYPE_STRING || stringData != null) {
+            return false;
+        }
+        String value = getDataAsString();
+        if (value.length() > MAX_STRING_LENGTH) {
+            return false;
+        }
+        setData(value);
+        return true;
+    }
+
     /**
      * @return the current value of type
      */
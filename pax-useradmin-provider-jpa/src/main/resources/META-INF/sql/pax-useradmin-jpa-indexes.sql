@@ -0,0 +1,8 @@
+-- Indexes used by the filters the Pax UserAdmin JPA provider evaluates in the
+-- database. JPA 2.0 can't declare them, so they have to be created together
+-- with the tables. Filters select roles by EXISTS subqueries over the
+-- properties of the role, comparing the string value (cstring, equality and
+-- prefix LIKE) and the lower case key. Tables created by an older version
+-- need pax-useradmin-jpa-upgrade.sql first.
+CREATE INDEX pax_useradmin_prop_string ON osgi_service_useradmin_Role_properties_table (cstring, ckey);
+CREATE INDEX pax_useradmin_prop_role ON osgi_service_useradmin_Role_properties_table (role_key_id);
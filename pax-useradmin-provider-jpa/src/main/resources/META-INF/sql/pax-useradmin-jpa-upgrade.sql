@@ -0,0 +1,6 @@
+-- Upgrades the tables of a Pax UserAdmin JPA provider older than the cstring
+-- column. Run it once before starting the new version when the tables are not
+-- generated by the persistence provider, then create the indexes of
+-- pax-useradmin-jpa-indexes.sql. The provider fills the column of the existing
+-- string values before it first reads the roles.
+ALTER TABLE osgi_service_useradmin_Role_properties_table ADD cstring VARCHAR(255);
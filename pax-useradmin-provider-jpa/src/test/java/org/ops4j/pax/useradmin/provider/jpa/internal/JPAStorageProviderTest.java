@@ -0,0 +1,444 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.provider.jpa.ConfigurationConstants;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBProperty;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
+import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the JPAStorageProvider against an embedded H2 database, changes
+ * behind the back of the provider are made by an EntityManager of its own.
+ */
+public class JPAStorageProviderTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static final PlainText     PLAIN_TEXT = new PlainText();
+
+    private final UserAdminFactory     userAdmin  = new RoleFactory();
+
+    private EntityManagerFactory       entityManagerFactory;
+
+    private JPAStorageProvider         provider;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+        properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:useradmin" + DATABASES.incrementAndGet());
+        properties.put("eclipselink.ddl-generation", "create-tables");
+        properties.put("eclipselink.ddl-generation.output-mode", "database");
+        properties.put("eclipselink.weaving", "false");
+        entityManagerFactory = Persistence.createEntityManagerFactory(ConfigurationConstants.PUNIT_NAME, properties);
+        provider = createProvider(new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void reloadAfterFailedWrite() throws Exception {
+        provider = createProvider(configuration(PaxUserAdminConstants.PROPERTY_INDEX_KEYS, "mail"));
+        User alice = provider.createUser(userAdmin, "alice");
+        provider.setRoleAttribute(alice, "mail", "alice@example.org");
+        User bob = provider.createUser(userAdmin, "bob");
+        provider.setRoleAttribute(bob, "mail", "bob@example.org");
+        deleteBehindProvider("bob");
+        try {
+            provider.setRoleAttribute(bob, "mail", "robert@example.org");
+            Assert.fail("Writing a deleted role succeeded");
+        } catch (StorageException e) {
+            // the roles are read again on next use
+        }
+        Assert.assertNull("Deleted role still cached", provider.getRole(userAdmin, "bob"));
+        Assert.assertNull("Deleted role still indexed", provider.getUser(userAdmin, "mail", "bob@example.org"));
+        User found = provider.getUser(userAdmin, "mail", "alice@example.org");
+        Assert.assertNotNull("Index not rebuilt", found);
+        Assert.assertEquals("Mismatching user", "alice", found.getName());
+    }
+
+    @Test
+    public void indexReplacedOnConfiguration() throws Exception {
+        User alice = provider.createUser(userAdmin, "alice");
+        provider.setRoleAttribute(alice, "uid", "a1");
+        provider.createUser(userAdmin, "bob");
+        provider.configurationUpdated(configuration(PaxUserAdminConstants.PROPERTY_INDEX_KEYS, "uid"));
+        User found = provider.getUser(userAdmin, "uid", "a1");
+        Assert.assertNotNull("Indexed user not found", found);
+        Assert.assertEquals("Mismatching user", "alice", found.getName());
+        provider.setRoleAttribute(alice, "uid", "a2");
+        Assert.assertNull("Old value still indexed", provider.getUser(userAdmin, "uid", "a1"));
+        Assert.assertNotNull("New value not indexed", provider.getUser(userAdmin, "uid", "a2"));
+    }
+
+    @Test
+    public void deleteRoleRemovesMemberships() throws Exception {
+        Group admins = provider.createGroup(userAdmin, "admins");
+        Group staff = provider.createGroup(userAdmin, "staff");
+        User alice = provider.createUser(userAdmin, "alice");
+        User bob = provider.createUser(userAdmin, "bob");
+        provider.addMember(admins, alice);
+        provider.addMember(admins, bob);
+        provider.addRequiredMember(staff, alice);
+        Assert.assertTrue("Role not deleted", provider.deleteRole(alice));
+        Assert.assertEquals("Mismatching members", Collections.singleton("bob"), new HashSet<String>(provider.getMemberNames(admins)));
+        Assert.assertTrue("Deleted role still required", provider.getRequiredMemberNames(staff).isEmpty());
+        // the database agrees
+        JPAStorageProvider reloaded = createProvider(new HashMap<String, Object>());
+        Assert.assertNull("Deleted role still stored", reloaded.getRole(userAdmin, "alice"));
+        Assert.assertEquals("Mismatching stored members", Collections.singleton("bob"), new HashSet<String>(reloaded.getMemberNames(admins)));
+        Assert.assertTrue("Deleted role still required in storage", reloaded.getRequiredMemberNames(staff).isEmpty());
+    }
+
+    @Test
+    public void bulkLoadReadsAllCollections() throws Exception {
+        User alice = provider.createUser(userAdmin, "alice");
+        provider.setRoleAttribute(alice, "mail", "alice@example.org");
+        provider.setRoleAttribute(alice, "photo", new byte[] { 1, 2, 3 });
+        provider.setUserCredential(PLAIN_TEXT, alice, "password", "secret");
+        provider.setUserCredential(PLAIN_TEXT, alice, "pin", "1234");
+        User bob = provider.createUser(userAdmin, "bob");
+        Group admins = provider.createGroup(userAdmin, "admins");
+        provider.setRoleAttribute(admins, "cn", "Admins");
+        provider.addMember(admins, alice);
+        provider.addRequiredMember(admins, bob);
+        JPAStorageProvider reloaded = createProvider(new HashMap<String, Object>());
+        Role loaded = reloaded.getRole(userAdmin, "alice");
+        Assert.assertEquals("Mismatching type", Role.USER, loaded.getType());
+        Assert.assertEquals("Mismatching string", "alice@example.org", loaded.getProperties().get("mail"));
+        Assert.assertTrue("Mismatching bytes", Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) loaded.getProperties().get("photo")));
+        Assert.assertEquals("Mismatching credential", "secret", reloaded.getUserCredential(PLAIN_TEXT, alice, "password"));
+        Assert.assertEquals("Mismatching credential", "1234", reloaded.getUserCredential(PLAIN_TEXT, alice, "pin"));
+        Role group = reloaded.getRole(userAdmin, "admins");
+        Assert.assertEquals("Mismatching type", Role.GROUP, group.getType());
+        Assert.assertEquals("Mismatching string", "Admins", group.getProperties().get("cn"));
+        Assert.assertEquals("Mismatching members", Collections.singletonList("alice"), new ArrayList<String>(reloaded.getMemberNames(admins)));
+        Assert.assertEquals("Mismatching required members", Collections.singletonList("bob"), new ArrayList<String>(reloaded.getRequiredMemberNames(admins)));
+    }
+
+    @Test
+    public void boundedCacheEvictsAndEnumerates() throws Exception {
+        // a single role kept
+        provider = createProvider(configuration(ConfigurationConstants.PROPERTY_CACHE_SIZE, "1"));
+        for (int i = 0; i < 5; i++) {
+            User user = provider.createUser(userAdmin, "user" + i);
+            provider.setRoleAttribute(user, "uid", "u" + i);
+        }
+        setBehindProvider("user0", "uid", "changed");
+        Assert.assertEquals("Evicted role not read again", "changed", provider.getRole(userAdmin, "user0").getProperties().get("uid"));
+        Assert.assertEquals("Mismatching roles", new TreeSet<String>(Arrays.asList(Role.USER_ANYONE, "user0", "user1", "user2", "user3", "user4")),
+                names(provider.findRoles(userAdmin, null)));
+        // negations are matched in memory only
+        Assert.assertEquals("Mismatching matches", new TreeSet<String>(Arrays.asList("user0", "user2", "user3", "user4")),
+                names(provider.findRoles(userAdmin, "(!(uid=u1))")));
+        // the enumerated roles did not replace the cached one
+        setBehindProvider("user0", "uid", "changed again");
+        Assert.assertEquals("Cached role evicted", "changed", provider.getRole(userAdmin, "user0").getProperties().get("uid"));
+    }
+
+    @Test
+    public void filtersInDatabaseSelectSuperset() throws Exception {
+        StringBuilder note = new StringBuilder();
+        while (note.length() <= DBProperty.MAX_STRING_LENGTH) {
+            note.append("x");
+        }
+        String[][] values = { { "alice", "mail", "alice@example.org", "cn", "Alice" }, { "bob", "mail", "BOB@example.org", "cn", "Bob" },
+                { "carol", "mail", "carol@example.com", "cn", "50%_off" }, { "dave", "note", note.toString(), "cn", "dave" } };
+        for (String[] value : values) {
+            User user = provider.createUser(userAdmin, value[0]);
+            provider.setRoleAttribute(user, value[1], value[2]);
+            provider.setRoleAttribute(user, value[3], value[4]);
+        }
+        provider.setRoleAttribute(provider.getRole(userAdmin, "dave"), "photo", new byte[] { 1 });
+        // tables written before cstring existed are upgraded and filled on next load
+        execute("ALTER TABLE osgi_service_useradmin_Role_properties_table DROP COLUMN cstring");
+        executeScript("META-INF/sql/pax-useradmin-jpa-upgrade.sql");
+        executeScript("META-INF/sql/pax-useradmin-jpa-indexes.sql");
+        provider = createProvider(new HashMap<String, Object>());
+        Collection<Role> all = provider.findRoles(userAdmin, null);
+        Assert.assertEquals("Unfilled string values", 1, count("SELECT COUNT(*) FROM osgi_service_useradmin_Role_properties_table"
+                + " WHERE cstring IS NULL AND type = " + DBProperty.TYPE_STRING));
+        String[] filters = { "(mail=alice@example.org)", "(MAIL=alice@example.org)", "(mail=bob@example.org)", "(mail=*@example.org)",
+                "(mail=a*)", "(cn=50%_off)", "(cn=50*)", "(note=x*)", "(&(mail=*)(cn=Bob))", "(|(cn=Bob)(mail=carol*))", "(!(cn=Bob))",
+                "(cn>=B)", "(cn<=B)", "(cn~=BOB)", "(photo=*)" };
+        for (String filterString : filters) {
+            Filter filter = FrameworkUtil.createFilter(filterString);
+            Set<String> expected = new TreeSet<String>();
+            for (Role role : all) {
+                if (!role.getProperties().isEmpty() && filter.match(role.getProperties())) {
+                    expected.add(role.getName());
+                }
+            }
+            Assert.assertEquals("Mismatching roles of " + filterString, expected, names(provider.findRoles(userAdmin, filterString)));
+            Collection<Role> paged = new ArrayList<Role>();
+            RolePage page = provider.findRoles(userAdmin, filterString, null, 2);
+            paged.addAll(page.getRoles());
+            while (page.hasMore()) {
+                page = provider.findRoles(userAdmin, filterString, page.getContinuation(), 2);
+                paged.addAll(page.getRoles());
+            }
+            Assert.assertEquals("Mismatching pages of " + filterString, expected, names(paged));
+        }
+    }
+
+    private JPAStorageProvider createProvider(Map<String, Object> configuration) throws Exception {
+        JPAStorageProvider storageProvider = new JPAStorageProvider(entityManagerFactory, Long.valueOf(1));
+        storageProvider.configurationUpdated(configuration);
+        return storageProvider;
+    }
+
+    private static Map<String, Object> configuration(String key, Object value) {
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put(key, value);
+        return configuration;
+    }
+
+    private static Set<String> names(Collection<? extends Role> roles) {
+        Set<String> names = new TreeSet<String>();
+        for (Role role : roles) {
+            names.add(role.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Runs a statement without telling the provider. The shared cache does
+     * not see native statements, it is emptied like on a restart.
+     */
+    private void execute(String sql) {
+        EntityManager manager = entityManagerFactory.createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            manager.createNativeQuery(sql).executeUpdate();
+            manager.getTransaction().commit();
+        } finally {
+            manager.close();
+        }
+        entityManagerFactory.getCache().evictAll();
+    }
+
+    /**
+     * Runs the statements of a script shipped with the provider.
+     */
+    private void executeScript(String resource) throws IOException {
+        InputStream in = JPAStorageProvider.class.getClassLoader().getResourceAsStream(resource);
+        Assert.assertNotNull("Missing script " + resource, in);
+        StringBuilder script = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("--")) {
+                    script.append(line).append('\n');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (String statement : script.toString().split(";")) {
+            if (statement.trim().length() > 0) {
+                execute(statement.trim());
+            }
+        }
+    }
+
+    private long count(String sql) {
+        EntityManager manager = entityManagerFactory.createEntityManager();
+        try {
+            return ((Number) manager.createNativeQuery(sql).getSingleResult()).longValue();
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Sets a property in the database without telling the provider.
+     */
+    private void setBehindProvider(String name, String key, String value) {
+        EntityManager manager = entityManagerFactory.createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            DBProperty property = new DBProperty();
+            property.setKey(key);
+            property.setData(value);
+            RoleLoader.findRole(manager, name).getProperties().put(key, property);
+            manager.getTransaction().commit();
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Removes a role from the database without telling the provider.
+     */
+    private void deleteBehindProvider(String name) {
+        EntityManager manager = entityManagerFactory.createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            manager.remove(RoleLoader.findRole(manager, name));
+            manager.getTransaction().commit();
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stores credentials as they are, verification compares the stored value.
+     */
+    private static final class PlainText implements Encryptor, Decryptor {
+
+        @Override
+        public EncryptedValue encrypt(String key, String value) {
+            return encrypt(key, UserAdminTools.stringToBytes(value));
+        }
+
+        @Override
+        public EncryptedValue encrypt(String key, final byte[] value) {
+            return new EncryptedValue() {
+
+                @Override
+                public byte[] getEncryptedBytes() {
+                    return value;
+                }
+
+                @Override
+                public byte[] getVerificationBytes() {
+                    return value;
+                }
+
+                @Override
+                public byte[] getSalt() {
+                    return new byte[0];
+                }
+
+                @Override
+                public byte[] getAlgorithmParameter() {
+                    return new byte[0];
+                }
+            };
+        }
+
+        @Override
+        public Object decrypt(byte[] encryptedBytes, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            return UserAdminTools.bytesToString(encryptedBytes);
+        }
+
+        @Override
+        public boolean verify(String key, String value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            return verify(key, UserAdminTools.stringToBytes(value), verificationBytes, salt, algorithmParameter);
+        }
+
+        @Override
+        public boolean verify(String key, byte[] value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            return Arrays.equals(value, verificationBytes);
+        }
+    }
+
+    /**
+     * Creates roles which only know their name, type and properties.
+     */
+    private static final class RoleFactory implements UserAdminFactory {
+
+        @Override
+        public User createUser(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+            return (User) createRole(User.class, name, Role.USER, properties);
+        }
+
+        @Override
+        public Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+            return (Group) createRole(Group.class, name, Role.GROUP, properties);
+        }
+
+        @Override
+        public String intern(String name) {
+            return name;
+        }
+
+        @Override
+        public void fireEvent(int type, Role role) {
+            // nobody listens
+        }
+
+        private static Object createRole(Class<? extends Role> type, final String name, final int roleType, Map<String, Object> properties) {
+            final Hashtable<String, Object> dictionary = new Hashtable<String, Object>();
+            if (properties != null) {
+                dictionary.putAll(properties);
+            }
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String methodName = method.getName();
+                    if ("getName".equals(methodName) || "toString".equals(methodName)) {
+                        return name;
+                    } else if ("getType".equals(methodName)) {
+                        return Integer.valueOf(roleType);
+                    } else if ("getProperties".equals(methodName)) {
+                        return dictionary;
+                    } else if ("equals".equals(methodName)) {
+                        return Boolean.valueOf(proxy == args[0]);
+                    } else if ("hashCode".equals(methodName)) {
+                        return Integer.valueOf(name.hashCode());
+                    }
+                    throw new UnsupportedOperationException(methodName);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.jpa.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBCredential;
+import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBUser;
+
+/**
+ * Testing the bounded RoleCache.
+ */
+public class RoleCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        RoleCache cache = RoleCache.bounded(Arrays.asList("a", "b"), 1);
+        cache.put(snapshot("a"));
+        cache.put(snapshot("b"));
+        Assert.assertNull("Evicted role kept", cache.get("a"));
+        Assert.assertNotNull("Recent role evicted", cache.get("b"));
+        Assert.assertTrue("Name of evicted role lost", cache.exists("a"));
+    }
+
+    @Test
+    public void keepsMaximumSize() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("role" + i);
+        }
+        RoleCache cache = RoleCache.bounded(names, 100);
+        long stamp = cache.getStamp();
+        for (String name : names) {
+            cache.putLoaded(snapshot(name), stamp);
+        }
+        Assert.assertEquals("Mismatching size", 100, cache.getSnapshots().size());
+        Assert.assertEquals("Names lost", 1000, cache.getNames().size());
+    }
+
+    @Test
+    public void ignoresStaleLoads() {
+        RoleCache cache = RoleCache.bounded(Arrays.asList("a", "b"), 10);
+        long stamp = cache.getStamp();
+        cache.put(snapshot("b"));
+        cache.putLoaded(snapshot("a"), stamp);
+        Assert.assertNull("Stale role kept", cache.get("a"));
+        cache.putLoaded(snapshot("a"), cache.getStamp());
+        Assert.assertNotNull("Loaded role not kept", cache.get("a"));
+    }
+
+    @Test
+    public void removeForgetsName() {
+        RoleCache cache = RoleCache.bounded(Arrays.asList("a"), 10);
+        cache.put(snapshot("a"));
+        cache.remove("a");
+        Assert.assertNull("Removed role kept", cache.get("a"));
+        Assert.assertFalse("Removed role exists", cache.exists("a"));
+    }
+
+    private static RoleSnapshot snapshot(String name) {
+        return RoleSnapshot.of(DBUser.class, 1, name, new HashMap<String, Object>(), new HashMap<String, DBCredential>(), new HashSet<String>(),
+                new HashSet<String>());
+    }
+}
@@ -41,6 +41,12 @@ public interface ConfigurationConstants {
     String PROP_LDAP_ACCESS_USER           = "org.ops4j.pax.useradmin.ldap.access.user";
     String PROP_LDAP_ACCESS_PWD            = "org.ops4j.pax.useradmin.ldap.access.pwd";
 
+    /**
+     * The time in milliseconds the connection of a paged role search is kept
+     * open for the next page, zero to close it after each page.
+     */
+    String PROP_LDAP_PAGED_TIMEOUT         = "org.ops4j.pax.useradmin.ldap.paged.timeout";
+
     String PROP_USER_OBJECTCLASS           = "org.ops4j.pax.useradmin.ldap.user.objectclass";
     String PROP_USER_ATTR_ID               = "org.ops4j.pax.useradmin.ldap.user.attr.id";
     String PROP_USER_ATTR_MANDATORY        = "org.ops4j.pax.useradmin.ldap.user.attr.mandatory";
@@ -62,6 +68,7 @@ public interface ConfigurationConstants {
     String DEFAULT_LDAP_ROOT_DN            = "dc=ops4j,dc=org";
     String DEFAULT_LDAP_ROOT_USERS         = "ou=people";
     String DEFAULT_LDAP_ROOT_GROUPS        = "ou=groups";
+    String DEFAULT_LDAP_PAGED_TIMEOUT      = "60000";
 
     String DEFAULT_USER_OBJECTCLASS        = "organizationalPerson, inetOrgPerson, person, top";
     String DEFAULT_USER_ATTR_ID            = "uid";
@@ -24,6 +24,7 @@ import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 
 import com.novell.ldap.LDAPConnection;
 
@@ -33,6 +34,9 @@ import com.novell.ldap.LDAPConnection;
 public class Activator
         implements BundleActivator {
 
+    private StorageProviderImpl    m_provider;
+    private ServiceRegistration<?> m_registration;
+
     /**
      * Create and register the <code>StorageProvider</code> service.
      * 
@@ -52,10 +56,25 @@ public class Activator
         //
         // create & register service implementation
         //
-        context.registerService(StorageProvider.class, new StorageProviderImpl(connection), properties);
+        m_provider = new StorageProviderImpl(connection);
+        m_registration = context.registerService(StorageProvider.class, m_provider, properties);
     }
 
+    /**
+     * Unregister the <code>StorageProvider</code> service and close the
+     * connections of its open paged searches.
+     * 
+     * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
+     */
     @Override
     public void stop(BundleContext context) throws Exception {
+        if (null != m_registration) {
+            m_registration.unregister();
+            m_registration = null;
+        }
+        if (null != m_provider) {
+            m_provider.closePagedSearches();
+            m_provider = null;
+        }
     }
 }
@@ -20,19 +20,33 @@ package org.ops4j.pax.useradmin.provider.ldap.internal;
 import com.novell.ldap.LDAPAttribute;
 import com.novell.ldap.LDAPAttributeSet;
 import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
 import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPModification;
+import com.novell.ldap.LDAPSearchConstraints;
 import com.novell.ldap.LDAPSearchResults;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
@@ -47,7 +61,7 @@ import org.osgi.service.useradmin.User;
  */
 @SuppressWarnings("PackageAccessibility")
 public class StorageProviderImpl
-        implements StorageProvider, CredentialProvider {
+        implements AtomicStorageProvider, PagedStorageProvider, MembershipStorageProvider, CredentialProvider {
 
     private static final String DEFAULT_CREDENTIAL_NAME     = "default";
     private static final int    CREDENTIAL_VALUE_ARRAY_SIZE = 3;
@@ -57,6 +71,11 @@ public class StorageProviderImpl
 
     private static final String PATTERN_SPLIT_LIST_VALUE    = "[;,] *";
 
+    /**
+     * The OID of the simple paged results control (RFC 2696).
+     */
+    private static final String PAGED_RESULTS_OID           = "1.2.840.113556.1.4.319";
+
     // configuration
 
     private String              m_accessUser                = "";
@@ -82,11 +101,21 @@ public class StorageProviderImpl
     private String              m_groupEntryIdAttr          = ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_ID;
     private String              m_groupEntryMemberAttr      = ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_MEMBER;
 
+    private volatile long       m_pagedSearchTimeout        = Long.parseLong(ConfigurationConstants.DEFAULT_LDAP_PAGED_TIMEOUT);
+
     /**
      * The connection which is used for access.
      */
     private LDAPConnection      m_connection                = null;
 
+    /**
+     * The open paged role searches by the continuation of their next page -
+     * guarded by itself.
+     */
+    private final Map<String, PagedSearch> m_pagedSearches = new HashMap<String, PagedSearch>();
+
+    private final AtomicLong    m_pagedSearchIds            = new AtomicLong();
+
     /**
      * Constructor.
      * 
@@ -115,13 +144,21 @@ public class StorageProviderImpl
      *             If the connection could not be initialized.
      */
     private LDAPConnection openConnection() throws StorageException {
+        return connect(m_connection);
+    }
+
+    /**
+     * Connects the given connection to the LDAP server - disconnecting it
+     * first if needed - and binds it.
+     */
+    private LDAPConnection connect(LDAPConnection connection) throws StorageException {
         try {
-            if (m_connection.isConnected() || m_connection.isBound()) {
-                m_connection.disconnect();
+            if (connection.isConnected() || connection.isBound()) {
+                connection.disconnect();
             }
-            m_connection.connect(m_host, new Integer(m_port));
-            m_connection.bind(LDAPConnection.LDAP_V3, m_accessUser, m_accessPassword.getBytes("UTF8"));
-            return m_connection;
+            connection.connect(m_host, new Integer(m_port));
+            connection.bind(LDAPConnection.LDAP_V3, m_accessUser, m_accessPassword.getBytes("UTF8"));
+            return connection;
         } catch (LDAPException e) {
             throw new StorageException("Error opening connection to LDAP server '" + m_host + ":" + m_port + "': " + e.getMessage() + " - "
                     + e.getLDAPErrorMessage());
@@ -299,7 +336,7 @@ public class StorageProviderImpl
                     }
                     // ignore default credential for groups
                     if (type != Role.GROUP || !DEFAULT_CREDENTIAL_NAME.equals(data[1])) {
-                        credentials.put(data[1], ("char".equals(data[0]) ? data[2] : data[2].getBytes()));
+                        credentials.put(factory.intern(data[1]), ("char".equals(data[0]) ? data[2] : data[2].getBytes()));
                     }
                 }
             } else {
@@ -309,7 +346,7 @@ public class StorageProviderImpl
                 //
 //                boolean isByteArray = false;
 //                properties.put(attribute.getName(), isByteArray ? attribute.getByteValue() : attribute.getStringValue());
-                properties.put(attribute.getName(), attribute.getStringValue());
+                properties.put(factory.intern(attribute.getName()), attribute.getStringValue());
             }
         }
         switch (type) {
@@ -422,9 +459,60 @@ public class StorageProviderImpl
      * @param group
      *            The group to fetch from
      */
-    @SuppressWarnings(value = "unchecked")
     private Collection<Role> getMembers(LDAPConnection connection, UserAdminFactory factory, Group group, String ext) throws LDAPException, StorageException {
         Collection<Role> roles = new ArrayList<Role>();
+        for (String userDN : getMemberDNs(connection, group, ext)) {
+            LDAPEntry userEntry = getEntry(connection, userDN);
+            if (null == userEntry) {
+                throw new StorageException("Internal error: group member '" + userDN + "' could not be retrieved.");
+            }
+            Role role = createRole(factory, userEntry);
+            roles.add(role);
+        }
+        return roles;
+    }
+
+    /**
+     * Retrieves the names of the members of the specified sub-group. The
+     * names are taken from the member DNs if these are located below the
+     * configured user or group root, only other members are read.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param group
+     *            The group to fetch from
+     */
+    private Collection<String> getMemberNames(LDAPConnection connection, Group group, String ext) throws LDAPException, StorageException {
+        Collection<String> names = new ArrayList<String>();
+        for (String memberDN : getMemberDNs(connection, group, ext)) {
+            String name = getNameFromDN(memberDN, m_userIdAttr, m_rootUsersDN);
+            if (null == name) {
+                name = getNameFromDN(memberDN, m_groupIdAttr, m_rootGroupsDN);
+            }
+            if (null == name) {
+                LDAPEntry memberEntry = getEntry(connection, memberDN);
+                if (null == memberEntry) {
+                    throw new StorageException("Internal error: group member '" + memberDN + "' could not be retrieved.");
+                }
+                String idAttr = Role.GROUP == getRoleType(memberEntry) ? m_groupIdAttr : m_userIdAttr;
+                name = memberEntry.getAttribute(idAttr).getStringValue();
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Retrieves the DNs of the members of the specified sub-group.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param group
+     *            The group to fetch from
+     */
+    @SuppressWarnings(value = "unchecked")
+    private Collection<String> getMemberDNs(LDAPConnection connection, Group group, String ext) throws LDAPException, StorageException {
+        Collection<String> memberDNs = new ArrayList<String>();
         //
         // get the group main entry
         //
@@ -439,18 +527,38 @@ public class StorageProviderImpl
         if (null != subGroupEntry) {
             for (LDAPAttribute attribute : (Iterable<LDAPAttribute>) subGroupEntry.getAttributeSet()) {
                 if (m_groupEntryMemberAttr.equals(attribute.getName())) {
-                    for (String userDN : attribute.getStringValueArray()) {
-                        LDAPEntry userEntry = getEntry(connection, userDN);
-                        if (null == userEntry) {
-                            throw new StorageException("Internal error: group member '" + userDN + "' could not be retrieved.");
-                        }
-                        Role role = createRole(factory, userEntry);
-                        roles.add(role);
+                    for (String memberDN : attribute.getStringValueArray()) {
+                        memberDNs.add(memberDN);
                     }
                 }
             }
         }
-        return roles;
+        return memberDNs;
+    }
+
+    /**
+     * Extracts the name from a DN as created by {@link #getUserDN(String)} or
+     * {@link #getGroupDN(String)}.
+     * 
+     * @param dn
+     *            The DN.
+     * @param idAttr
+     *            The ID attribute of the role type.
+     * @param rootDN
+     *            The root DN of the role type.
+     * @return The name or null if the DN does not have the expected form.
+     */
+    private static String getNameFromDN(String dn, String idAttr, String rootDN) {
+        String prefix = idAttr + "=";
+        String suffix = "," + rootDN;
+        if (dn.length() <= prefix.length() + suffix.length()
+                || !dn.regionMatches(true, 0, prefix, 0, prefix.length())
+                || !dn.regionMatches(true, dn.length() - suffix.length(), suffix, 0, suffix.length())) {
+            return null;
+        }
+        String name = dn.substring(prefix.length(), dn.length() - suffix.length());
+        // escaped or multi-valued RDNs have to be read
+        return name.indexOf(',') < 0 && name.indexOf('\\') < 0 && name.indexOf('+') < 0 ? name : null;
     }
 
     @SuppressWarnings(value = "unchecked")
@@ -536,14 +644,18 @@ public class StorageProviderImpl
 
     }
 
-    // - public <code>StorageProvider</code> interface implementation
-
-    @Override
-    public User createUser(UserAdminFactory factory, String name) throws StorageException {
-        LDAPConnection connection = openConnection();
+    /**
+     * Creates the LDAP entry for a new user.
+     * 
+     * @param name
+     *            The name of the user.
+     * @param properties
+     *            Receives the properties of the new user.
+     * @return The entry to add.
+     */
+    private LDAPEntry newUserEntry(String name, Map<String, Object> properties) {
         // fill attribute set (for LDAP creation) and properties (for UserAdmin creation)
         LDAPAttributeSet attributes = new LDAPAttributeSet();
-        Map<String, Object> properties = new HashMap<String, Object>();
         //
         attributes.add(new LDAPAttribute(ConfigurationConstants.ATTR_OBJECTCLASS, m_userObjectclass.split(PATTERN_SPLIT_LIST_VALUE)));
         attributes.add(new LDAPAttribute(m_userIdAttr, name));
@@ -556,20 +668,21 @@ public class StorageProviderImpl
             }
         }
         //
-        LDAPEntry entry = new LDAPEntry(getUserDN(name), attributes);
-        //
-        try {
-            connection.add(entry);
-            return factory.createUser(name, properties, null);
-        } catch (LDAPException e) {
-            throw new StorageException("Error creating user '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
-        } finally {
-            closeConnection();
-        }
+        return new LDAPEntry(getUserDN(name), attributes);
     }
 
-    @Override
-    public Group createGroup(UserAdminFactory factory, String name) throws StorageException {
+    /**
+     * Creates the LDAP entry for a new group.
+     * 
+     * @param name
+     *            The name of the group.
+     * @param properties
+     *            Receives the properties of the new group.
+     * @return The entry to add.
+     * @throws StorageException
+     *             if a credential value could not be created.
+     */
+    private LDAPEntry newGroupEntry(String name, Map<String, Object> properties) throws StorageException {
         // create ou as container for basic and required group objects
         //
         LDAPAttributeSet attributes = new LDAPAttributeSet();
@@ -588,14 +701,37 @@ public class StorageProviderImpl
                 }
             }
         }
+        properties.put(m_groupIdAttr, name);
+        //
+        return new LDAPEntry(getGroupDN(name), attributes);
+    }
+
+    // - public <code>StorageProvider</code> interface implementation
+
+    @Override
+    public User createUser(UserAdminFactory factory, String name) throws StorageException {
+        LDAPConnection connection = openConnection();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        LDAPEntry entry = newUserEntry(name, properties);
         //
-        LDAPEntry entry = new LDAPEntry(getGroupDN(name), attributes);
+        try {
+            connection.add(entry);
+            return factory.createUser(name, properties, null);
+        } catch (LDAPException e) {
+            throw new StorageException("Error creating user '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
+    @Override
+    public Group createGroup(UserAdminFactory factory, String name) throws StorageException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        LDAPEntry entry = newGroupEntry(name, properties);
         //
         LDAPConnection connection = openConnection();
         try {
             connection.add(entry);
-            Map<String, Object> properties = new HashMap<String, Object>();
-            properties.put(m_groupIdAttr, name);
             return factory.createGroup(name, properties, null);
         } catch (LDAPException e) {
             throw new StorageException("Error creating group '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
@@ -619,6 +755,60 @@ public class StorageProviderImpl
         }
     }
 
+    // - public <code>AtomicStorageProvider</code> interface implementation
+
+    @Override
+    public Role createIfAbsent(UserAdminFactory factory, String name, int type) throws StorageException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        LDAPEntry entry;
+        switch (type) {
+            case Role.USER:
+                entry = newUserEntry(name, properties);
+                break;
+            case Role.GROUP:
+                entry = newGroupEntry(name, properties);
+                break;
+            default:
+                throw new StorageException("Invalid role type '" + type + "'");
+        }
+        // lookup and creation share one connection
+        LDAPConnection connection = openConnection();
+        try {
+            if (null != getEntryForName(connection, name)) {
+                return null;
+            }
+            connection.add(entry);
+        } catch (LDAPException e) {
+            if (e.getResultCode() == LDAPException.ENTRY_ALREADY_EXISTS) {
+                // created concurrently
+                return null;
+            }
+            throw new StorageException("Error creating role '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+        return Role.USER == type ? factory.createUser(name, properties, null) : factory.createGroup(name, properties, null);
+    }
+
+    @Override
+    public Role deleteByName(UserAdminFactory factory, String name) throws StorageException {
+        // lookup and deletion share one connection
+        LDAPConnection connection = openConnection();
+        try {
+            LDAPEntry entry = getEntryForName(connection, name);
+            if (null == entry) {
+                return null;
+            }
+            Role role = createRole(factory, entry);
+            connection.delete(entry.getDN());
+            return role;
+        } catch (LDAPException e) {
+            throw new StorageException("Error deleting role with name '" + name + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
     @Override
     public Collection<Role> getMembers(UserAdminFactory factory, Group group) throws StorageException {
         LDAPConnection connection = openConnection();
@@ -643,6 +833,42 @@ public class StorageProviderImpl
         }
     }
 
+    @Override
+    public Collection<String> getMemberNames(Group group) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getMemberNames(connection, group, BASIC_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
+    @Override
+    public Collection<String> getRequiredMemberNames(Group group) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getMemberNames(connection, group, REQUIRED_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
+    @Override
+    public int getMemberCount(Group group) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getMemberDNs(connection, group, BASIC_EXT).size() + getMemberDNs(connection, group, REQUIRED_EXT).size();
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
     @Override
     public boolean addMember(Group group, Role role) throws StorageException {
         LDAPConnection connection = openConnection();
@@ -902,6 +1128,184 @@ public class StorageProviderImpl
         }
     }
 
+    // - public <code>PagedStorageProvider</code> interface implementation
+
+    /**
+     * Retrieves the roles using the simple paged results control: the users
+     * first, then the groups. The continuation holds the part being read, the
+     * number of roles already returned from it and the cookie of the server.
+     * Servers not supporting the control return the whole part at once.
+     * <p>
+     * Cookies are only valid on the connection they were returned on, so
+     * each enumeration uses a connection of its own which is kept for the
+     * next page until the paged search timeout elapses. If the connection is
+     * gone by then, the part is searched again on a new connection and the
+     * roles already returned are skipped - which reads the skipped entries
+     * again and is therefore slow for long enumerations.
+     */
+    @Override
+    public RolePage findRoles(UserAdminFactory factory, String filterString, String continuation, int pageSize) throws StorageException {
+        PageState state = PageState.parse(continuation);
+        if (null == state.search) {
+            state.search = Long.toString(m_pagedSearchIds.incrementAndGet());
+        }
+        PagedSearch search = takePagedSearch(continuation, filterString);
+        LDAPConnection connection = null != search ? search.connection : connect(new LDAPConnection());
+        List<Role> roles = new ArrayList<Role>();
+        boolean kept = false;
+        try {
+            while (roles.size() < pageSize && !state.isDone()) {
+                String base = state.part == PageState.PART_USERS ? m_rootUsersDN : m_rootGroupsDN;
+                List<Role> chunk = new ArrayList<Role>();
+                byte[] cookie;
+                try {
+                    cookie = searchPage(connection, factory, base, filterString, pageSize - roles.size(), state.cookie, 0, chunk);
+                } catch (LDAPException e) {
+                    if (state.cookie.length == 0) {
+                        throw e;
+                    }
+                    chunk.clear();
+                    cookie = searchPage(connection, factory, base, filterString, pageSize - roles.size(), new byte[0], state.returned, chunk);
+                }
+                roles.addAll(chunk);
+                state.advance(chunk.size(), cookie);
+            }
+            if (state.isDone()) {
+                return new RolePage(roles, null);
+            }
+            String next = state.toString();
+            kept = putPagedSearch(next, new PagedSearch(connection, filterString));
+            return new RolePage(roles, next);
+        } catch (LDAPException e) {
+            throw new StorageException("Error finding roles with filter '" + filterString + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            if (!kept) {
+                disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * Removes the search continued by the given continuation from the open
+     * paged searches and closes the expired ones.
+     *
+     * @return The search or null if it is not open (anymore) or uses another
+     *         filter.
+     */
+    private PagedSearch takePagedSearch(String continuation, String filterString) {
+        PagedSearch search = null;
+        List<PagedSearch> expired = new ArrayList<PagedSearch>();
+        synchronized (m_pagedSearches) {
+            if (null != continuation) {
+                search = m_pagedSearches.remove(continuation);
+            }
+            long now = System.currentTimeMillis();
+            Iterator<PagedSearch> iterator = m_pagedSearches.values().iterator();
+            while (iterator.hasNext()) {
+                PagedSearch other = iterator.next();
+                if (other.expires <= now) {
+                    iterator.remove();
+                    expired.add(other);
+                }
+            }
+        }
+        if (null != search && (search.expires <= System.currentTimeMillis() || !equal(search.filter, filterString))) {
+            expired.add(search);
+            search = null;
+        }
+        for (PagedSearch other : expired) {
+            disconnect(other.connection);
+        }
+        return search;
+    }
+
+    private static boolean equal(String a, String b) {
+        return null == a ? null == b : a.equals(b);
+    }
+
+    /**
+     * Closes the connections of all open paged searches. Their continuations
+     * are searched again on a new connection.
+     */
+    void closePagedSearches() {
+        List<PagedSearch> searches;
+        synchronized (m_pagedSearches) {
+            searches = new ArrayList<PagedSearch>(m_pagedSearches.values());
+            m_pagedSearches.clear();
+        }
+        for (PagedSearch search : searches) {
+            disconnect(search.connection);
+        }
+    }
+
+    /**
+     * Keeps the connection of a paged search for the next page.
+     *
+     * @return True if the search was kept, false if paged searches are not
+     *         kept.
+     */
+    private boolean putPagedSearch(String continuation, PagedSearch search) {
+        long timeout = m_pagedSearchTimeout;
+        if (timeout <= 0) {
+            return false;
+        }
+        search.expires = System.currentTimeMillis() + timeout;
+        synchronized (m_pagedSearches) {
+            m_pagedSearches.put(continuation, search);
+        }
+        return true;
+    }
+
+    private static void disconnect(LDAPConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (LDAPException e) {
+            // the connection is dropped anyway
+        }
+    }
+
+    /**
+     * Searches one page below the given base.
+     * 
+     * @param skip
+     *            The number of entries to skip before the page.
+     * @param roles
+     *            Receives the roles of the page.
+     * @return The cookie to continue with, empty if the search is complete.
+     */
+    private byte[] searchPage(LDAPConnection connection, UserAdminFactory factory, String base, String filterString, int size, byte[] cookie, int skip,
+                              List<Role> roles) throws LDAPException {
+        ASN1Sequence request = new ASN1Sequence();
+        request.add(new ASN1Integer(skip + size));
+        request.add(new ASN1OctetString(cookie));
+        LDAPSearchConstraints constraints = connection.getSearchConstraints();
+        constraints.setControls(new LDAPControl(PAGED_RESULTS_OID, false, request.getEncoding(new LBEREncoder())));
+        LDAPSearchResults result = connection.search(base, LDAPConnection.SCOPE_ONE, filterString, null, false, constraints);
+        int skipped = 0;
+        while (result.hasMore()) {
+            LDAPEntry entry = result.next();
+            if (skipped < skip) {
+                skipped++;
+                continue;
+            }
+            Role role = createRole(factory, entry);
+            if (null != role) {
+                roles.add(role);
+            }
+        }
+        LDAPControl[] controls = result.getResponseControls();
+        if (null != controls) {
+            for (LDAPControl control : controls) {
+                if (PAGED_RESULTS_OID.equals(control.getID())) {
+                    ASN1Sequence response = (ASN1Sequence) new LBERDecoder().decode(control.getValue());
+                    return ((ASN1OctetString) response.get(1)).byteValue();
+                }
+            }
+        }
+        // paging not supported: the search returned all entries
+        return new byte[0];
+    }
+
     private void addResults(UserAdminFactory factory, Collection<Role> roles, LDAPSearchResults result)
             throws LDAPException
     {
@@ -991,5 +1395,99 @@ public class StorageProviderImpl
         m_groupEntryIdAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ENTRY_ATTR_ID, ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_ID);
         m_groupEntryMemberAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ENTRY_ATTR_MEMBER, ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_MEMBER);
 
+        String timeout = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_LDAP_PAGED_TIMEOUT, ConfigurationConstants.DEFAULT_LDAP_PAGED_TIMEOUT);
+        try {
+            m_pagedSearchTimeout = Long.parseLong(timeout.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(ConfigurationConstants.PROP_LDAP_PAGED_TIMEOUT, "not a number: " + timeout);
+        }
+        // the kept connections may use the old server or access user
+        closePagedSearches();
+    }
+
+    /**
+     * The connection of a paged search kept for the next page.
+     */
+    private static final class PagedSearch {
+
+        private final LDAPConnection connection;
+        private final String         filter;
+        private long                 expires;
+
+        private PagedSearch(LDAPConnection connection, String filter) {
+            this.connection = connection;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * The position of a paged search, encoded as continuation token.
+     */
+    private static final class PageState {
+
+        private static final int PART_USERS  = 0;
+        private static final int PART_GROUPS = 1;
+        private static final int PART_DONE   = 2;
+
+        /**
+         * Distinguishes concurrent enumerations which got the same cookie.
+         */
+        private String           search;
+        private int              part;
+        private int              returned;
+        private byte[]           cookie;
+
+        private PageState(String search, int part, int returned, byte[] cookie) {
+            this.search = search;
+            this.part = part;
+            this.returned = returned;
+            this.cookie = cookie;
+        }
+
+        private static PageState parse(String continuation) throws StorageException {
+            if (null == continuation) {
+                return new PageState(null, PART_USERS, 0, new byte[0]);
+            }
+            String[] data = continuation.split(":", -1);
+            try {
+                if (data.length != 4 || data[3].length() % 2 != 0) {
+                    throw new NumberFormatException();
+                }
+                byte[] cookie = new byte[data[3].length() / 2];
+                for (int i = 0; i < cookie.length; i++) {
+                    cookie[i] = (byte) Integer.parseInt(data[3].substring(2 * i, 2 * i + 2), 16);
+                }
+                return new PageState(data[0], Integer.parseInt(data[1]), Integer.parseInt(data[2]), cookie);
+            } catch (NumberFormatException e) {
+                throw new StorageException("Invalid continuation '" + continuation + "'");
+            }
+        }
+
+        private boolean isDone() {
+            return part >= PART_DONE;
+        }
+
+        /**
+         * Records a page read from the current part.
+         */
+        private void advance(int count, byte[] nextCookie) {
+            if (nextCookie.length == 0) {
+                part++;
+                returned = 0;
+            } else {
+                returned += count;
+            }
+            cookie = nextCookie;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(search).append(':').append(part).append(':').append(returned).append(':');
+            for (byte b : cookie) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        }
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * Reads the roles page by page from an embedded directory server.
+ */
+public class PagedSearchTest {
+
+    private static final int        USERS       = 5;
+    private static final int        GROUPS      = 2;
+
+    private InMemoryDirectoryServer m_server;
+    private final AtomicInteger     m_connected = new AtomicInteger();
+    private Map<String, String>     m_properties;
+    private StorageProviderImpl     m_provider;
+    private UserAdminFactory        m_factory;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(ConfigurationConstants.DEFAULT_LDAP_ROOT_DN);
+        config.setSchema(null);
+        // counts the open connections from the access log
+        config.setAccessLogHandler(new Handler() {
+
+            @Override
+            public void publish(LogRecord record) {
+                String message = record.getMessage();
+                if (message.contains(" CONNECT ")) {
+                    m_connected.incrementAndGet();
+                } else if (message.contains(" DISCONNECT ")) {
+                    m_connected.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        m_server = new InMemoryDirectoryServer(config);
+        m_server.add("dn: dc=ops4j,dc=org", "objectClass: domain", "dc: ops4j");
+        m_server.add("dn: ou=people,dc=ops4j,dc=org", "objectClass: organizationalUnit", "ou: people");
+        m_server.add("dn: ou=groups,dc=ops4j,dc=org", "objectClass: organizationalUnit", "ou: groups");
+        for (int i = 0; i < USERS; i++) {
+            m_server.add("dn: uid=user" + i + ",ou=people,dc=ops4j,dc=org", "objectClass: organizationalPerson", "objectClass: inetOrgPerson",
+                         "objectClass: person", "objectClass: top", "uid: user" + i, "cn: user" + i, "sn: user" + i);
+        }
+        for (int i = 0; i < GROUPS; i++) {
+            m_server.add("dn: ou=group" + i + ",ou=groups,dc=ops4j,dc=org", "objectClass: organizationalUnit",
+                         "objectClass: simpleSecurityObject", "ou: group" + i, "userPassword: secret");
+        }
+        m_server.startListening();
+        //
+        m_properties = new HashMap<String, String>();
+        m_properties.put(ConfigurationConstants.PROP_LDAP_SERVER_URL, "localhost");
+        m_properties.put(ConfigurationConstants.PROP_LDAP_SERVER_PORT, Integer.toString(m_server.getListenPort()));
+        m_properties.put(ConfigurationConstants.PROP_LDAP_ROOT_DN, ConfigurationConstants.DEFAULT_LDAP_ROOT_DN);
+        m_provider = new StorageProviderImpl(new com.novell.ldap.LDAPConnection());
+        m_provider.configurationUpdated(m_properties);
+        m_factory = new UserAdminFactory() {
+
+            @Override
+            public User createUser(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+                return role(User.class, name);
+            }
+
+            @Override
+            public Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+                return role(Group.class, name);
+            }
+
+            @Override
+            public String intern(String name) {
+                return name;
+            }
+
+            @Override
+            public void fireEvent(int type, Role role) {
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        m_provider.closePagedSearches();
+        m_server.shutDown(true);
+    }
+
+    private static <R extends Role> R role(Class<R> type, String name) {
+        R role = EasyMock.createNiceMock(type);
+        EasyMock.expect(role.getName()).andReturn(name).anyTimes();
+        EasyMock.replay(role);
+        return role;
+    }
+
+    private static Set<String> expectedNames() {
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < USERS; i++) {
+            names.add("user" + i);
+        }
+        for (int i = 0; i < GROUPS; i++) {
+            names.add("group" + i);
+        }
+        return names;
+    }
+
+    private static void addNames(List<String> names, RolePage page) {
+        Assert.assertTrue("page too large", page.getRoles().size() <= 2);
+        for (Role role : page.getRoles()) {
+            names.add(role.getName());
+        }
+    }
+
+    /**
+     * Waits for the server to see the given number of open connections.
+     */
+    private void assertConnected(int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (m_connected.get() != expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("open connections", expected, m_connected.get());
+    }
+
+    @Test
+    public void readAllPages() throws Exception {
+        List<String> names = new ArrayList<String>();
+        String continuation = null;
+        int pages = 0;
+        do {
+            RolePage page = m_provider.findRoles(m_factory, null, continuation, 2);
+            addNames(names, page);
+            continuation = page.getContinuation();
+            pages++;
+        } while (null != continuation && pages <= USERS + GROUPS);
+        Assert.assertNull("enumeration not complete", continuation);
+        Assert.assertEquals("duplicate roles: " + names, names.size(), new HashSet<String>(names).size());
+        Assert.assertEquals(expectedNames(), new HashSet<String>(names));
+        assertConnected(0);
+    }
+
+    @Test
+    public void searchKeptForNextPage() throws Exception {
+        RolePage page = m_provider.findRoles(m_factory, null, null, 2);
+        Assert.assertNotNull(page.getContinuation());
+        assertConnected(1);
+        m_provider.closePagedSearches();
+        assertConnected(0);
+    }
+
+    @Test
+    public void continueAfterReconfiguration() throws Exception {
+        List<String> names = new ArrayList<String>();
+        RolePage page = m_provider.findRoles(m_factory, null, null, 2);
+        addNames(names, page);
+        assertConnected(1);
+        m_provider.configurationUpdated(m_properties);
+        assertConnected(0);
+        String continuation = page.getContinuation();
+        while (null != continuation) {
+            page = m_provider.findRoles(m_factory, null, continuation, 2);
+            addNames(names, page);
+            continuation = page.getContinuation();
+        }
+        Assert.assertEquals("duplicate roles: " + names, names.size(), new HashSet<String>(names).size());
+        Assert.assertEquals(expectedNames(), new HashSet<String>(names));
+    }
+
+    @Test
+    public void continueWithOtherFilter() throws Exception {
+        RolePage page = m_provider.findRoles(m_factory, null, null, 2);
+        assertConnected(1);
+        // the kept search uses another filter: it is closed and not reused
+        page = m_provider.findRoles(m_factory, "(objectClass=*)", page.getContinuation(), 2);
+        Assert.assertFalse(page.getRoles().isEmpty());
+        assertConnected(1);
+    }
+}
@@ -20,25 +20,35 @@ package org.ops4j.pax.useradmin.provider.preferences.internal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.ops4j.pax.useradmin.provider.preferences.ConfigurationConstants;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PropertyIndex;
+import org.ops4j.pax.useradmin.service.spi.QueryPlan;
+import org.ops4j.pax.useradmin.service.spi.QueryPlanner;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
-import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.prefs.BackingStoreException;
@@ -51,7 +61,7 @@ import org.osgi.service.useradmin.User;
 /**
  * A PreferencesService based <code>StorageProvider</code> service.
  */
-public class PreferencesStorageProvider implements StorageProvider, CredentialProvider {
+public class PreferencesStorageProvider implements AtomicStorageProvider, PagedStorageProvider, MembershipStorageProvider, CredentialProvider {
 
     /**
      * 
@@ -95,6 +105,12 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
 
     private ServiceRegistration<StorageProvider> serviceRegistration;
 
+    private volatile PropertyIndex               m_propertyIndex         = new PropertyIndex(Collections.<String> emptySet());
+
+    private boolean                              m_propertyIndexLoaded   = false;
+
+    private final QueryPlanner                   m_queryPlanner          = new QueryPlanner();
+
     PreferencesStorageProvider(PreferencesService preferencesService, Long trackedServiceID) throws StorageException {
         m_preferencesService = preferencesService;
         this.trackedServiceID = trackedServiceID;
@@ -125,6 +141,18 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return properties;
     }
 
+    /**
+     * Loads the attributes of a role with keys canonicalized by the given
+     * factory.
+     */
+    private Map<String, Object> loadAttributes(UserAdminFactory factory, Preferences node) throws BackingStoreException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (String key : node.keys()) {
+            properties.put(factory.intern(key), loadAttribute(node, key));
+        }
+        return properties;
+    }
+
     private Object loadAttribute(Preferences node, String key) throws BackingStoreException {
         Preferences propertyTypes = node.node(TYPES_NODE);
         if (propertyTypes.getBoolean(key, true)) {
@@ -165,7 +193,7 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         //
         Map<String, Object> properties = null;
         if (node.nodeExists(PROPERTIES_NODE)) {
-            properties = loadAttributes(node.node(PROPERTIES_NODE));
+            properties = loadAttributes(factory, node.node(PROPERTIES_NODE));
         }
         //
         if (null != filter) {
@@ -180,7 +208,10 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         //
         Set<String> credentials = null;
         if (node.nodeExists(CREDENTIALS_NODE)) {
-            credentials = new HashSet<String>(Arrays.asList(node.node(CREDENTIALS_NODE).childrenNames()));
+            credentials = new HashSet<String>();
+            for (String key : node.node(CREDENTIALS_NODE).childrenNames()) {
+                credentials.add(factory.intern(key));
+            }
         }
         //
         int type = new Integer(node.get(NODE_TYPE, "666"));
@@ -198,8 +229,18 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return role;
     }
 
-    private Collection<Role> loadRoles(UserAdminFactory factory, Filter filter) throws BackingStoreException, StorageException {
-        String[] roleNames = getRootNode().childrenNames();
+    private Collection<Role> loadRoles(UserAdminFactory factory, QueryPlan plan) throws BackingStoreException, StorageException {
+        Collection<String> roleNames = null;
+        Filter filter = null;
+        if (null != plan) {
+            filter = plan.getFilter();
+            if (!m_propertyIndex.getKeys().isEmpty()) {
+                roleNames = plan.getCandidates(getPropertyIndex());
+            }
+        }
+        if (null == roleNames) {
+            roleNames = Arrays.asList(getRootNode().childrenNames());
+        }
         Collection<Role> roles = new ArrayList<Role>();
         for (String name : roleNames) {
             Role role = loadRole(factory, name, filter);
@@ -227,6 +268,21 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return members;
     }
 
+    private Collection<String> loadMemberNames(Group group, String memberType) throws BackingStoreException {
+        Collection<String> names = new ArrayList<String>();
+        Preferences rootNode = getRootNode();
+        Preferences node = rootNode.node(group.getName());
+        if (node.nodeExists(MEMBERS_NODE)) {
+            Preferences membersNode = node.node(MEMBERS_NODE);
+            for (String name : membersNode.keys()) {
+                if (memberType.equals(membersNode.get(name, "")) && rootNode.nodeExists(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
     // TODO: use when removing users - check & test
     private void removeFromGroups(String memberName) throws BackingStoreException, StorageException {
         String[] roleNames = getRootNode().childrenNames();
@@ -239,6 +295,24 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         }
     }
 
+    /**
+     * Returns the property index, filling it from the stored properties of
+     * all roles when it is used for the first time.
+     */
+    private synchronized PropertyIndex getPropertyIndex() throws BackingStoreException, StorageException {
+        if (!m_propertyIndexLoaded) {
+            m_propertyIndex.clear();
+            for (String name : getRootNode().childrenNames()) {
+                Preferences node = getRootNode().node(name);
+                if (node.nodeExists(PROPERTIES_NODE)) {
+                    m_propertyIndex.putAll(name, loadAttributes(node.node(PROPERTIES_NODE)));
+                }
+            }
+            m_propertyIndexLoaded = true;
+        }
+        return m_propertyIndex;
+    }
+
     private Preferences getRootNode() throws StorageException {
         if (null == m_rootNode) {
             PreferencesService service = getPreferencesService();
@@ -274,12 +348,13 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     }
 
     @Override
-    public boolean deleteRole(Role role) throws StorageException {
+    public synchronized boolean deleteRole(Role role) throws StorageException {
         try {
             if (getRootNode().nodeExists(role.getName())) {
                 removeFromGroups(role.getName());
                 getRootNode().node(role.getName()).removeNode();
                 getRootNode().flush();
+                m_propertyIndex.removeRole(role.getName());
                 return true;
             }
         } catch (BackingStoreException e) {
@@ -288,6 +363,34 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return false;
     }
 
+    @Override
+    public synchronized Role createIfAbsent(UserAdminFactory factory, String name, int type) throws StorageException {
+        try {
+            if (getRootNode().nodeExists(name)) {
+                return null;
+            }
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error checking node '" + name, e);
+        }
+        switch (type) {
+            case Role.USER:
+                return createUser(factory, name);
+            case Role.GROUP:
+                return createGroup(factory, name);
+            default:
+                throw new StorageException("Invalid role type for role '" + name + "': " + type);
+        }
+    }
+
+    @Override
+    public synchronized Role deleteByName(UserAdminFactory factory, String name) throws StorageException {
+        Role role = getRole(factory, name);
+        if (null != role && deleteRole(role)) {
+            return role;
+        }
+        return null;
+    }
+
     @Override
     public Collection<Role> getMembers(UserAdminFactory factory, Group group) throws StorageException {
         try {
@@ -306,6 +409,29 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         }
     }
 
+    @Override
+    public Collection<String> getMemberNames(Group group) throws StorageException {
+        try {
+            return loadMemberNames(group, BASIC_MEMBER_STRING);
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving basic members of group '" + group.getName(), e);
+        }
+    }
+
+    @Override
+    public Collection<String> getRequiredMemberNames(Group group) throws StorageException {
+        try {
+            return loadMemberNames(group, REQUIRED_MEMBER_STRING);
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving required members of group '" + group.getName(), e);
+        }
+    }
+
+    @Override
+    public int getMemberCount(Group group) throws StorageException {
+        return getMemberNames(group).size() + getRequiredMemberNames(group).size();
+    }
+
     @Override
     public boolean addMember(Group group, Role role) throws StorageException {
         return addMember(group, role, BASIC_MEMBER_STRING);
@@ -349,7 +475,7 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     }
 
     @Override
-    public void setRoleAttribute(Role role, String key, Object value) throws StorageException {
+    public synchronized void setRoleAttribute(Role role, String key, Object value) throws StorageException {
         try {
             Preferences node = getRootNode().node(role.getName() + PATH_SEPARATOR + PROPERTIES_NODE);
             if (value instanceof String) {
@@ -360,17 +486,19 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
                 throw new StorageException("Invalid value type '" + value.getClass().getName() + "' - only String or byte[] are allowed.");
             }
             node.flush();
+            m_propertyIndex.put(role.getName(), key, value);
         } catch (BackingStoreException e) {
             throw new StorageException("Error storing attribute '" + key + "' = '" + value + "' for role '" + role.getName(), e);
         }
     }
 
     @Override
-    public void removeRoleAttribute(Role role, String key) throws StorageException {
+    public synchronized void removeRoleAttribute(Role role, String key) throws StorageException {
         try {
             Preferences node = getRootNode().node(role.getName() + PATH_SEPARATOR + PROPERTIES_NODE);
             node.remove(key);
             getRootNode().flush();
+            m_propertyIndex.remove(role.getName(), key);
         } catch (IllegalStateException e) {
             throw new StorageException("Error removing attribute from role '" + role.getName(), e);
         } catch (BackingStoreException e) {
@@ -379,13 +507,14 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     }
 
     @Override
-    public void clearRoleAttributes(Role role) throws StorageException {
+    public synchronized void clearRoleAttributes(Role role) throws StorageException {
         try {
             Preferences node = getRootNode().node(role.getName());
             if (node.nodeExists(PROPERTIES_NODE)) {
                 node.node(PROPERTIES_NODE).removeNode();
                 node.flush();
             }
+            m_propertyIndex.removeRole(role.getName());
         } catch (BackingStoreException e) {
             throw new StorageException("Error clearing attributes of role '" + role.getName(), e);
         }
@@ -403,8 +532,8 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     @Override
     public User getUser(UserAdminFactory factory, String key, String value) throws StorageException {
         try {
-            Filter filter = FrameworkUtil.createFilter("(" + key + "=" + value + ")");
-            Collection<Role> roles = loadRoles(factory, filter);
+            QueryPlan plan = m_queryPlanner.plan("(" + key + "=" + value + ")");
+            Collection<Role> roles = loadRoles(factory, plan);
             Collection<User> users = new ArrayList<User>();
             for (Role role : roles) {
                 if (Role.USER == role.getType()) {
@@ -426,11 +555,46 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     @Override
     public Collection<Role> findRoles(UserAdminFactory factory, String filterString) throws StorageException {
         try {
-            Filter filter = null;
+            QueryPlan plan = null;
             if (null != filterString) {
-                filter = FrameworkUtil.createFilter(filterString);
+                plan = m_queryPlanner.plan(filterString);
+            }
+            return loadRoles(factory, plan);
+        } catch (InvalidSyntaxException e) {
+            throw new StorageException("Invalid filter '" + e.getFilter(), e);
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving roles for filter '" + filterString + "'", e);
+        }
+    }
+
+    @Override
+    public RolePage findRoles(UserAdminFactory factory, String filterString, String continuation, int pageSize) throws StorageException {
+        try {
+            QueryPlan plan = null;
+            Collection<String> candidates = null;
+            if (null != filterString) {
+                plan = m_queryPlanner.plan(filterString);
+                if (!m_propertyIndex.getKeys().isEmpty()) {
+                    candidates = plan.getCandidates(getPropertyIndex());
+                }
+            }
+            if (null == candidates) {
+                candidates = Arrays.asList(getRootNode().childrenNames());
+            }
+            // the continuation is the name of the last role examined
+            TreeSet<String> roleNames = new TreeSet<String>(candidates);
+            Iterator<String> names = (null != continuation ? roleNames.tailSet(continuation, false) : roleNames).iterator();
+            Filter filter = null != plan ? plan.getFilter() : null;
+            List<Role> roles = new ArrayList<Role>();
+            String last = continuation;
+            while (roles.size() < pageSize && names.hasNext()) {
+                last = names.next();
+                Role role = loadRole(factory, last, filter);
+                if (null != role) {
+                    roles.add(role);
+                }
             }
-            return loadRoles(factory, filter);
+            return new RolePage(roles, names.hasNext() ? last : null);
         } catch (InvalidSyntaxException e) {
             throw new StorageException("Invalid filter '" + e.getFilter(), e);
         } catch (BackingStoreException e) {
@@ -550,7 +714,8 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     }
 
     @Override
-    public void configurationUpdated(Map<String, ?> properties) {
-        // We don't care here...
+    public synchronized void configurationUpdated(Map<String, ?> properties) {
+        m_propertyIndex = PropertyIndex.fromConfiguration(properties);
+        m_propertyIndexLoaded = false;
     }
 }
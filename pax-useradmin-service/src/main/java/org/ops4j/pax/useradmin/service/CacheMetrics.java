@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * A snapshot of the usage of one cache.
+ *
+ * @see PaxCacheMetricsService
+ */
+public final class CacheMetrics {
+
+    private final String cache;
+
+    private final int    size;
+
+    private final long   hits;
+
+    private final long   misses;
+
+    /**
+     * @param cache
+     *            The name of the cache.
+     * @param size
+     *            The number of entries cached.
+     * @param hits
+     *            The number of lookups answered from the cache.
+     * @param misses
+     *            The number of lookups not answered from the cache.
+     */
+    public CacheMetrics(String cache, int size, long hits, long misses) {
+        this.cache = cache;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * @return The name of the cache.
+     */
+    public String getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The number of entries cached.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups not answered from the cache, including
+     *         the ones finding an expired entry.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return cache + "[size=" + size + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * A snapshot of the event delivery to one <code>UserAdminListener</code>.
+ *
+ * @see PaxEventMetricsService
+ */
+public final class EventListenerMetrics {
+
+    private final String listener;
+
+    private final int    queueDepth;
+
+    private final long   lag;
+
+    private final long   delivered;
+
+    private final long   dropped;
+
+    private final long   coalesced;
+
+    private final long   failed;
+
+    private final long   averageLatency;
+
+    private final long   maxLatency;
+
+    /**
+     * @param listener
+     *            A description of the listener.
+     * @param queueDepth
+     *            The number of events waiting for delivery.
+     * @param lag
+     *            The time in milliseconds the oldest waiting event is queued.
+     * @param delivered
+     *            The number of events delivered.
+     * @param dropped
+     *            The number of events dropped because the queue was full.
+     * @param coalesced
+     *            The number of events merged into queued events because the
+     *            queue was full.
+     * @param failed
+     *            The number of events the listener threw an exception for.
+     * @param averageLatency
+     *            The average time in microseconds the listener took per event.
+     * @param maxLatency
+     *            The maximum time in microseconds the listener took for an
+     *            event.
+     */
+    public EventListenerMetrics(String listener, int queueDepth, long lag, long delivered, long dropped,
+                                long coalesced, long failed, long averageLatency, long maxLatency) {
+        this.listener = listener;
+        this.queueDepth = queueDepth;
+        this.lag = lag;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.coalesced = coalesced;
+        this.failed = failed;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * @return A description of the listener.
+     */
+    public String getListener() {
+        return listener;
+    }
+
+    /**
+     * @return The number of events waiting for delivery.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The time in milliseconds the oldest waiting event is queued,
+     *         zero if no event is waiting.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * @return The number of events delivered.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return The number of events dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The number of events merged into queued events because the
+     *         queue was full.
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return The number of events the listener threw an exception for.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The average time in microseconds the listener took per event.
+     */
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    /**
+     * @return The maximum time in microseconds the listener took for an
+     *         event.
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return listener + "[queued=" + queueDepth + ", lag=" + lag + "ms, delivered=" + delivered + ", dropped="
+                + dropped + ", coalesced=" + coalesced + ", failed=" + failed + ", latency=" + averageLatency
+                + "/" + maxLatency + "us]";
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import org.osgi.service.useradmin.Authorization;
+
+/**
+ * Extension of the <code>Authorization</code> interface implemented by the
+ * <code>Authorization</code> objects returned by the Pax UserAdmin service.
+ * <p>
+ * If {@link PaxUserAdminConstants#PROPERTY_AUTHORIZATION_SNAPSHOT} is set, an
+ * authorization computes the roles of its user on first use and keeps them:
+ * later changes of the role data are not reflected anymore, which can be
+ * detected using {@link #isStale()}.
+ */
+public interface PaxAuthorization extends Authorization {
+
+    /**
+     * Checks a number of roles at once - the roles of the user are computed
+     * only once for all given names.
+     * 
+     * @see Authorization#hasRole(String)
+     * @param names
+     *            The names of the roles to check.
+     * @return An array containing for each given name (in the same order)
+     *         true if the user has the role.
+     */
+    boolean[] hasRoles(String... names);
+
+    /**
+     * @see #hasRoles(String...)
+     * @param names
+     *            The names of the roles to check.
+     * @return True if the user has at least one of the given roles.
+     */
+    boolean hasAnyRole(String... names);
+
+    /**
+     * @see #hasRoles(String...)
+     * @param names
+     *            The names of the roles to check.
+     * @return True if the user has all of the given roles.
+     */
+    boolean hasAllRoles(String... names);
+
+    /**
+     * Returns the generation of the role data this authorization is based
+     * on. The generation is increased whenever roles or memberships are
+     * changed, so a higher value denotes newer data.
+     * 
+     * @return The generation of the role data used - or the current
+     *         generation if no data has been used yet.
+     */
+    long getGeneration();
+
+    /**
+     * Checks if role changes happened which might affect the roles of the
+     * user since the roles were computed. This is never the case for
+     * authorizations not working on a snapshot.
+     * 
+     * @return True if the roles of the user might have changed.
+     */
+    boolean isStale();
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import org.osgi.service.useradmin.User;
+
+/**
+ * Service registered by the Pax UserAdmin next to each <code>UserAdmin</code>
+ * service (with the same service properties) to evaluate authorizations in
+ * bulk.
+ */
+public interface PaxAuthorizationService {
+
+    /**
+     * @see org.osgi.service.useradmin.UserAdmin#getAuthorization(User)
+     * @param user
+     *            The user to create the authorization for.
+     * @return The <code>PaxAuthorization</code> object for the given user.
+     */
+    PaxAuthorization getAuthorization(User user);
+
+    /**
+     * Checks the given roles for each of the given users. The roles of each
+     * user are computed only once for all given names.
+     * 
+     * @param users
+     *            The users to check.
+     * @param names
+     *            The names of the roles to check.
+     * @return A matrix containing for each user (first index) and each role
+     *         (second index) true if the user has the role.
+     */
+    boolean[][] authorizeMatrix(User[] users, String[] names);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import java.util.List;
+
+/**
+ * Service registered by the Pax UserAdmin next to each <code>UserAdmin</code>
+ * service (with the same service properties) to monitor the caches used to
+ * access the storage provider.
+ * <p>
+ * The storage caches are enabled by
+ * {@link PaxUserAdminConstants#PROPERTY_CACHE_ENABLED}, the cache of missing
+ * roles by {@link PaxUserAdminConstants#PROPERTY_NEGATIVE_CACHE_TTL}.
+ * Reconfiguring the service replaces the caches and thus resets the
+ * counters.
+ */
+public interface PaxCacheMetricsService {
+
+    /**
+     * @return The current metrics of all enabled caches.
+     */
+    List<CacheMetrics> getCacheMetrics();
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * A batch of events started by {@link PaxEventBatchService#beginBatch()}.
+ */
+public interface PaxEventBatch {
+
+    /**
+     * Ends the batch and delivers the events collected. Nothing happens if
+     * the batch has already ended, e.g. because the thread started another
+     * batch meanwhile. Must be called by the thread that started the batch.
+     */
+    void end();
+}
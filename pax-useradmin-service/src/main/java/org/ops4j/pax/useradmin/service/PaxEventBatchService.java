@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * Service registered by the Pax UserAdmin next to each <code>UserAdmin</code>
+ * service (with the same service properties) to group the events caused by a
+ * series of changes, e.g. updating many properties of a user.
+ * <p>
+ * Between {@link #beginBatch()} and {@link PaxEventBatch#end()} the events
+ * fired for changes made by the calling thread are collected. Subsequent
+ * <code>ROLE_CHANGED</code> events of a role are merged into the pending
+ * event of that role, so each role is reported once per batch (unless it is
+ * removed and created again). The collected events are delivered to
+ * <code>UserAdminListener</code>s and the <code>EventAdmin</code> when the
+ * batch ends, which must be done in a finally block:
+ *
+ * <pre>
+ * PaxEventBatch batch = batchService.beginBatch();
+ * try {
+ *     // change roles ...
+ * } finally {
+ *     batch.end();
+ * }
+ * </pre>
+ */
+public interface PaxEventBatchService {
+
+    /**
+     * Starts collecting the events of the calling thread. Batches are not
+     * nested: a batch of the calling thread which has not ended yet is ended
+     * first and its events are delivered - so a batch which was not ended,
+     * e.g. because of an exception, does not hold back events forever.
+     *
+     * @return The batch, to be ended by the calling thread.
+     */
+    PaxEventBatch beginBatch();
+}
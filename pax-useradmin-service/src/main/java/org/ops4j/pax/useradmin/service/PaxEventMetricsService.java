@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import java.util.List;
+
+/**
+ * Service registered by the Pax UserAdmin next to each <code>UserAdmin</code>
+ * service (with the same service properties) to monitor the delivery of
+ * events to <code>UserAdminListener</code>s.
+ * <p>
+ * Each listener receives its events in order from a bounded queue of its
+ * own, so a slow listener does not delay the others. What happens when a
+ * queue is full is configured by
+ * {@link PaxUserAdminConstants#PROPERTY_EVENT_OVERFLOW_POLICY}.
+ */
+public interface PaxEventMetricsService {
+
+    /**
+     * @return The current metrics of all listeners events were delivered to.
+     */
+    List<EventListenerMetrics> getEventListenerMetrics();
+}
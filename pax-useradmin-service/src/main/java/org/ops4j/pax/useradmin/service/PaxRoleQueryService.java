@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Service registered by the Pax UserAdmin next to each <code>UserAdmin</code>
+ * service (with the same service properties) to enumerate large numbers of
+ * roles page by page, e.g. for administration interfaces or exports. Unlike
+ * <code>UserAdmin.getRoles(String)</code> only the roles of the current page
+ * are held in memory. The members of a group can be listed by name, without
+ * reading the member roles themselves.
+ * <p>
+ * Errors of the underlying storage are reported as
+ * <code>IllegalStateException</code>s.
+ */
+public interface PaxRoleQueryService {
+
+    /**
+     * Retrieves a page of the roles matching the given filter.
+     *
+     * @see org.osgi.service.useradmin.UserAdmin#getRoles(String)
+     * @param filter
+     *            The filter the roles must match or null for all roles.
+     * @param continuation
+     *            The token returned with the previous page or null to start
+     *            with the first page.
+     * @param pageSize
+     *            The maximum number of roles returned.
+     * @return The page of roles.
+     * @throws InvalidSyntaxException
+     *             if the filter is invalid
+     */
+    RolePage getRoles(String filter, String continuation, int pageSize) throws InvalidSyntaxException;
+
+    /**
+     * Returns an iterator over the roles matching the given filter which
+     * retrieves the roles page by page as it advances.
+     *
+     * @param filter
+     *            The filter the roles must match or null for all roles.
+     * @param pageSize
+     *            The number of roles retrieved at once.
+     * @return An iterator over the roles, <code>remove()</code> is not
+     *         supported.
+     * @throws InvalidSyntaxException
+     *             if the filter is invalid
+     */
+    Iterator<Role> iterateRoles(String filter, int pageSize) throws InvalidSyntaxException;
+
+    /**
+     * Retrieves the names of the basic members of the given group.
+     *
+     * @see Group#getMembers()
+     * @param group
+     *            The group.
+     * @return The names of the basic members, never null.
+     */
+    Collection<String> getMemberNames(Group group);
+
+    /**
+     * Retrieves the names of the required members of the given group.
+     *
+     * @see Group#getRequiredMembers()
+     * @param group
+     *            The group.
+     * @return The names of the required members, never null.
+     */
+    Collection<String> getRequiredMemberNames(Group group);
+
+    /**
+     * Counts the members of the given group.
+     *
+     * @param group
+     *            The group.
+     * @return The number of basic plus the number of required members.
+     */
+    int getMemberCount(Group group);
+}
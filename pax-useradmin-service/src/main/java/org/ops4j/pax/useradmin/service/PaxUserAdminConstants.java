@@ -62,4 +62,82 @@ public interface PaxUserAdminConstants {
      */
     String PROPERTY_ENCRYPTION_SECURERANDOM_SALTLENGTH = "org.ops4j.pax.useradmin.encryption.securerandom.saltlength";
 
+    /**
+     * (optional) property that controls if Authorization objects compute the
+     * roles of their user once and keep them (value "true"), if not given,
+     * the roles are looked up on each call.
+     */
+    String PROPERTY_AUTHORIZATION_SNAPSHOT             = "org.ops4j.pax.useradmin.authorization.snapshot";
+
+    /**
+     * (optional) property that controls the time in milliseconds after which
+     * the memberships used to evaluate role implications are read again from
+     * the storage provider (0 never reads them again), if not given, they are
+     * only read again when the configuration changes. Without it changes not
+     * made through this service, e.g. by other nodes sharing the storage, are
+     * not seen.
+     */
+    String PROPERTY_ROLE_GRAPH_REFRESH                 = "org.ops4j.pax.useradmin.rolegraph.refresh";
+
+    /**
+     * (optional) property that controls if roles, member lists and credential
+     * keys read from the storage provider are cached (value "true"), if not
+     * given, every lookup is passed to the storage provider.
+     */
+    String PROPERTY_CACHE_ENABLED                      = "org.ops4j.pax.useradmin.cache.enabled";
+
+    /**
+     * (optional) property that controls the maximum number of entries kept by
+     * each cache, if not given, an internal default is used.
+     */
+    String PROPERTY_CACHE_SIZE                         = "org.ops4j.pax.useradmin.cache.size";
+
+    /**
+     * (optional) property that controls the time in milliseconds cached
+     * entries are kept (0 keeps them until they are evicted), if not given, an
+     * internal default is used.
+     */
+    String PROPERTY_CACHE_TTL                          = "org.ops4j.pax.useradmin.cache.ttl";
+
+    /**
+     * (optional) property that controls the time in milliseconds names of
+     * roles which could not be found are remembered (0 disables this), if not
+     * given, an internal default is used.
+     */
+    String PROPERTY_NEGATIVE_CACHE_TTL                 = "org.ops4j.pax.useradmin.cache.negative.ttl";
+
+    /**
+     * (optional) property that lists the role property keys (separated by
+     * comma) storage providers keep an index of, so that looking up users by
+     * these properties does not visit every role, if not given, no index is
+     * kept.
+     */
+    String PROPERTY_INDEX_KEYS                         = "org.ops4j.pax.useradmin.index.keys";
+
+    /**
+     * (optional) property that controls the time in milliseconds events are
+     * held back to merge subsequent changes of the same role into one event
+     * (0 delivers every event immediately), if not given, an internal default
+     * is used.
+     */
+    String PROPERTY_EVENT_COALESCE_WINDOW              = "org.ops4j.pax.useradmin.event.coalesce.window";
+
+    /**
+     * (optional) property that controls the maximum number of events queued
+     * for each <code>UserAdminListener</code>, if not given, an internal
+     * default is used.
+     */
+    String PROPERTY_EVENT_QUEUE_SIZE                   = "org.ops4j.pax.useradmin.event.queue.size";
+
+    /**
+     * (optional) property that controls what happens to an event for a
+     * <code>UserAdminListener</code> whose queue is full: "block" waits for
+     * space, "drop" discards the event and "coalesce" merges a change into a
+     * queued event of the same role and discards it if there is none - events
+     * of created and removed roles wait for space. If not given, "coalesce" is
+     * used. Note that waiting makes the thread changing a role wait for the
+     * slowest listener, possibly while other writers wait for it.
+     */
+    String PROPERTY_EVENT_OVERFLOW_POLICY              = "org.ops4j.pax.useradmin.event.overflow";
+
 }
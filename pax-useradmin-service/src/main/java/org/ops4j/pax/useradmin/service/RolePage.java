@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.service.useradmin.Role;
+
+/**
+ * One page of the roles matching a filter, together with the token to
+ * continue the enumeration with.
+ *
+ * @see PaxRoleQueryService
+ */
+public final class RolePage {
+
+    private final List<Role> roles;
+
+    private final String     continuation;
+
+    /**
+     * @param roles
+     *            The roles of this page.
+     * @param continuation
+     *            The token to retrieve the next page with or null if there are
+     *            no more roles.
+     */
+    public RolePage(List<Role> roles, String continuation) {
+        this.roles = Collections.unmodifiableList(new ArrayList<Role>(roles));
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return The roles of this page, might be empty even if there are more
+     *         pages.
+     */
+    public List<Role> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return An opaque token to retrieve the next page with or null if there
+     *         are no more roles.
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * @return True if there might be more roles after this page.
+     */
+    public boolean hasMore() {
+        return null != continuation;
+    }
+
+    @Override
+    public String toString() {
+        return "RolePage[" + roles.size() + " roles, continuation=" + continuation + "]";
+    }
+}
@@ -19,7 +19,6 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Map;
 
 import org.ops4j.pax.useradmin.service.spi.StorageException;
@@ -31,6 +30,10 @@ import org.osgi.service.useradmin.UserAdminEvent;
 /**
  * Abstract base class for properties that need to synchronize and communicate
  * changes.
+ * <p>
+ * The values are kept in a map which is never modified once published: writers
+ * are serialized on the instance and replace the map with a changed copy, so
+ * readers need no lock.
  */
 public abstract class AbstractProperties<R extends Role> extends Dictionary<String, Object> {
 
@@ -44,7 +47,10 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
      */
     private final UserAdminUtil             m_util;
 
-    private final Hashtable<String, Object> hashtable;
+    /**
+     * The current values - replaced, never modified.
+     */
+    private volatile CompactMap             m_properties;
 
     /**
      * @return The role these properties belong to.
@@ -103,9 +109,9 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
         m_role = role;
         m_util = util;
         if (properties != null) {
-            hashtable = new Hashtable<String, Object>(properties);
+            m_properties = CompactMap.of(properties);
         } else {
-            hashtable = new Hashtable<String, Object>();
+            m_properties = CompactMap.EMPTY;
         }
     }
 
@@ -119,10 +125,10 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
     protected abstract void checkGetPermission(String key);
 
     @Override
-    public synchronized Object get(Object key) {
+    public Object get(Object key) {
         checkKeyValid(key);
         checkGetPermission((String) key);
-        return hashtable.get(key);
+        return m_properties.get(key);
     }
 
     void checkKeyValid(Object key) throws IllegalArgumentException {
@@ -155,16 +161,31 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
                 //Ignore then..
             }
             Object storedValue = store(storageProvider, key, value);
+            // publish first, listeners and invalidations must see the change
+            Object replaced = putInternal(key, storedValue, oldValue);
             m_util.fireEvent(UserAdminEvent.ROLE_CHANGED, m_role);
-            return putInternal(key, storedValue, oldValue);
+            return replaced;
         } catch (StorageException e) {
             m_util.logMessage(this, LogService.LOG_ERROR, e.getMessage());
         }
         return null;
     }
 
+    /**
+     * Publishes a stored value - called with the instance lock held.
+     * 
+     * @param key
+     *            The key of the value.
+     * @param storedValue
+     *            The value returned by the store method.
+     * @param oldValue
+     *            The value read before storing, null if none.
+     * @return The value replaced.
+     */
     protected Object putInternal(String key, Object storedValue, Object oldValue) {
-        return hashtable.put(key, storedValue);
+        CompactMap properties = m_properties;
+        m_properties = properties.with(key, storedValue);
+        return properties.get(key);
     }
 
     @Override
@@ -173,32 +194,39 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
         try {
             StorageProvider storageProvider = m_util.getStorageProvider();
             remove(storageProvider, (String) key);
+            Object removed = removeInternal((String) key);
             m_util.fireEvent(UserAdminEvent.ROLE_CHANGED, m_role);
-            return hashtable.remove(key);
+            return removed;
         } catch (StorageException e) {
             m_util.logMessage(this, LogService.LOG_ERROR, e.getMessage());
         }
         return null;
     }
 
+    private Object removeInternal(String key) {
+        CompactMap properties = m_properties;
+        m_properties = properties.without(key);
+        return properties.get(key);
+    }
+
     @Override
     public boolean isEmpty() {
-        return hashtable.isEmpty();
+        return m_properties.isEmpty();
     }
 
     @Override
     public Enumeration<Object> elements() {
-        return hashtable.elements();
+        return m_properties.elements();
     }
 
     @Override
     public Enumeration<String> keys() {
-        return hashtable.keys();
+        return m_properties.keys();
     }
 
     @Override
     public int size() {
-        return hashtable.size();
+        return m_properties.size();
     }
 
 }
@@ -50,7 +50,8 @@ public class Activator
         implements BundleActivator, ServiceTrackerCustomizer<StorageProvider, PaxUserAdmin> {
 
     /**
-     * Maximum number of paralllel event threads
+     * Maximum number of paralllel event threads - each drains the event queue
+     * of one listener at a time
      */
     private static final int                                     MAXIMUM_POOL_SIZE = 10;
 
@@ -66,9 +67,19 @@ public class Activator
 
     private ServiceTracker<UserAdminListener, UserAdminListener> listenerTracker;
 
+    private EventTopicTracker                                    eventTopicTracker;
+
     private final Map<String, ConfigurationListener>             managedServiceMap = new HashMap<String, ConfigurationListener>();
 
-    private final ExecutorService                                eventExecutor     = new ThreadPoolExecutor(0, MAXIMUM_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ExecutorService                                eventExecutor     = createEventExecutor();
+
+    private static ExecutorService createEventExecutor() {
+        // with an unbounded work queue the pool never grows beyond its core
+        // size, so the core threads are the event threads and time out
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAXIMUM_POOL_SIZE, MAXIMUM_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Override
     public void start(BundleContext context) throws Exception {
@@ -79,9 +90,12 @@ public class Activator
         eventAdminTracker = new ServiceTracker<EventAdmin, EventAdmin>(context, EventAdmin.class, null);
         logServiceTracker = new ServiceTracker<LogService, LogService>(context, LogService.class, null);
         listenerTracker = new ServiceTracker<UserAdminListener, UserAdminListener>(context, UserAdminListener.class, null);
+        eventTopicTracker = new EventTopicTracker(context);
         //and open them...
         logServiceTracker.open();
         eventAdminTracker.open();
+        listenerTracker.open();
+        eventTopicTracker.open();
         providerTracker.open();
     }
 
@@ -92,6 +106,7 @@ public class Activator
         eventAdminTracker.close();
         logServiceTracker.close();
         listenerTracker.close();
+        eventTopicTracker.close();
         synchronized (managedServiceMap) {
             Collection<ConfigurationListener> values = managedServiceMap.values();
             for (ConfigurationListener serviceRegistration : values) {
@@ -111,7 +126,7 @@ public class Activator
         StorageProvider storageProvider = context.getService(reference);
         if (storageProvider != null) {
             try {
-                PaxUserAdmin userAdminImpl = new PaxUserAdmin(storageProvider, logServiceTracker, eventAdminTracker, listenerTracker, eventExecutor);
+                PaxUserAdmin userAdminImpl = new PaxUserAdmin(storageProvider, logServiceTracker, eventAdminTracker, listenerTracker, eventExecutor, eventTopicTracker);
                 userAdminImpl.register(context, type, (Long) reference.getProperty(Constants.SERVICE_ID));
                 LOG.info("New UserAdmin for StorageProvider {} (service.id = {}) is now available.", type, reference.getProperty(Constants.SERVICE_ID));
                 synchronized (managedServiceMap) {
@@ -19,21 +19,22 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 
+import org.ops4j.pax.useradmin.service.PaxAuthorization;
 import org.ops4j.pax.useradmin.service.spi.SPIRole;
-import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.log.LogService;
-import org.osgi.service.useradmin.Authorization;
 import org.osgi.service.useradmin.Role;
 import org.osgi.service.useradmin.User;
 
 /**
- * Implementation of the Authorization interface.
+ * Implementation of the Authorization interface. In snapshot mode the roles
+ * of the user are computed on first use and kept afterwards.
  * 
  * @see <a href="http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/Authorization.html">http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/Authorization.html</a>
  */
-public class AuthorizationImpl implements Authorization {
+public class AuthorizationImpl implements PaxAuthorization {
 
     private static final String[] EMPTY_ROLES = new String[0];
     /**
@@ -46,6 +47,21 @@ public class AuthorizationImpl implements Authorization {
      */
     private PaxUserAdmin m_userAdmin = null;
 
+    /**
+     * True if the roles are computed once and kept.
+     */
+    private final boolean m_snapshot;
+
+    /**
+     * The roles kept in snapshot mode - null until first used.
+     */
+    private Set<String>   m_snapshotRoles;
+
+    /**
+     * The generation of the roles kept in snapshot mode.
+     */
+    private long          m_snapshotGeneration;
+
     /**
      * Initializing constructor.
      * 
@@ -55,8 +71,23 @@ public class AuthorizationImpl implements Authorization {
      *            The <code>User</code> instance whose authorization is managed.
      */
     AuthorizationImpl(PaxUserAdmin userAdmin, User user) {
+        this(userAdmin, user, false);
+    }
+
+    /**
+     * Initializing constructor.
+     * 
+     * @param userAdmin
+     *            The <code>UserAdmin</code> service to use authorization.
+     * @param user
+     *            The <code>User</code> instance whose authorization is managed.
+     * @param snapshot
+     *            True if the roles should be computed once and kept.
+     */
+    AuthorizationImpl(PaxUserAdmin userAdmin, User user, boolean snapshot) {
         m_userAdmin = userAdmin;
         m_user = user;
+        m_snapshot = snapshot;
     }
 
     @Override
@@ -73,59 +104,135 @@ public class AuthorizationImpl implements Authorization {
 
     @Override
     public String[] getRoles() {
-        if (m_user instanceof SPIRole) {
-            SPIRole spiRoleUser = (SPIRole) m_user;
-            Collection<String> roleNames = new ArrayList<String>();
-            try {
-                Role[] roles = m_userAdmin.getRoles(null);
-                if (null != roles) {
-                    for (Role role : roles) {
-                        if (!Role.USER_ANYONE.equals(role.getName())) {
-                            if (role instanceof SPIRole) {
-                                ImplicationResult result = ((SPIRole) role).isImpliedBy(spiRoleUser, new ArrayList<String>());
-                                if (ImplicationResult.IMPLIEDBY_YES == result) {
-                                    String name = role.getName();
-                                    roleNames.add(name);
-                                }
-                            } else {
-                                getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "getRoles(): role " + role.getName()
-                                        + " is ignored because " + role.getClass().getName() + " does not implement the SPIRole interface");
-                            }
-                        }
-                    }
-                }
-                if (!roleNames.isEmpty()) {
-                    return roleNames.toArray(new String[0]);
-                }
-            } catch (InvalidSyntaxException e) {
-                // will never be reached because UserAdmin.getRoles() allows null filters
-                throw new IllegalStateException("Unexpected InvalidSyntaxException caught while using null filter: " + e.getMessage() + " for filter: "
-                        + e.getFilter(), e);
+        Collection<String> roleNames = new ArrayList<String>();
+        for (String name : getImpliedRoles()) {
+            if (!Role.USER_ANYONE.equals(name)) {
+                roleNames.add(name);
             }
-        } else {
-            getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "getRoles(): denoted user is ignored because "
-                    + m_user.getClass().getName() + " does not implement the SPIRole interface");
+        }
+        if (!roleNames.isEmpty()) {
+            return roleNames.toArray(new String[roleNames.size()]);
         }
         return EMPTY_ROLES;
     }
 
     @Override
     public boolean hasRole(String name) {
-        Role roleToCheck = getAdmin().getRole(name);
-        if (null != roleToCheck) {
-            if (roleToCheck instanceof SPIRole) {
-                if (m_user instanceof SPIRole) {
-                    ImplicationResult result = ((SPIRole) roleToCheck).isImpliedBy((SPIRole) m_user, new ArrayList<String>());
-                    return ImplicationResult.IMPLIEDBY_YES == result;
-                } else {
-                    getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + name
-                            + "): denoted user is ignored because " + m_user.getClass().getName() + " does not implement the SPIRole interface");
-                }
-            } else {
-                getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + name
-                        + "): denoted role is ignored because " + roleToCheck.getClass().getName() + " does not implement the SPIRole interface");
+        return getImpliedRoles().contains(checkRoleName(name));
+    }
+
+    @Override
+    public boolean[] hasRoles(String... names) {
+        Set<String> impliedRoles = getImpliedRoles();
+        boolean[] result = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = impliedRoles.contains(checkRoleName(names[i]));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean hasAnyRole(String... names) {
+        Set<String> impliedRoles = getImpliedRoles();
+        for (String name : names) {
+            if (impliedRoles.contains(checkRoleName(name))) {
+                return true;
             }
         }
         return false;
     }
+
+    @Override
+    public boolean hasAllRoles(String... names) {
+        Set<String> impliedRoles = getImpliedRoles();
+        for (String name : names) {
+            if (!impliedRoles.contains(checkRoleName(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long getGeneration() {
+        if (null != m_snapshotRoles) {
+            return m_snapshotGeneration;
+        }
+        return getAdmin().getImpliedRolesCache().getGeneration();
+    }
+
+    @Override
+    public synchronized boolean isStale() {
+        // the snapshot need not be the role set cached, so the invalidations
+        // of its roles are checked
+        return null != m_snapshotRoles
+                && getAdmin().getImpliedRolesCache().isStale(m_user.getName(), m_snapshotRoles, m_snapshotGeneration);
+    }
+
+    /**
+     * Checks the name of a role to look up.
+     * 
+     * @param name
+     *            The name of the role.
+     * @return The name to look up - the empty name denotes
+     *         <code>user.anyone</code>.
+     */
+    private static String checkRoleName(String name) {
+        if (null == name) {
+            throw (new IllegalArgumentException(UserAdminMessages.MSG_INVALID_NAME));
+        }
+        if ("".equals(name)) {
+            return Role.USER_ANYONE;
+        }
+        return name;
+    }
+
+    /**
+     * Returns the names of all roles implied by the user, including
+     * <code>user.anyone</code> - in snapshot mode the roles are kept after the
+     * first call.
+     * 
+     * @return The names of all roles implied by the user.
+     */
+    private Set<String> getImpliedRoles() {
+        if (!m_snapshot) {
+            return lookupImpliedRoles();
+        }
+        synchronized (this) {
+            if (null == m_snapshotRoles) {
+                m_snapshotGeneration = getAdmin().getImpliedRolesCache().getGeneration();
+                m_snapshotRoles = lookupImpliedRoles();
+            }
+            return m_snapshotRoles;
+        }
+    }
+
+    /**
+     * Returns the names of all roles implied by the user, including
+     * <code>user.anyone</code>. The result is taken from the
+     * <code>ImpliedRolesCache</code> of the admin service and computed if
+     * not yet cached.
+     * 
+     * @return The names of all roles implied by the user.
+     */
+    private Set<String> lookupImpliedRoles() {
+        if (!(m_user instanceof SPIRole)) {
+            getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "denoted user is ignored because "
+                    + m_user.getClass().getName() + " does not implement the SPIRole interface");
+            return Collections.emptySet();
+        }
+        ImpliedRolesCache cache = getAdmin().getImpliedRolesCache();
+        Set<String> roleNames = cache.get(m_user.getName());
+        if (null == roleNames) {
+            long generation = cache.getGeneration();
+            roleNames = getAdmin().getRoleGraph().getImpliedRoles(m_user.getName());
+            if (null == roleNames) {
+                // roles could not be read - don't cache that
+                return Collections.emptySet();
+            }
+            cache.put(m_user.getName(), roleNames, generation);
+        }
+        return roleNames;
+    }
+
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.useradmin.service.CacheMetrics;
+
+/**
+ * A small thread safe cache which keeps at most a given number of entries
+ * (evicting the least recently used one) for at most a given time.
+ *
+ * @param <K>
+ *            The key type.
+ * @param <V>
+ *            The value type.
+ */
+class BoundedCache<K, V> {
+
+    private final Map<K, CachedValue<V>> entries;
+
+    private final long                   timeToLive;
+
+    private final AtomicLong             hits   = new AtomicLong();
+
+    private final AtomicLong             misses = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            The maximum number of entries kept.
+     * @param timeToLive
+     *            The time in milliseconds an entry is kept, a value less than
+     *            or equal to zero keeps entries until they are evicted.
+     */
+    BoundedCache(final int maxSize, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     *            The key to look up.
+     * @return The value cached for the given key or null if no value is
+     *         cached or the value has expired.
+     */
+    V get(K key) {
+        synchronized (entries) {
+            CachedValue<V> entry = entries.get(key);
+            if (entry != null) {
+                if (timeToLive <= 0 || System.currentTimeMillis() < entry.expires) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a value, replacing any value cached for the key before.
+     *
+     * @param key
+     *            The key.
+     * @param value
+     *            The value to cache, must not be null.
+     */
+    void put(K key, V value) {
+        long expires = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+        synchronized (entries) {
+            entries.put(key, new CachedValue<V>(value, expires));
+        }
+    }
+
+    /**
+     * @param key
+     *            The key of the entry to drop.
+     */
+    void remove(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Drops all entries.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @param name
+     *            The name of the cache.
+     * @return A snapshot of the size and hit/miss counters.
+     */
+    CacheMetrics getMetrics(String name) {
+        return new CacheMetrics(name, size(), getHits(), getMisses());
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses();
+    }
+
+    private static final class CachedValue<V> {
+
+        private final V    value;
+
+        private final long expires;
+
+        private CachedValue(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
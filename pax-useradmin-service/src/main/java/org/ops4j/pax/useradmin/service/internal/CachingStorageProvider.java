@@ -0,0 +1,496 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ops4j.pax.useradmin.service.CacheMetrics;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+/**
+ * A {@link StorageProvider} which keeps recently read roles, member lists and
+ * the credential keys of users in bounded caches and passes everything else
+ * to the decorated provider.
+ * <p>
+ * The caches are invalidated by the write methods of this class, changes made
+ * to the underlying datastore by other means become visible once the cached
+ * entries have expired. Credential values themselves are never cached.
+ */
+class CachingStorageProvider implements AtomicStorageProvider, PagedStorageProvider, MembershipStorageProvider,
+        CredentialProvider {
+
+    private final StorageProvider                    delegate;
+
+    /**
+     * The factory used for the roles read when listing member names.
+     */
+    private final UserAdminFactory                   factory;
+
+    /**
+     * Roles by name.
+     */
+    private final BoundedCache<String, Role>         roles;
+
+    /**
+     * Names of the basic members by group name.
+     */
+    private final BoundedCache<String, List<String>> members;
+
+    /**
+     * Names of the required members by group name.
+     */
+    private final BoundedCache<String, List<String>> requiredMembers;
+
+    /**
+     * Keys of the credentials stored for a user by user name.
+     */
+    private final BoundedCache<String, Set<String>>  credentialKeys;
+
+    /**
+     * @param delegate
+     *            The provider to decorate.
+     * @param factory
+     *            The factory used to create the roles read when listing
+     *            member names from a provider which can't list them itself.
+     * @param maxSize
+     *            The maximum number of entries kept in each cache.
+     * @param timeToLive
+     *            The time in milliseconds cached entries are kept, zero or
+     *            less to keep them until they are evicted or invalidated.
+     */
+    CachingStorageProvider(StorageProvider delegate, UserAdminFactory factory, int maxSize, long timeToLive) {
+        if (null == delegate) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        this.delegate = delegate;
+        this.factory = factory;
+        roles = new BoundedCache<String, Role>(maxSize, timeToLive);
+        members = new BoundedCache<String, List<String>>(maxSize, timeToLive);
+        requiredMembers = new BoundedCache<String, List<String>>(maxSize, timeToLive);
+        credentialKeys = new BoundedCache<String, Set<String>>(maxSize, timeToLive);
+    }
+
+    /**
+     * @return The decorated provider.
+     */
+    StorageProvider getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Drops all cached data.
+     */
+    void clear() {
+        roles.clear();
+        members.clear();
+        requiredMembers.clear();
+        credentialKeys.clear();
+    }
+
+    /**
+     * @return The size and hit/miss counters of the caches.
+     */
+    List<CacheMetrics> getMetrics() {
+        List<CacheMetrics> metrics = new ArrayList<CacheMetrics>(4);
+        metrics.add(roles.getMetrics("roles"));
+        metrics.add(members.getMetrics("members"));
+        metrics.add(requiredMembers.getMetrics("requiredMembers"));
+        metrics.add(credentialKeys.getMetrics("credentialKeys"));
+        return metrics;
+    }
+
+    // StorageProvider interface
+
+    @Override
+    public User createUser(UserAdminFactory factory, String name) throws StorageException {
+        User user = delegate.createUser(new RecordingFactory(factory), name);
+        if (user != null) {
+            roles.put(name, user);
+            credentialKeys.put(name, Collections.<String> emptySet());
+        }
+        return user;
+    }
+
+    @Override
+    public Group createGroup(UserAdminFactory factory, String name) throws StorageException {
+        Group group = delegate.createGroup(new RecordingFactory(factory), name);
+        if (group != null) {
+            roles.put(name, group);
+        }
+        return group;
+    }
+
+    @Override
+    public boolean deleteRole(Role role) throws StorageException {
+        try {
+            return delegate.deleteRole(role);
+        } finally {
+            roleDeleted(role.getName());
+        }
+    }
+
+    @Override
+    public Collection<Role> getMembers(UserAdminFactory factory, Group group) throws StorageException {
+        Collection<Role> result = resolve(members.get(group.getName()));
+        if (result == null) {
+            result = delegate.getMembers(new RecordingFactory(factory), group);
+            members.put(group.getName(), cache(result));
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<Role> getRequiredMembers(UserAdminFactory factory, Group group) throws StorageException {
+        Collection<Role> result = resolve(requiredMembers.get(group.getName()));
+        if (result == null) {
+            result = delegate.getRequiredMembers(new RecordingFactory(factory), group);
+            requiredMembers.put(group.getName(), cache(result));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean addMember(Group group, Role role) throws StorageException {
+        try {
+            return delegate.addMember(group, role);
+        } finally {
+            members.remove(group.getName());
+        }
+    }
+
+    @Override
+    public boolean addRequiredMember(Group group, Role role) throws StorageException {
+        try {
+            return delegate.addRequiredMember(group, role);
+        } finally {
+            requiredMembers.remove(group.getName());
+        }
+    }
+
+    @Override
+    public boolean removeMember(Group group, Role role) throws StorageException {
+        try {
+            return delegate.removeMember(group, role);
+        } finally {
+            members.remove(group.getName());
+            requiredMembers.remove(group.getName());
+        }
+    }
+
+    @Override
+    public void setRoleAttribute(Role role, String key, Object value) throws StorageException {
+        try {
+            delegate.setRoleAttribute(role, key, value);
+        } finally {
+            roles.remove(role.getName());
+        }
+    }
+
+    @Override
+    public void removeRoleAttribute(Role role, String key) throws StorageException {
+        try {
+            delegate.removeRoleAttribute(role, key);
+        } finally {
+            roles.remove(role.getName());
+        }
+    }
+
+    @Override
+    public void clearRoleAttributes(Role role) throws StorageException {
+        try {
+            delegate.clearRoleAttributes(role);
+        } finally {
+            roles.remove(role.getName());
+        }
+    }
+
+    @Override
+    public CredentialProvider getCredentialProvider() {
+        return delegate.getCredentialProvider() != null ? this : null;
+    }
+
+    @Override
+    public Role getRole(UserAdminFactory factory, String name) throws StorageException {
+        Role role = roles.get(name);
+        if (role == null) {
+            role = delegate.getRole(new RecordingFactory(factory), name);
+            if (role != null) {
+                roles.put(name, role);
+            }
+        }
+        return role;
+    }
+
+    @Override
+    public User getUser(UserAdminFactory factory, String key, String value) throws StorageException {
+        User user = delegate.getUser(new RecordingFactory(factory), key, value);
+        if (user != null) {
+            roles.put(user.getName(), user);
+        }
+        return user;
+    }
+
+    @Override
+    public Collection<Role> findRoles(UserAdminFactory factory, String filter) throws StorageException {
+        return delegate.findRoles(new RecordingFactory(factory), filter);
+    }
+
+    @Override
+    public void configurationUpdated(Map<String, ?> properties) throws ConfigurationException {
+        clear();
+        delegate.configurationUpdated(properties);
+    }
+
+    // AtomicStorageProvider interface
+
+    @Override
+    public Role createIfAbsent(UserAdminFactory factory, String name, int type) throws StorageException {
+        if (delegate instanceof AtomicStorageProvider) {
+            Role role = ((AtomicStorageProvider) delegate).createIfAbsent(new RecordingFactory(factory), name, type);
+            if (role != null) {
+                roles.put(name, role);
+                if (Role.USER == type) {
+                    credentialKeys.put(name, Collections.<String> emptySet());
+                }
+            }
+            return role;
+        }
+        if (getRole(factory, name) != null) {
+            return null;
+        }
+        return Role.USER == type ? createUser(factory, name) : createGroup(factory, name);
+    }
+
+    @Override
+    public Role deleteByName(UserAdminFactory factory, String name) throws StorageException {
+        if (delegate instanceof AtomicStorageProvider) {
+            try {
+                return ((AtomicStorageProvider) delegate).deleteByName(new RecordingFactory(factory), name);
+            } finally {
+                roleDeleted(name);
+            }
+        }
+        Role role = getRole(factory, name);
+        return role != null && deleteRole(role) ? role : null;
+    }
+
+    // MembershipStorageProvider interface
+
+    @Override
+    public Collection<String> getMemberNames(Group group) throws StorageException {
+        return getMemberNames(group, false);
+    }
+
+    @Override
+    public Collection<String> getRequiredMemberNames(Group group) throws StorageException {
+        return getMemberNames(group, true);
+    }
+
+    @Override
+    public int getMemberCount(Group group) throws StorageException {
+        return getMemberNames(group, false).size() + getMemberNames(group, true).size();
+    }
+
+    // PagedStorageProvider interface
+
+    @Override
+    public RolePage findRoles(UserAdminFactory factory, String filter, String continuation, int pageSize) throws StorageException {
+        return PaxUserAdmin.findRoles(delegate, new RecordingFactory(factory), filter, continuation, pageSize);
+    }
+
+    // CredentialProvider interface
+
+    @Override
+    public Object getUserCredential(Decryptor decryptor, User user, String key) throws StorageException {
+        Set<String> keys = credentialKeys.get(user.getName());
+        if (keys != null && !keys.contains(key)) {
+            return null;
+        }
+        return delegate.getCredentialProvider().getUserCredential(decryptor, user, key);
+    }
+
+    @Override
+    public boolean hasUserCredential(Decryptor decryptor, User user, String key, Object value) throws StorageException {
+        Set<String> keys = credentialKeys.get(user.getName());
+        if (keys != null && !keys.contains(key)) {
+            return false;
+        }
+        return delegate.getCredentialProvider().hasUserCredential(decryptor, user, key, value);
+    }
+
+    @Override
+    public void setUserCredential(Encryptor encryptor, User user, String key, Object value) throws StorageException {
+        try {
+            delegate.getCredentialProvider().setUserCredential(encryptor, user, key, value);
+        } finally {
+            credentialKeys.remove(user.getName());
+        }
+    }
+
+    @Override
+    public void removeUserCredential(User user, String key) throws StorageException {
+        try {
+            delegate.getCredentialProvider().removeUserCredential(user, key);
+        } finally {
+            credentialKeys.remove(user.getName());
+        }
+    }
+
+    @Override
+    public void clearUserCredentials(User user) throws StorageException {
+        try {
+            delegate.getCredentialProvider().clearUserCredentials(user);
+        } finally {
+            credentialKeys.remove(user.getName());
+        }
+    }
+
+    /**
+     * Drops all cached data which might refer to a deleted role.
+     */
+    private void roleDeleted(String name) {
+        roles.remove(name);
+        credentialKeys.remove(name);
+        // the role might have been a member of any group
+        members.clear();
+        requiredMembers.clear();
+    }
+
+    /**
+     * Retrieves the names of the basic or required members of a group,
+     * sharing the cached member lists with
+     * {@link #getMembers(UserAdminFactory, Group)} and
+     * {@link #getRequiredMembers(UserAdminFactory, Group)}.
+     */
+    private Collection<String> getMemberNames(Group group, boolean required) throws StorageException {
+        BoundedCache<String, List<String>> cache = required ? requiredMembers : members;
+        List<String> names = cache.get(group.getName());
+        if (names == null) {
+            if (delegate instanceof MembershipStorageProvider) {
+                names = new ArrayList<String>(PaxUserAdmin.getMemberNames(delegate, factory, group, required));
+            } else if (required) {
+                names = cache(delegate.getRequiredMembers(new RecordingFactory(factory), group));
+            } else {
+                names = cache(delegate.getMembers(new RecordingFactory(factory), group));
+            }
+            cache.put(group.getName(), names);
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Looks up cached members by name.
+     *
+     * @param names
+     *            The cached member names, might be null.
+     * @return The members or null if the names or one of the members are not
+     *         cached.
+     */
+    private Collection<Role> resolve(List<String> names) {
+        if (names == null) {
+            return null;
+        }
+        Collection<Role> result = new ArrayList<Role>(names.size());
+        for (String name : names) {
+            Role role = roles.get(name);
+            if (role == null) {
+                return null;
+            }
+            result.add(role);
+        }
+        return result;
+    }
+
+    /**
+     * Caches the given members and returns their names.
+     */
+    private List<String> cache(Collection<Role> result) {
+        if (result == null || result.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<String>(result.size());
+        for (Role role : result) {
+            roles.put(role.getName(), role);
+            names.add(role.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + delegate + "]" + getMetrics();
+    }
+
+    /**
+     * Passes role creation to the real factory and records the credential
+     * keys the decorated provider reports for users.
+     */
+    private final class RecordingFactory implements UserAdminFactory {
+
+        private final UserAdminFactory factory;
+
+        private RecordingFactory(UserAdminFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public User createUser(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+            if (initialCredentialKeys != null) {
+                credentialKeys.put(name, Collections.unmodifiableSet(new HashSet<String>(initialCredentialKeys)));
+            }
+            return factory.createUser(name, properties, initialCredentialKeys);
+        }
+
+        @Override
+        public Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
+            if (initialCredentialKeys != null) {
+                credentialKeys.put(name, Collections.unmodifiableSet(new HashSet<String>(initialCredentialKeys)));
+            }
+            return factory.createGroup(name, properties, initialCredentialKeys);
+        }
+
+        @Override
+        public String intern(String name) {
+            return factory.intern(name);
+        }
+
+        @Override
+        public void fireEvent(int type, Role role) {
+            factory.fireEvent(type, role);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map from strings to non-null values, stored in a single array
+ * with open addressing: the key of a slot is at the even index, its value at
+ * the following odd index. Most roles have only a few properties, for which
+ * this needs a fraction of the memory of a <code>Hashtable</code>.
+ * <p>
+ * Changes return a modified copy. Keys are interned, so the key instances are
+ * shared by all maps and usually found by identity.
+ */
+final class CompactMap {
+
+    /**
+     * The map without entries - shared by all empty properties.
+     */
+    static final CompactMap         EMPTY = new CompactMap(new Object[0], 0);
+
+    /**
+     * Keys and values in alternating slots, the length is zero or two times
+     * a power of two.
+     */
+    private final Object[]          table;
+
+    private final int               size;
+
+    private CompactMap(Object[] table, int size) {
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * @param entries
+     *            The entries to copy, null values are not allowed.
+     * @return A map holding the given entries.
+     */
+    static CompactMap of(Map<String, ?> entries) {
+        if (entries.isEmpty()) {
+            return EMPTY;
+        }
+        Object[] table = new Object[2 * capacityFor(entries.size())];
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            insert(table, Interner.SHARED.intern(entry.getKey()), entry.getValue());
+        }
+        return new CompactMap(table, entries.size());
+    }
+
+    /**
+     * @return The number of slots needed to hold the given number of entries
+     *         with a load factor of at most three quarters.
+     */
+    private static int capacityFor(int size) {
+        int capacity = 2;
+        while (capacity * 3 < size * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return The index of the slot holding the given key, or the index of the
+     *         free slot it would be stored in.
+     */
+    private static int indexOf(Object[] table, Object key) {
+        int mask = (table.length >> 1) - 1;
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            Object candidate = table[slot << 1];
+            if (null == candidate || candidate == key || candidate.equals(key)) {
+                return slot << 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static void insert(Object[] table, String key, Object value) {
+        int index = indexOf(table, key);
+        table[index] = key;
+        table[index + 1] = value;
+    }
+
+    /**
+     * @param key
+     *            The key to look up.
+     * @return The value of the given key, null if there is none.
+     */
+    Object get(Object key) {
+        if (0 == size) {
+            return null;
+        }
+        return table[indexOf(table, key) + 1];
+    }
+
+    boolean containsKey(Object key) {
+        return null != get(key);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * @return The number of slots, each holding a key and its value.
+     */
+    int capacity() {
+        return table.length >> 1;
+    }
+
+    /**
+     * @param key
+     *            The key of the entry to add or replace.
+     * @param value
+     *            The value, not null.
+     * @return A copy of this map with the given entry.
+     */
+    CompactMap with(String key, Object value) {
+        if (0 != size) {
+            int index = indexOf(table, key);
+            if (null != table[index]) {
+                Object[] copy = table.clone();
+                copy[index + 1] = value;
+                return new CompactMap(copy, size);
+            }
+        }
+        int capacity = capacityFor(size + 1);
+        Object[] copy;
+        if (2 * capacity == table.length) {
+            copy = table.clone();
+        } else {
+            copy = new Object[2 * capacity];
+            for (int i = 0; i < table.length; i += 2) {
+                if (null != table[i]) {
+                    insert(copy, (String) table[i], table[i + 1]);
+                }
+            }
+        }
+        insert(copy, Interner.SHARED.intern(key), value);
+        return new CompactMap(copy, size + 1);
+    }
+
+    /**
+     * @param key
+     *            The key of the entry to remove.
+     * @return A copy of this map without the given entry, this map if there
+     *         is no such entry.
+     */
+    CompactMap without(Object key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        if (1 == size) {
+            return EMPTY;
+        }
+        // rebuilt, so no probe sequence needs to skip a removed slot
+        Object[] copy = new Object[2 * capacityFor(size - 1)];
+        for (int i = 0; i < table.length; i += 2) {
+            if (null != table[i] && !table[i].equals(key)) {
+                insert(copy, (String) table[i], table[i + 1]);
+            }
+        }
+        return new CompactMap(copy, size - 1);
+    }
+
+    /**
+     * @return The keys of this map.
+     */
+    Enumeration<String> keys() {
+        return new SlotEnumeration<String>(0);
+    }
+
+    /**
+     * @return The values of this map.
+     */
+    Enumeration<Object> elements() {
+        return new SlotEnumeration<Object>(1);
+    }
+
+    /**
+     * Enumerates the keys or the values of the used slots.
+     */
+    private final class SlotEnumeration<T> implements Enumeration<T> {
+
+        private final int offset;
+
+        private int       next;
+
+        private SlotEnumeration(int offset) {
+            this.offset = offset;
+            advance(0);
+        }
+
+        private void advance(int from) {
+            next = from;
+            while (next < table.length && null == table[next]) {
+                next += 2;
+            }
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < table.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T nextElement() {
+            if (next >= table.length) {
+                throw new NoSuchElementException();
+            }
+            T element = (T) table[next + offset];
+            advance(next + 2);
+            return element;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.ops4j.pax.useradmin.service.PaxEventBatch;
+import org.osgi.service.useradmin.UserAdminEvent;
+
+/**
+ * Collects the events fired by the admin service and passes them on to the
+ * delivery, merging subsequent <code>ROLE_CHANGED</code> events of the same
+ * role into the pending event of that role.
+ * <p>
+ * Events are collected per thread between {@link #beginBatch()} and the end
+ * of the batch, and for all threads during the configured window
+ * after the first pending event. Without batch and window every event is
+ * delivered immediately.
+ */
+class EventDispatcher {
+
+    /**
+     * Receives the events to deliver, in the order they were fired.
+     */
+    interface Delivery {
+
+        void deliver(List<UserAdminEvent> events);
+    }
+
+    private final Delivery                delivery;
+
+    private final ThreadLocal<EventBatch> batches = new ThreadLocal<EventBatch>();
+
+    /**
+     * The window in milliseconds, zero or less to disable.
+     */
+    private volatile long                 window;
+
+    /**
+     * Events collected during the current window, null if no flush is
+     * scheduled.
+     */
+    private EventBatch                    pending;
+
+    private Timer                         timer;
+
+    /**
+     * @param delivery
+     *            Receives the events to deliver.
+     */
+    EventDispatcher(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * @param window
+     *            The time in milliseconds events are held back, zero or less
+     *            to deliver them immediately.
+     */
+    void setWindow(long window) {
+        this.window = window;
+        if (window <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Dispatches an event.
+     *
+     * @param event
+     *            The event.
+     */
+    void fire(UserAdminEvent event) {
+        EventBatch batch = batches.get();
+        if (null != batch && !batch.ended) {
+            batch.add(event);
+            return;
+        }
+        long delay = window;
+        if (delay <= 0) {
+            delivery.deliver(Collections.singletonList(event));
+            return;
+        }
+        synchronized (this) {
+            if (null == pending) {
+                pending = new EventBatch();
+                if (null == timer) {
+                    timer = new Timer("PaxUserAdmin event dispatcher", true);
+                }
+                timer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, delay);
+            }
+            pending.add(event);
+        }
+    }
+
+    /**
+     * Starts collecting the events of the calling thread, ending a batch of
+     * the thread which has not ended yet.
+     *
+     * @return The batch.
+     */
+    PaxEventBatch beginBatch() {
+        EventBatch open = batches.get();
+        if (null != open) {
+            // not ended, e.g. because of an exception
+            endBatch(open);
+        }
+        final EventBatch batch = new EventBatch();
+        batches.set(batch);
+        return new PaxEventBatch() {
+
+            @Override
+            public void end() {
+                endBatch(batch);
+            }
+        };
+    }
+
+    /**
+     * Ends a batch of the calling thread, delivering the collected events -
+     * unless it has already ended.
+     */
+    private void endBatch(EventBatch batch) {
+        if (batch.ended) {
+            return;
+        }
+        batch.ended = true;
+        if (batches.get() == batch) {
+            batches.remove();
+        }
+        if (!batch.events.isEmpty()) {
+            delivery.deliver(batch.events);
+        }
+    }
+
+    /**
+     * Delivers the events collected during the current window.
+     */
+    void flush() {
+        EventBatch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+        }
+        if (null != batch) {
+            delivery.deliver(batch.events);
+        }
+    }
+
+    /**
+     * Delivers the pending events and stops the timer.
+     */
+    void close() {
+        flush();
+        synchronized (this) {
+            if (null != timer) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+
+    /**
+     * Events in the order they were fired, with subsequent changes of a role
+     * merged.
+     */
+    private static final class EventBatch {
+
+        private final List<UserAdminEvent> events    = new ArrayList<UserAdminEvent>();
+
+        /**
+         * Positions of the events later changes of a role are merged into.
+         */
+        private final Map<String, Integer> mergeable = new HashMap<String, Integer>();
+
+        private boolean                    ended;
+
+        private void add(UserAdminEvent event) {
+            String name = event.getRole().getName();
+            Integer index = mergeable.get(name);
+            if (UserAdminEvent.ROLE_CHANGED == event.getType() && null != index) {
+                // keep the type (created or changed) and position of the pending event
+                UserAdminEvent merged = events.get(index);
+                events.set(index, new UserAdminEvent(merged.getServiceReference(), merged.getType(), event.getRole()));
+                return;
+            }
+            if (UserAdminEvent.ROLE_REMOVED == event.getType()) {
+                mergeable.remove(name);
+            } else {
+                mergeable.put(name, events.size());
+            }
+            events.add(event);
+        }
+    }
+}
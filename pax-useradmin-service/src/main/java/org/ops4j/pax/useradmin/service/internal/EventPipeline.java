@@ -0,0 +1,316 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.ops4j.pax.useradmin.service.EventListenerMetrics;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.UserAdminEvent;
+import org.osgi.service.useradmin.UserAdminListener;
+
+/**
+ * Delivers events to one <code>UserAdminListener</code> in the order they
+ * were offered. The events are kept in a bounded queue which is drained by at
+ * most one task of the shared executor at a time, so listeners neither
+ * receive events concurrently nor delay each other.
+ */
+class EventPipeline implements Runnable {
+
+    /**
+     * What happens to an event if the queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait until the listener has taken an event. Events are offered by
+         * the thread changing the role, possibly while it holds the lock of
+         * the role's properties, so a slow listener stalls all writers.
+         */
+        BLOCK,
+        /**
+         * Discard the new event.
+         */
+        DROP,
+        /**
+         * Merge a change into a queued event of the same role, discard the new
+         * change if there is none. Created and removed roles are never
+         * discarded: these events wait like with <code>BLOCK</code>.
+         */
+        COALESCE;
+
+        static OverflowPolicy parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown overflow policy: " + value);
+            }
+        }
+    }
+
+    /**
+     * The number of events delivered by one task before the executor gets the
+     * chance to run the tasks of other listeners.
+     */
+    private static final int              MAX_EVENTS_PER_TASK = 64;
+
+    private final UserAdminListener       listener;
+
+    private final Executor                executor;
+
+    private final UserAdminUtil           util;
+
+    private final LinkedList<QueuedEvent> queue               = new LinkedList<QueuedEvent>();
+
+    private volatile int                  capacity;
+
+    private volatile OverflowPolicy       policy;
+
+    /**
+     * True while a task to drain the queue is submitted or running.
+     */
+    private boolean                       scheduled;
+
+    /**
+     * The thread draining the queue, null if none - it must not block on its
+     * own queue.
+     */
+    private Thread                        drainingThread;
+
+    private long                          delivered;
+
+    private long                          dropped;
+
+    private long                          coalesced;
+
+    private long                          failed;
+
+    private long                          totalLatency;
+
+    private long                          maxLatency;
+
+    /**
+     * @param listener
+     *            The listener to deliver to.
+     * @param executor
+     *            The executor running the delivery tasks.
+     * @param util
+     *            Used for logging.
+     * @param capacity
+     *            The maximum number of queued events.
+     * @param policy
+     *            What happens to an event if the queue is full.
+     */
+    EventPipeline(UserAdminListener listener, Executor executor, UserAdminUtil util, int capacity, OverflowPolicy policy) {
+        this.listener = listener;
+        this.executor = executor;
+        this.util = util;
+        configure(capacity, policy);
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of queued events.
+     * @param policy
+     *            What happens to an event if the queue is full.
+     */
+    void configure(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("queue size must be positive: " + capacity);
+        }
+        synchronized (this) {
+            this.capacity = capacity;
+            this.policy = policy;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues events for delivery, applying the overflow policy to each event
+     * which does not fit into the queue.
+     *
+     * @param events
+     *            The events in the order they were fired.
+     */
+    void offer(List<UserAdminEvent> events) {
+        boolean interrupted = false;
+        boolean firstDrop = false;
+        synchronized (this) {
+            for (UserAdminEvent event : events) {
+                boolean add = true;
+                while (add && queue.size() >= capacity && !interrupted && Thread.currentThread() != drainingThread) {
+                    if (OverflowPolicy.COALESCE == policy && merge(event)) {
+                        coalesced++;
+                        add = false;
+                    } else if (OverflowPolicy.DROP == policy
+                            || (OverflowPolicy.COALESCE == policy && UserAdminEvent.ROLE_CHANGED == event.getType())) {
+                        firstDrop |= 0 == dropped++;
+                        add = false;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // queue the remaining events anyway, but keep the interrupt
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (add) {
+                    queue.add(new QueuedEvent(event));
+                }
+            }
+            schedule();
+        }
+        if (firstDrop) {
+            util.logMessage(this, LogService.LOG_WARNING, "queue of listener " + listener
+                    + " is full - dropping events, see the metrics for their number");
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains the queue - called by the executor.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            drainingThread = Thread.currentThread();
+        }
+        try {
+            for (int i = 0; i < MAX_EVENTS_PER_TASK; i++) {
+                QueuedEvent queued;
+                synchronized (this) {
+                    queued = queue.poll();
+                    if (null == queued) {
+                        scheduled = false;
+                        return;
+                    }
+                    notifyAll();
+                }
+                deliver(queued.event);
+            }
+        } finally {
+            synchronized (this) {
+                drainingThread = null;
+                if (scheduled) {
+                    // more events queued, give other listeners a chance first
+                    scheduled = false;
+                    schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The current metrics of this pipeline.
+     */
+    synchronized EventListenerMetrics getMetrics() {
+        QueuedEvent oldest = queue.peek();
+        long lag = null != oldest ? (System.nanoTime() - oldest.queued) / 1000000 : 0;
+        return new EventListenerMetrics(String.valueOf(listener), queue.size(), lag, delivered, dropped, coalesced,
+                failed, 0 != delivered ? totalLatency / delivered / 1000 : 0, maxLatency / 1000);
+    }
+
+    private void deliver(UserAdminEvent event) {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            listener.roleChanged(event);
+            ok = true;
+        } catch (RuntimeException e) {
+            util.logMessage(this, LogService.LOG_WARNING, "listener " + listener + " failed on event for role '"
+                    + event.getRole().getName() + "': " + e);
+        } finally {
+            long latency = System.nanoTime() - start;
+            synchronized (this) {
+                delivered++;
+                if (!ok) {
+                    failed++;
+                }
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+            }
+        }
+    }
+
+    /**
+     * Replaces a queued created or changed event of the role of the given
+     * change.
+     *
+     * @return True if the event was merged.
+     */
+    private boolean merge(UserAdminEvent event) {
+        if (UserAdminEvent.ROLE_CHANGED != event.getType()) {
+            return false;
+        }
+        String name = event.getRole().getName();
+        // the latest event of the role decides, a removal must not be skipped
+        for (Iterator<QueuedEvent> it = queue.descendingIterator(); it.hasNext();) {
+            QueuedEvent queued = it.next();
+            if (name.equals(queued.event.getRole().getName())) {
+                if (UserAdminEvent.ROLE_REMOVED == queued.event.getType()) {
+                    return false;
+                }
+                queued.event = new UserAdminEvent(queued.event.getServiceReference(), queued.event.getType(), event.getRole());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        if (!scheduled && !queue.isEmpty()) {
+            scheduled = true;
+            if (null != drainingThread) {
+                // the running task reschedules itself
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled = false;
+                util.logMessage(this, LogService.LOG_ERROR, "event delivery to " + listener + " rejected: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + listener + "]";
+    }
+
+    /**
+     * An event together with the time it was queued.
+     */
+    private static final class QueuedEvent {
+
+        private UserAdminEvent event;
+
+        private final long     queued = System.nanoTime();
+
+        private QueuedEvent(UserAdminEvent event) {
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Tracks the topics of the registered <code>EventHandler</code> services, so
+ * events nobody subscribed to need not be built and posted.
+ * <p>
+ * Only the service references are tracked, the handlers themselves are not
+ * fetched. Handler filters are not evaluated - a handler subscribed to a
+ * topic counts as subscriber for all events of the topic.
+ */
+class EventTopicTracker extends ServiceTracker<EventHandler, ServiceReference<EventHandler>> {
+
+    /**
+     * The subscription state of the topics asked for, valid as long as the
+     * tracking count does not change.
+     */
+    private volatile TopicCache cache = new TopicCache(-1);
+
+    /**
+     * @param context
+     *            The bundle context used to track the handlers.
+     */
+    EventTopicTracker(BundleContext context) {
+        super(context, EventHandler.class, null);
+    }
+
+    @Override
+    public ServiceReference<EventHandler> addingService(ServiceReference<EventHandler> reference) {
+        return reference;
+    }
+
+    /**
+     * @param topic
+     *            The topic of an event.
+     * @return True if at least one handler is subscribed to the topic.
+     */
+    boolean hasSubscriber(String topic) {
+        // read the count first: a change while evaluating invalidates the result
+        int trackingCount = getTrackingCount();
+        if (trackingCount < 0) {
+            // not open, the handlers are unknown
+            return true;
+        }
+        TopicCache current = cache;
+        if (current.trackingCount != trackingCount) {
+            current = new TopicCache(trackingCount);
+            cache = current;
+        }
+        Boolean subscribed = current.subscribed.get(topic);
+        if (null == subscribed) {
+            subscribed = isSubscribed(getServiceReferences(), topic);
+            current.subscribed.put(topic, subscribed);
+        }
+        return subscribed;
+    }
+
+    private static boolean isSubscribed(ServiceReference<EventHandler>[] references, String topic) {
+        if (null == references) {
+            return false;
+        }
+        for (ServiceReference<EventHandler> reference : references) {
+            Object topics = reference.getProperty(EventConstants.EVENT_TOPIC);
+            if (topics instanceof String) {
+                if (matches((String) topics, topic)) {
+                    return true;
+                }
+            } else if (topics instanceof String[]) {
+                for (String filter : (String[]) topics) {
+                    if (matches(filter, topic)) {
+                        return true;
+                    }
+                }
+            } else if (topics instanceof Collection) {
+                for (Object filter : (Collection<?>) topics) {
+                    if (filter instanceof String && matches((String) filter, topic)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param filter
+     *            A topic of a handler, either a topic name or a prefix ending
+     *            with <code>*</code>.
+     * @param topic
+     *            The topic of an event.
+     * @return True if the event topic is matched by the filter.
+     */
+    static boolean matches(String filter, String topic) {
+        if ("*".equals(filter)) {
+            return true;
+        }
+        if (filter.endsWith("/*")) {
+            return topic.startsWith(filter.substring(0, filter.length() - 1));
+        }
+        return filter.equals(topic);
+    }
+
+    private static final class TopicCache {
+
+        private final int                  trackingCount;
+
+        private final Map<String, Boolean> subscribed = new ConcurrentHashMap<String, Boolean>();
+
+        private TopicCache(int trackingCount) {
+            this.trackingCount = trackingCount;
+        }
+    }
+}
@@ -17,7 +17,6 @@
 
 package org.ops4j.pax.useradmin.service.internal;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
@@ -51,9 +50,13 @@ public class GroupImpl extends UserImpl
             try {
                 getAdmin().checkAdminPermission();
                 StorageProvider storageProvider = getAdmin().getStorageProvider();
-                return storageProvider.addMember(this, role);
-                // TODO: verify that we really don't need to fire an event here
-                // - the spec doesn't mention anything
+                if (storageProvider.addMember(this, role)) {
+                    getAdmin().memberAdded(this, role, false);
+                    // TODO: verify that we really don't need to fire an event here
+                    // - the spec doesn't mention anything
+                    return true;
+                }
+                return false;
             } catch (StorageException e) {
                 getAdmin().logMessage(this, LogService.LOG_ERROR, "error when adding basic member to group '" + getName() + "':" + e.getMessage());
             }
@@ -67,7 +70,11 @@ public class GroupImpl extends UserImpl
             try {
                 getAdmin().checkAdminPermission();
                 StorageProvider storageProvider = getAdmin().getStorageProvider();
-                return storageProvider.addRequiredMember(this, role);
+                if (storageProvider.addRequiredMember(this, role)) {
+                    getAdmin().memberAdded(this, role, true);
+                    return true;
+                }
+                return false;
             } catch (StorageException e) {
                 getAdmin().logMessage(this, LogService.LOG_ERROR, "error when adding required member to group '" + getName() + "':" + e.getMessage());
             }
@@ -81,7 +88,11 @@ public class GroupImpl extends UserImpl
             try {
                 getAdmin().checkAdminPermission();
                 StorageProvider storageProvider = getAdmin().getStorageProvider();
-                return storageProvider.removeMember(this, role);
+                if (storageProvider.removeMember(this, role)) {
+                    getAdmin().memberRemoved(this, role);
+                    return true;
+                }
+                return false;
             } catch (StorageException e) {
                 getAdmin().logMessage(this, LogService.LOG_ERROR, "error when removing member from group '" + getName() + "':" + e.getMessage());
             }
@@ -125,7 +136,8 @@ public class GroupImpl extends UserImpl
     }
 
     /**
-     * Checks if this group is implied by the given role.
+     * Checks if this group is implied by the given role. The check is done by
+     * the <code>RoleGraph</code> of the admin service.
      * 
      * @param role
      *            The role to check.
@@ -135,51 +147,7 @@ public class GroupImpl extends UserImpl
      */
     @Override
     public ImplicationResult isImpliedBy(SPIRole role, Collection<String> checkedRoles) {
-        // check if this group is implied
-        ImplicationResult isImplied = super.isImpliedBy(role, checkedRoles);
-        if (ImplicationResult.IMPLIEDBY_NO != isImplied) {
-            return isImplied;
-        } else {
-            // check if all required members are implied
-            Role[] members = getRequiredMembers();
-            if (null != members) {
-                Collection<String> localCheckedRoles = new ArrayList<String>(checkedRoles);
-                for (Role member : members) {
-                    if (member instanceof SPIRole) {
-                        isImplied = ((SPIRole) member).isImpliedBy(role, localCheckedRoles);
-                        if (ImplicationResult.IMPLIEDBY_YES != isImplied) {
-                            // not implied because not all required members are
-                            // implied or a loop was detected
-                            return isImplied;
-                        }
-                    } else {
-                        if (member != null) {
-                            getAdmin().logMessage(GroupImpl.class.getSimpleName(), LogService.LOG_WARNING, "RequiredMember " + member.getName()
-                                    + " is ignored because " + member.getClass().getName() + " does not implement the SPIRole interface");
-                        }
-                    }
-                }
-            }
-            members = getMembers();
-            if (null != members) {
-                Collection<String> localCheckedRoles = new ArrayList<String>(checkedRoles);
-                for (Role member : members) {
-                    if (member instanceof SPIRole) {
-                        isImplied = ((SPIRole) member).isImpliedBy(role, localCheckedRoles);
-                        if (ImplicationResult.IMPLIEDBY_YES == isImplied) {
-                            // implied because one basic member is implied
-                            return isImplied;
-                        }
-                    } else {
-                        if (member != null) {
-                            getAdmin().logMessage(GroupImpl.class.getSimpleName(), LogService.LOG_WARNING, "BasicMember " + member.getName()
-                                    + " is ignored because " + member.getClass().getName() + " does not implement the SPIRole interface");
-                        }
-                    }
-                }
-            }
-        }
-        return ImplicationResult.IMPLIEDBY_NO;
+        return getAdmin().getRoleGraph().isImpliedBy(getName(), role.getName(), checkedRoles);
     }
 
     @Override
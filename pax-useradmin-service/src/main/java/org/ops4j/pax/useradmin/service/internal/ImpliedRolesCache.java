@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the effective (transitive) role set of users, i.e. the names of all
+ * roles that are implied by a given user.
+ * <p>
+ * Entries are computed by the callers (see {@link AuthorizationImpl}) and
+ * dropped as soon as a role they depend on is created, removed or its members
+ * change. A generation counter is incremented on every invalidation so that a
+ * role set computed concurrently to a change is never kept.
+ * <p>
+ * The generation of the last invalidation of each role is recorded as well,
+ * so a role set kept outside of the cache can be checked for changes
+ * affecting it - see {@link #isStale(String, Set, long)}. The number of these
+ * records is bounded: when it is exceeded they are dropped and all role sets
+ * computed before are treated as stale.
+ */
+class ImpliedRolesCache {
+
+    /**
+     * The default maximum number of roles whose last invalidation is
+     * recorded.
+     */
+    static final int                                 DEFAULT_MAX_INVALIDATIONS = 4096;
+
+    /**
+     * Maps user names to the names of all roles implied by that user.
+     */
+    private final ConcurrentMap<String, Set<String>> impliedRoles              = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Incremented whenever cached data is invalidated.
+     */
+    private final AtomicLong                         generation                = new AtomicLong();
+
+    /**
+     * Maps role names to the generation they were last invalidated at.
+     */
+    private final ConcurrentMap<String, Long>        invalidated               = new ConcurrentHashMap<String, Long>();
+
+    private final int                                maxInvalidations;
+
+    /**
+     * Role sets computed before this generation are stale - set when all
+     * role sets are invalidated and when the per role generations are
+     * dropped.
+     */
+    private volatile long                            invalidatedAll;
+
+    ImpliedRolesCache() {
+        this(DEFAULT_MAX_INVALIDATIONS);
+    }
+
+    /**
+     * @param maxInvalidations
+     *            The maximum number of roles whose last invalidation is
+     *            recorded.
+     */
+    ImpliedRolesCache(int maxInvalidations) {
+        this.maxInvalidations = maxInvalidations;
+    }
+
+    /**
+     * @return The current generation of the cache - to be passed to
+     *         {@link #put(String, Set, long)} when the computation of a role
+     *         set is finished.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param userName
+     *            The name of the user.
+     * @return The cached role set of the given user or null if none is
+     *         cached.
+     */
+    Set<String> get(String userName) {
+        return impliedRoles.get(userName);
+    }
+
+    /**
+     * Stores the role set of a user unless the cache was invalidated since
+     * the computation was started.
+     *
+     * @param userName
+     *            The name of the user.
+     * @param roleNames
+     *            The names of all roles implied by the user.
+     * @param startGeneration
+     *            The generation read before the computation was started.
+     */
+    void put(String userName, Set<String> roleNames, long startGeneration) {
+        if (generation.get() != startGeneration) {
+            return;
+        }
+        impliedRoles.put(userName, roleNames);
+        if (generation.get() != startGeneration) {
+            // an invalidation happened meanwhile and might have missed us
+            impliedRoles.remove(userName, roleNames);
+        }
+    }
+
+    /**
+     * Checks if a role set computed at the given generation might have been
+     * changed since - whether it is still cached or not.
+     *
+     * @param userName
+     *            The name of the user.
+     * @param roleNames
+     *            The names of all roles implied by the user.
+     * @param startGeneration
+     *            The generation read before the computation was started.
+     * @return True if one of the roles, the user included, was invalidated
+     *         after the given generation.
+     */
+    boolean isStale(String userName, Set<String> roleNames, long startGeneration) {
+        if (invalidatedAll > startGeneration || isInvalidated(userName, startGeneration)) {
+            return true;
+        }
+        for (String roleName : roleNames) {
+            if (isInvalidated(roleName, startGeneration)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isInvalidated(String roleName, long startGeneration) {
+        Long roleGeneration = invalidated.get(roleName);
+        return null != roleGeneration && roleGeneration.longValue() > startGeneration;
+    }
+
+    /**
+     * Drops all cached role sets which might be affected by a change of the
+     * given role: the role set of the role itself and all role sets that
+     * contain the role.
+     *
+     * @param roleName
+     *            The name of the role that was created, removed or changed.
+     */
+    void invalidate(String roleName) {
+        invalidate(Collections.singleton(roleName));
+    }
+
+    /**
+     * Drops all cached role sets which might be affected by a change of one
+     * of the given roles - see {@link #invalidate(String)}. The cached role
+     * sets are visited once for all roles.
+     *
+     * @param roleNames
+     *            The names of the roles that were changed.
+     */
+    void invalidate(Collection<String> roleNames) {
+        long roleGeneration = generation.incrementAndGet();
+        for (String roleName : roleNames) {
+            recordInvalidation(roleName, roleGeneration);
+            impliedRoles.remove(roleName);
+        }
+        Iterator<Entry<String, Set<String>>> iterator = impliedRoles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Set<String> cached = iterator.next().getValue();
+            for (String roleName : roleNames) {
+                if (cached.contains(roleName)) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the generation a role was invalidated at unless a concurrent
+     * invalidation recorded a later one.
+     */
+    private void recordInvalidation(String roleName, long roleGeneration) {
+        Long value = Long.valueOf(roleGeneration);
+        Long previous = invalidated.putIfAbsent(roleName, value);
+        if (null == previous && invalidated.size() > maxInvalidations) {
+            dropInvalidations(roleGeneration);
+            return;
+        }
+        while (null != previous && previous.longValue() < roleGeneration) {
+            if (invalidated.replace(roleName, previous, value)) {
+                return;
+            }
+            previous = invalidated.putIfAbsent(roleName, value);
+        }
+    }
+
+    /**
+     * Drops all cached role sets.
+     */
+    synchronized void invalidateAll() {
+        dropInvalidations(generation.incrementAndGet());
+        impliedRoles.clear();
+    }
+
+    /**
+     * Treats all role sets computed before the given generation as stale and
+     * drops the per role generations covered by this - but not the ones of
+     * concurrent invalidations.
+     */
+    private synchronized void dropInvalidations(long all) {
+        if (invalidatedAll < all) {
+            invalidatedAll = all;
+        }
+        for (Entry<String, Long> entry : invalidated.entrySet()) {
+            if (entry.getValue().longValue() <= all) {
+                invalidated.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
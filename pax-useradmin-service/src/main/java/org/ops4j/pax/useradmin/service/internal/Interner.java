@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A thread safe dictionary returning one canonical instance for equal
+ * strings. Unlike <code>String.intern()</code> the instances are only weakly
+ * referenced, so strings no longer used elsewhere are collected. The strings
+ * are spread over independently locked stripes by their hash code.
+ */
+class Interner {
+
+    /**
+     * The dictionary shared by the admin services of this bundle, their
+     * storage providers and the role properties.
+     */
+    static final Interner                              SHARED  = new Interner();
+
+    /**
+     * The number of stripes - a power of two.
+     */
+    private static final int                           STRIPES = 16;
+
+    private final Map<String, WeakReference<String>>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    Interner() {
+        stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap<String, WeakReference<String>>();
+        }
+    }
+
+    /**
+     * @param value
+     *            The string to canonicalize, may be null.
+     * @return The canonical instance equal to the given string, the string
+     *         itself if it is the first of its value.
+     */
+    String intern(String value) {
+        if (null == value) {
+            return null;
+        }
+        int hash = value.hashCode();
+        Map<String, WeakReference<String>> canonical = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (canonical) {
+            WeakReference<String> reference = canonical.get(value);
+            String existing = null != reference ? reference.get() : null;
+            if (null != existing) {
+                return existing;
+            }
+            canonical.put(value, new WeakReference<String>(value));
+            return value;
+        }
+    }
+
+    /**
+     * @return The number of strings currently known.
+     */
+    int size() {
+        int size = 0;
+        for (Map<String, WeakReference<String>> canonical : stripes) {
+            synchronized (canonical) {
+                size += canonical.size();
+            }
+        }
+        return size;
+    }
+}
@@ -18,27 +18,50 @@
 package org.ops4j.pax.useradmin.service.internal;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 
 import javax.crypto.NoSuchPaddingException;
 
+import org.ops4j.pax.useradmin.service.PaxAuthorization;
+import org.ops4j.pax.useradmin.service.PaxAuthorizationService;
+import org.ops4j.pax.useradmin.service.CacheMetrics;
+import org.ops4j.pax.useradmin.service.EventListenerMetrics;
+import org.ops4j.pax.useradmin.service.PaxCacheMetricsService;
+import org.ops4j.pax.useradmin.service.PaxEventBatch;
+import org.ops4j.pax.useradmin.service.PaxEventBatchService;
+import org.ops4j.pax.useradmin.service.PaxEventMetricsService;
+import org.ops4j.pax.useradmin.service.PaxRoleQueryService;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
 import org.ops4j.pax.useradmin.service.internal.encryption.EncryptorContext;
 import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminDecryptor;
 import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminEncryptor;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
@@ -46,7 +69,6 @@ import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.service.log.LogService;
-import org.osgi.service.useradmin.Authorization;
 import org.osgi.service.useradmin.Group;
 import org.osgi.service.useradmin.Role;
 import org.osgi.service.useradmin.User;
@@ -64,7 +86,43 @@ import org.osgi.util.tracker.ServiceTracker;
  * @see <a href="http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/UserAdmin.html">http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/UserAdmin.html</a>
  */
 public class PaxUserAdmin
-        implements UserAdmin, UserAdminUtil, UserAdminFactory {
+        implements UserAdmin, PaxAuthorizationService, PaxRoleQueryService, PaxEventBatchService,
+        PaxEventMetricsService, PaxCacheMetricsService, UserAdminUtil, UserAdminFactory {
+
+    /**
+     * The number of entries kept by each storage cache if not configured.
+     */
+    private static final long                                          DEFAULT_CACHE_SIZE            = 1000;
+
+    /**
+     * The time in milliseconds storage cache entries are kept if not
+     * configured.
+     */
+    private static final long                                          DEFAULT_CACHE_TTL             = 60000;
+
+    /**
+     * The time in milliseconds names of non-existing roles are remembered if
+     * not configured.
+     */
+    private static final long                                          DEFAULT_NEGATIVE_CACHE_TTL    = 1000;
+
+    /**
+     * The time in milliseconds after which the role graph is read again if
+     * not configured - never, only changes made through this service are
+     * seen.
+     */
+    private static final long                                          DEFAULT_ROLE_GRAPH_REFRESH    = 0;
+
+    /**
+     * The time in milliseconds events are held back to merge changes if not
+     * configured.
+     */
+    private static final long                                          DEFAULT_EVENT_COALESCE_WINDOW = 0;
+
+    /**
+     * The number of events queued for each listener if not configured.
+     */
+    private static final long                                          DEFAULT_EVENT_QUEUE_SIZE      = 1000;
 
     /**
      * The administrative permission used to verify access to restricted
@@ -84,10 +142,31 @@ public class PaxUserAdmin
 
     private final StorageProvider                                      storageProvider;
 
+    /**
+     * The provider used for all storage access - either the configured
+     * provider or a {@link CachingStorageProvider} decorating it.
+     */
+    private volatile StorageProvider                                   activeStorageProvider;
+
     private ServiceRegistration<?>                                     userAdminRegistration;
 
+    private ServiceRegistration<?>                                     authorizationServiceRegistration;
+
+    private ServiceRegistration<?>                                     roleQueryServiceRegistration;
+
+    private ServiceRegistration<?>                                     eventBatchServiceRegistration;
+
+    private ServiceRegistration<?>                                     eventMetricsServiceRegistration;
+
+    private ServiceRegistration<?>                                     cacheMetricsServiceRegistration;
+
     private final ServiceTracker<UserAdminListener, UserAdminListener> listenerService;
 
+    /**
+     * The topics subscribed by event handlers, null to post all events.
+     */
+    private final EventTopicTracker                                    eventTopics;
+
     private Map<String, ?>                                             properties;
 
     private Encryptor                                                  encryptor;
@@ -96,6 +175,29 @@ public class PaxUserAdmin
 
     private final ExecutorService                                      eventExecutor;
 
+    private final EventDispatcher                                      eventDispatcher;
+
+    /**
+     * The delivery queue of each listener - guarded by itself, as are the
+     * queue settings below.
+     */
+    private final Map<UserAdminListener, EventPipeline>                eventPipelines      = new IdentityHashMap<UserAdminListener, EventPipeline>();
+
+    private int                                                        eventQueueSize      = (int) DEFAULT_EVENT_QUEUE_SIZE;
+
+    private EventPipeline.OverflowPolicy                               eventOverflowPolicy = EventPipeline.OverflowPolicy.COALESCE;
+
+    private final ImpliedRolesCache                                    impliedRolesCache = new ImpliedRolesCache();
+
+    private final RoleGraph                                            roleGraph         = new RoleGraph(this);
+
+    private volatile boolean                                           authorizationSnapshots;
+
+    /**
+     * Names of roles recently looked up without success, null if disabled.
+     */
+    private volatile BoundedCache<String, Boolean>                     missingRoles = createMissingRolesCache(DEFAULT_NEGATIVE_CACHE_TTL);
+
     /**
      * Constructor - creates and initializes a <code>UserAdminImpl</code>
      * instance.
@@ -115,8 +217,43 @@ public class PaxUserAdmin
                            ServiceTracker<EventAdmin, EventAdmin> eventService,
                            ServiceTracker<UserAdminListener, UserAdminListener> listenerService,
                            ExecutorService eventExecutor) {
+        this(storageProvider, logService, eventService, listenerService, eventExecutor, null);
+    }
+
+    /**
+     * Constructor - creates and initializes a <code>UserAdminImpl</code>
+     * instance which posts events only for topics an event handler is
+     * subscribed to.
+     * 
+     * @param storageProvider
+     *            A <code>ServiceTracker</code> to locate the
+     *            <code>StorageProvider</code> service to use.
+     * @param logService
+     *            A <code>ServiceTracker</code> to locate the
+     *            <code>LogService</code> to use.
+     * @param eventService
+     *            A <code>ServiceTracker</code> to locate the
+     *            <code>EventAdmin</code> service to use.
+     * @param eventTopics
+     *            Tracks the topics subscribed by event handlers, null to post
+     *            all events.
+     */
+    protected PaxUserAdmin(StorageProvider storageProvider,
+                           ServiceTracker<LogService, LogService> logService,
+                           ServiceTracker<EventAdmin, EventAdmin> eventService,
+                           ServiceTracker<UserAdminListener, UserAdminListener> listenerService,
+                           ExecutorService eventExecutor,
+                           EventTopicTracker eventTopics) {
 
         this.eventExecutor = eventExecutor;
+        this.eventTopics = eventTopics;
+        this.eventDispatcher = new EventDispatcher(new EventDispatcher.Delivery() {
+
+            @Override
+            public void deliver(List<UserAdminEvent> events) {
+                deliverEvents(events);
+            }
+        });
         if (null == storageProvider) {
             throw new IllegalArgumentException("No StorageProvider ServiceTracker specified.");
         }
@@ -127,6 +264,7 @@ public class PaxUserAdmin
             throw new IllegalArgumentException("No EventAdmin ServiceTracker specified.");
         }
         this.storageProvider = storageProvider;
+        this.activeStorageProvider = storageProvider;
         this.listenerService = listenerService;
         m_logService = logService;
         m_eventService = eventService;
@@ -181,7 +319,76 @@ public class PaxUserAdmin
             this.properties = properties;
             encryptor = null;
         }
-        getStorageProvider().configurationUpdated(properties);
+        authorizationSnapshots = Boolean.parseBoolean(UserAdminTools.getOptionalProperty(properties,
+                PaxUserAdminConstants.PROPERTY_AUTHORIZATION_SNAPSHOT, "false"));
+        StorageProvider provider = storageProvider;
+        if (Boolean.parseBoolean(UserAdminTools.getOptionalProperty(properties,
+                PaxUserAdminConstants.PROPERTY_CACHE_ENABLED, "false"))) {
+            provider = new CachingStorageProvider(storageProvider, this,
+                    (int) getNumberProperty(properties, PaxUserAdminConstants.PROPERTY_CACHE_SIZE, DEFAULT_CACHE_SIZE),
+                    getNumberProperty(properties, PaxUserAdminConstants.PROPERTY_CACHE_TTL, DEFAULT_CACHE_TTL));
+        }
+        missingRoles = createMissingRolesCache(getNumberProperty(properties,
+                PaxUserAdminConstants.PROPERTY_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL));
+        eventDispatcher.setWindow(getNumberProperty(properties,
+                PaxUserAdminConstants.PROPERTY_EVENT_COALESCE_WINDOW, DEFAULT_EVENT_COALESCE_WINDOW));
+        configureEventPipelines(properties);
+        StorageProvider previous = activeStorageProvider;
+        activeStorageProvider = provider;
+        if (previous instanceof CachingStorageProvider) {
+            logMessage(this, LogService.LOG_INFO, "storage cache replaced - "
+                    + ((CachingStorageProvider) previous).getMetrics());
+        }
+        roleGraph.setRefreshInterval(getNumberProperty(properties,
+                PaxUserAdminConstants.PROPERTY_ROLE_GRAPH_REFRESH, DEFAULT_ROLE_GRAPH_REFRESH));
+        // the graph first - a role set computed from the old graph must not
+        // be cached after the invalidation
+        roleGraph.clear();
+        impliedRolesCache.invalidateAll();
+        provider.configurationUpdated(properties);
+    }
+
+    private void configureEventPipelines(Map<String, ?> properties) throws ConfigurationException {
+        long queueSize = getNumberProperty(properties, PaxUserAdminConstants.PROPERTY_EVENT_QUEUE_SIZE,
+                DEFAULT_EVENT_QUEUE_SIZE);
+        if (queueSize <= 0 || queueSize > Integer.MAX_VALUE) {
+            throw new ConfigurationException(PaxUserAdminConstants.PROPERTY_EVENT_QUEUE_SIZE,
+                    "not a valid queue size: " + queueSize);
+        }
+        EventPipeline.OverflowPolicy policy;
+        try {
+            policy = EventPipeline.OverflowPolicy.parse(UserAdminTools.getOptionalProperty(properties,
+                    PaxUserAdminConstants.PROPERTY_EVENT_OVERFLOW_POLICY, "coalesce"));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(PaxUserAdminConstants.PROPERTY_EVENT_OVERFLOW_POLICY, e.getMessage());
+        }
+        synchronized (eventPipelines) {
+            eventQueueSize = (int) queueSize;
+            eventOverflowPolicy = policy;
+            for (EventPipeline pipeline : eventPipelines.values()) {
+                pipeline.configure(eventQueueSize, eventOverflowPolicy);
+            }
+        }
+    }
+
+    private static BoundedCache<String, Boolean> createMissingRolesCache(long timeToLive) {
+        if (timeToLive <= 0) {
+            return null;
+        }
+        return new BoundedCache<String, Boolean>((int) DEFAULT_CACHE_SIZE, timeToLive);
+    }
+
+    private static long getNumberProperty(Map<String, ?> properties, String name, long defaultValue)
+            throws ConfigurationException {
+        String value = UserAdminTools.getOptionalProperty(properties, name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(name, "not a number: " + value);
+        }
     }
 
     // UserAdmin interface
@@ -196,28 +403,31 @@ public class PaxUserAdmin
         if (!((type == Role.GROUP) || (type == Role.USER))) {
             throw new IllegalArgumentException(UserAdminMessages.MSG_INVALID_ROLE_TYPE);
         }
-        //
-        // return null if the role already exists (see chapter 107.8.6.1)
-        //
-        if (null != getRole(name)) {
-            logMessage(this, LogService.LOG_INFO, "createRole() - role already exists: " + name);
-            return null;
-        }
-        //
         Role role = null;
         try {
             StorageProvider storageProvider = getStorageProvider();
-            switch (type) {
-                case Role.USER:
-                    role = storageProvider.createUser(this, name);
-                    break;
+            if (storageProvider instanceof AtomicStorageProvider) {
+                role = ((AtomicStorageProvider) storageProvider).createIfAbsent(this, name, type);
+            } else if (null == storageProvider.getRole(this, name)) {
+                switch (type) {
+                    case Role.USER:
+                        role = storageProvider.createUser(this, name);
+                        break;
 
-                case Role.GROUP:
-                    role = storageProvider.createGroup(this, name);
-                    break;
+                    case Role.GROUP:
+                        role = storageProvider.createGroup(this, name);
+                        break;
 
-                default:
-                    // never reached b/o previous checks
+                    default:
+                        // never reached b/o previous checks
+                }
+            }
+            //
+            // return null if the role already exists (see chapter 107.8.6.1)
+            //
+            if (null == role) {
+                logMessage(this, LogService.LOG_INFO, "createRole() - role already exists: " + name);
+                return null;
             }
             fireEvent(UserAdminEvent.ROLE_CREATED, role);
             logMessage(this, LogService.LOG_INFO, "role created: " + name + " - " + role);
@@ -228,11 +438,11 @@ public class PaxUserAdmin
     }
 
     @Override
-    public Authorization getAuthorization(User user) {
+    public PaxAuthorization getAuthorization(User user) {
         if (null == user) {
             throw (new IllegalArgumentException(UserAdminMessages.MSG_INVALID_USER));
         }
-        return new AuthorizationImpl(this, user);
+        return new AuthorizationImpl(this, user, authorizationSnapshots);
     }
 
     @Override
@@ -244,9 +454,19 @@ public class PaxUserAdmin
             name = Role.USER_ANYONE;
         }
         //
+        BoundedCache<String, Boolean> missing = missingRoles;
+        if (null != missing && null != missing.get(name)) {
+            return null;
+        }
         try {
+            long generation = impliedRolesCache.getGeneration();
             StorageProvider storage = getStorageProvider();
-            return storage.getRole(this, name);
+            Role role = storage.getRole(this, name);
+            // don't remember the name if the role was created meanwhile
+            if (null == role && null != missing && generation == impliedRolesCache.getGeneration()) {
+                missing.put(name, Boolean.TRUE);
+            }
+            return role;
         } catch (StorageException e) {
             logMessage(this, LogService.LOG_ERROR, e.getMessage());
         }
@@ -290,6 +510,10 @@ public class PaxUserAdmin
             throw (new IllegalArgumentException(UserAdminMessages.MSG_INVALID_NAME));
         }
         if (!"".equals(name) && !Role.USER_ANYONE.equals(name)) {
+            StorageProvider storage = getStorageProvider();
+            if (storage instanceof AtomicStorageProvider) {
+                return removeRole((AtomicStorageProvider) storage, name);
+            }
             Role role = getRole(name);
             if (null != role) {
                 checkAdminPermission();
@@ -313,11 +537,186 @@ public class PaxUserAdmin
         return false;
     }
 
+    private boolean removeRole(AtomicStorageProvider storage, String name) {
+        checkAdminPermission();
+        try {
+            Role role = storage.deleteByName(this, name);
+            if (null != role) {
+                fireEvent(UserAdminEvent.ROLE_REMOVED, role);
+                return true;
+            }
+            logMessage(this, LogService.LOG_ERROR, "Role '" + name + "' does not exist.");
+        } catch (StorageException e) {
+            logMessage(this, LogService.LOG_ERROR, e.getMessage());
+        }
+        return false;
+    }
+
+    // PaxAuthorizationService interface
+
+    @Override
+    public boolean[][] authorizeMatrix(User[] users, String[] names) {
+        boolean[][] result = new boolean[users.length][];
+        for (int i = 0; i < users.length; i++) {
+            result[i] = getAuthorization(users[i]).hasRoles(names);
+        }
+        return result;
+    }
+
+    // PaxRoleQueryService interface
+
+    @Override
+    public RolePage getRoles(String filter, String continuation, int pageSize) throws InvalidSyntaxException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        if (null != filter && null == continuation) {
+            // report syntax errors before any role is read
+            FrameworkUtil.createFilter(filter);
+        }
+        try {
+            return findRoles(getStorageProvider(), this, filter, continuation, pageSize);
+        } catch (StorageException e) {
+            logMessage(this, LogService.LOG_ERROR, e.getMessage());
+            throw new IllegalStateException("Error retrieving roles for filter '" + filter + "'", e);
+        }
+    }
+
+    @Override
+    public Iterator<Role> iterateRoles(String filter, int pageSize) throws InvalidSyntaxException {
+        return new RoleIterator(filter, pageSize, getRoles(filter, null, pageSize));
+    }
+
+    @Override
+    public Collection<String> getMemberNames(Group group) {
+        try {
+            return getMemberNames(getStorageProvider(), this, group, false);
+        } catch (StorageException e) {
+            logMessage(this, LogService.LOG_ERROR, e.getMessage());
+            throw new IllegalStateException("Error retrieving members of group '" + group.getName() + "'", e);
+        }
+    }
+
+    @Override
+    public Collection<String> getRequiredMemberNames(Group group) {
+        try {
+            return getMemberNames(getStorageProvider(), this, group, true);
+        } catch (StorageException e) {
+            logMessage(this, LogService.LOG_ERROR, e.getMessage());
+            throw new IllegalStateException("Error retrieving required members of group '" + group.getName() + "'", e);
+        }
+    }
+
+    @Override
+    public int getMemberCount(Group group) {
+        try {
+            return getMemberCount(getStorageProvider(), this, group);
+        } catch (StorageException e) {
+            logMessage(this, LogService.LOG_ERROR, e.getMessage());
+            throw new IllegalStateException("Error counting members of group '" + group.getName() + "'", e);
+        }
+    }
+
+    /**
+     * Retrieves the names of the basic or required members of a group from
+     * the given provider. If the provider can not list member names, they are
+     * taken from the member roles.
+     */
+    static Collection<String> getMemberNames(StorageProvider storage, UserAdminFactory factory, Group group, boolean required)
+            throws StorageException {
+        if (storage instanceof MembershipStorageProvider) {
+            MembershipStorageProvider membership = (MembershipStorageProvider) storage;
+            return required ? membership.getRequiredMemberNames(group) : membership.getMemberNames(group);
+        }
+        Collection<Role> members = required ? storage.getRequiredMembers(factory, group) : storage.getMembers(factory, group);
+        Collection<String> names = new ArrayList<String>();
+        if (null != members) {
+            for (Role member : members) {
+                names.add(member.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Counts the basic and required members of a group.
+     */
+    static int getMemberCount(StorageProvider storage, UserAdminFactory factory, Group group) throws StorageException {
+        if (storage instanceof MembershipStorageProvider) {
+            return ((MembershipStorageProvider) storage).getMemberCount(group);
+        }
+        return getMemberNames(storage, factory, group, false).size() + getMemberNames(storage, factory, group, true).size();
+    }
+
+    /**
+     * Retrieves a page of roles from the given provider. If the provider does
+     * not support paging, the complete result is ordered by name and the name
+     * of the last role of a page is used as continuation.
+     */
+    static RolePage findRoles(StorageProvider storage, UserAdminFactory factory, String filter, String continuation, int pageSize)
+            throws StorageException {
+        if (storage instanceof PagedStorageProvider) {
+            return ((PagedStorageProvider) storage).findRoles(factory, filter, continuation, pageSize);
+        }
+        SortedMap<String, Role> sorted = new TreeMap<String, Role>();
+        for (Role role : storage.findRoles(factory, filter)) {
+            sorted.put(role.getName(), role);
+        }
+        if (null != continuation) {
+            // all names following the continuation
+            sorted = sorted.tailMap(continuation + '\0');
+        }
+        List<Role> roles = new ArrayList<Role>();
+        for (Role role : sorted.values()) {
+            if (roles.size() == pageSize) {
+                return new RolePage(roles, roles.get(pageSize - 1).getName());
+            }
+            roles.add(role);
+        }
+        return new RolePage(roles, null);
+    }
+
+    // PaxEventBatchService interface
+
+    @Override
+    public PaxEventBatch beginBatch() {
+        return eventDispatcher.beginBatch();
+    }
+
+    // PaxEventMetricsService interface
+
+    @Override
+    public List<EventListenerMetrics> getEventListenerMetrics() {
+        List<EventListenerMetrics> metrics = new ArrayList<EventListenerMetrics>();
+        synchronized (eventPipelines) {
+            for (EventPipeline pipeline : eventPipelines.values()) {
+                metrics.add(pipeline.getMetrics());
+            }
+        }
+        return metrics;
+    }
+
+    // PaxCacheMetricsService interface
+
+    @Override
+    public List<CacheMetrics> getCacheMetrics() {
+        List<CacheMetrics> metrics = new ArrayList<CacheMetrics>();
+        StorageProvider provider = activeStorageProvider;
+        if (provider instanceof CachingStorageProvider) {
+            metrics.addAll(((CachingStorageProvider) provider).getMetrics());
+        }
+        BoundedCache<String, Boolean> missing = missingRoles;
+        if (null != missing) {
+            metrics.add(missing.getMetrics("missingRoles"));
+        }
+        return metrics;
+    }
+
     // UserAdminUtil interface
 
     @Override
     public StorageProvider getStorageProvider() throws StorageException {
-        return storageProvider;
+        return activeStorageProvider;
     }
 
     @Override
@@ -333,48 +732,166 @@ public class PaxUserAdmin
         if (null == role) {
             throw new IllegalArgumentException("parameter role must not be null");
         }
+        // property and credential changes don't affect implied roles and
+        // membership changes are handled by memberAdded() and memberRemoved()
+        if (UserAdminEvent.ROLE_CREATED == type) {
+            String name = role.getName();
+            roleGraph.roleCreated(role);
+            invalidateImpliedRoles(name, Collections.<String> emptyList());
+            BoundedCache<String, Boolean> missing = missingRoles;
+            if (null != missing) {
+                missing.remove(name);
+            }
+        } else if (UserAdminEvent.ROLE_REMOVED == type) {
+            invalidateImpliedRoles(role.getName(), roleGraph.roleRemoved(role));
+        }
+        //
         ServiceReference<?> reference = userAdminRegistration.getReference();
-        final UserAdminEvent uaEvent = new UserAdminEvent(reference, type, role);
+        eventDispatcher.fire(new UserAdminEvent(reference, type, role));
+    }
+
+    /**
+     * Sends events to the listeners and the EventAdmin.
+     * 
+     * @param events
+     *            The events in the order they were fired.
+     */
+    private void deliverEvents(final List<UserAdminEvent> events) {
         //
-        // send event to all listeners, asynchronously - in a separate thread!!
+        // queue events for all listeners, delivered asynchronously - in a separate thread!!
         //
         UserAdminListener[] eventListeners = listenerService.getServices(new UserAdminListener[0]);
         if (null != eventListeners) {
-            for (Object listenerObject : eventListeners) {
-                final UserAdminListener listener = (UserAdminListener) listenerObject;
-                eventExecutor.execute(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        listener.roleChanged(uaEvent);
-                    }
-                });
+            for (EventPipeline pipeline : getEventPipelines(eventListeners)) {
+                pipeline.offer(events);
             }
         }
         //
-        // send event to EventAdmin if present
+        // send events to EventAdmin if present
         //
         EventAdmin eventAdmin = m_eventService.getService();
-        String name = getEventTypeName(type);
-        if (null != eventAdmin && name != null) {
-            Dictionary<String, Object> properties = new Hashtable<String, Object>();
-            properties.put("event", uaEvent);
-            properties.put("role", role);
-            properties.put("role.name", role.getName());
-            properties.put("role.type", role.getType());
-            properties.put("service", reference);
-            properties.put("service.id", reference.getProperty(Constants.SERVICE_ID));
-            properties.put("service.objectClass", reference.getProperty(Constants.OBJECTCLASS));
-            properties.put("service.pid", reference.getProperty(Constants.SERVICE_PID));
-            //
-            Event event = new Event(PaxUserAdminConstants.EVENT_TOPIC_PREFIX + name, properties);
-            eventAdmin.postEvent(event);
+        for (UserAdminEvent uaEvent : events) {
+            Role role = uaEvent.getRole();
+            ServiceReference<?> reference = uaEvent.getServiceReference();
+            String name = getEventTypeName(uaEvent.getType());
+            if (null != eventAdmin && name != null) {
+                String topic = PaxUserAdminConstants.EVENT_TOPIC_PREFIX + name;
+                if (null != eventTopics && !eventTopics.hasSubscriber(topic)) {
+                    // nobody listens - don't bother building the event
+                    continue;
+                }
+                Dictionary<String, Object> properties = new Hashtable<String, Object>();
+                properties.put("event", uaEvent);
+                properties.put("role", role);
+                properties.put("role.name", role.getName());
+                properties.put("role.type", role.getType());
+                properties.put("service", reference);
+                properties.put("service.id", reference.getProperty(Constants.SERVICE_ID));
+                properties.put("service.objectClass", reference.getProperty(Constants.OBJECTCLASS));
+                properties.put("service.pid", reference.getProperty(Constants.SERVICE_PID));
+                //
+                Event event = new Event(topic, properties);
+                eventAdmin.postEvent(event);
+            } else {
+                String message = "No event service available or incompatible type - cannot send event of type '" + name + "' for role '" + role.getName() + "'";
+                logMessage(this, LogService.LOG_DEBUG, message);
+            }
+        }
+    }
+
+    /**
+     * @param listeners
+     *            The listeners currently registered.
+     * @return The pipelines of the given listeners, pipelines of listeners
+     *         which are gone are discarded.
+     */
+    private List<EventPipeline> getEventPipelines(UserAdminListener[] listeners) {
+        List<EventPipeline> pipelines = new ArrayList<EventPipeline>(listeners.length);
+        synchronized (eventPipelines) {
+            Map<UserAdminListener, EventPipeline> current = new IdentityHashMap<UserAdminListener, EventPipeline>();
+            for (UserAdminListener listener : listeners) {
+                EventPipeline pipeline = eventPipelines.get(listener);
+                if (null == pipeline) {
+                    pipeline = new EventPipeline(listener, eventExecutor, this, eventQueueSize, eventOverflowPolicy);
+                }
+                current.put(listener, pipeline);
+                pipelines.add(pipeline);
+            }
+            eventPipelines.clear();
+            eventPipelines.putAll(current);
+        }
+        return pipelines;
+    }
+
+    /**
+     * Called by groups after a member was added successfully.
+     * 
+     * @param group
+     *            The group the member was added to.
+     * @param member
+     *            The new member.
+     * @param required
+     *            True if the member was added as required member.
+     */
+    void memberAdded(Group group, Role member, boolean required) {
+        // the graph is updated before the cache is invalidated: a role set
+        // computed concurrently either sees the new graph or is not cached
+        roleGraph.memberAdded(group, member, required);
+        // a new basic member may only add the group to the role sets that
+        // contain the member, a new required member may only remove the group
+        impliedRolesCache.invalidate(required ? group.getName() : member.getName());
+    }
+
+    /**
+     * Called by groups after a member was removed successfully.
+     * 
+     * @param group
+     *            The group the member was removed from.
+     * @param member
+     *            The removed member.
+     */
+    void memberRemoved(Group group, Role member) {
+        // the graph knows if the member was required: then the group may be
+        // added to the role sets of its basic members
+        invalidateImpliedRoles(group.getName(), roleGraph.memberRemoved(group, member));
+    }
+
+    /**
+     * Drops the cached role sets affected by a change of the role graph - to
+     * be called after the graph is updated, see memberAdded().
+     * 
+     * @param roleName
+     *            The name of the role which was changed.
+     * @param implying
+     *            The names of roles whose role sets may have gained a group
+     *            by the change, null if not known.
+     */
+    private void invalidateImpliedRoles(String roleName, Collection<String> implying) {
+        if (null == implying) {
+            impliedRolesCache.invalidateAll();
+        } else if (implying.isEmpty()) {
+            impliedRolesCache.invalidate(roleName);
         } else {
-            String message = "No event service available or incompatible type - cannot send event of type '" + name + "' for role '" + role.getName() + "'";
-            logMessage(this, LogService.LOG_DEBUG, message);
+            Collection<String> roleNames = new ArrayList<String>(implying);
+            roleNames.add(roleName);
+            impliedRolesCache.invalidate(roleNames);
         }
     }
 
+    /**
+     * @return The cache holding the effective role sets of users.
+     */
+    ImpliedRolesCache getImpliedRolesCache() {
+        return impliedRolesCache;
+    }
+
+    /**
+     * @return The in-memory role graph used to evaluate implications.
+     */
+    RoleGraph getRoleGraph() {
+        return roleGraph;
+    }
+
     @Override
     public void checkPermission(String name, String action) {
         SecurityManager sm = System.getSecurityManager();
@@ -395,6 +912,11 @@ public class PaxUserAdmin
         return new GroupImpl(name, this, properties, initialCredentialKeys);
     }
 
+    @Override
+    public String intern(String name) {
+        return Interner.SHARED.intern(name);
+    }
+
     synchronized void register(BundleContext context, String type, Long spi_service_id) {
         if (userAdminRegistration != null) {
             throw new IllegalStateException("This object is already registered under another bundle context!");
@@ -403,12 +925,34 @@ public class PaxUserAdmin
         properties.put(PaxUserAdminConstants.STORAGEPROVIDER_TYPE, type);
         properties.put(PaxUserAdminConstants.STORAGEPROVIDER_SPI_SERVICE_ID, spi_service_id);
         userAdminRegistration = context.registerService(UserAdmin.class, this, properties);
+        authorizationServiceRegistration = context.registerService(PaxAuthorizationService.class, this, properties);
+        roleQueryServiceRegistration = context.registerService(PaxRoleQueryService.class, this, properties);
+        eventBatchServiceRegistration = context.registerService(PaxEventBatchService.class, this, properties);
+        eventMetricsServiceRegistration = context.registerService(PaxEventMetricsService.class, this, properties);
+        cacheMetricsServiceRegistration = context.registerService(PaxCacheMetricsService.class, this, properties);
     }
 
     synchronized void unregister() {
         if (userAdminRegistration == null) {
             throw new IllegalStateException("This object is not registered!");
         }
+        if (authorizationServiceRegistration != null) {
+            authorizationServiceRegistration.unregister();
+        }
+        if (roleQueryServiceRegistration != null) {
+            roleQueryServiceRegistration.unregister();
+        }
+        if (eventBatchServiceRegistration != null) {
+            eventBatchServiceRegistration.unregister();
+        }
+        if (eventMetricsServiceRegistration != null) {
+            eventMetricsServiceRegistration.unregister();
+        }
+        if (cacheMetricsServiceRegistration != null) {
+            cacheMetricsServiceRegistration.unregister();
+        }
+        // deliver events held back before the service goes away
+        eventDispatcher.close();
         userAdminRegistration.unregister();
 
     }
@@ -444,4 +988,55 @@ public class PaxUserAdmin
     public String toString() {
         return getClass().getSimpleName() + "[" + getStorageProvider() + "]";
     }
+
+    /**
+     * Iterates over the roles matching a filter, retrieving the next page when
+     * the current one is exhausted.
+     */
+    private final class RoleIterator implements Iterator<Role> {
+
+        private final String   filter;
+
+        private final int      pageSize;
+
+        private String         continuation;
+
+        private Iterator<Role> current;
+
+        private RoleIterator(String filter, int pageSize, RolePage first) {
+            this.filter = filter;
+            this.pageSize = pageSize;
+            this.continuation = first.getContinuation();
+            this.current = first.getRoles().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && null != continuation) {
+                RolePage page;
+                try {
+                    page = getRoles(filter, continuation, pageSize);
+                } catch (InvalidSyntaxException e) {
+                    // already checked with the first page
+                    throw new IllegalStateException(e);
+                }
+                continuation = page.getContinuation();
+                current = page.getRoles().iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Role next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("roles can not be removed by this iterator");
+        }
+    }
 }
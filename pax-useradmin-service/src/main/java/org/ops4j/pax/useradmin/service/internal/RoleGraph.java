@@ -0,0 +1,778 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * In-memory copy of the role graph used to evaluate role implications.
+ * <p>
+ * Role names are interned to dense int IDs and memberships are kept as
+ * primitive int arrays - basic and required members of each group as well as
+ * the reverse direction, i.e. the groups a role is member of. Evaluations
+ * keep the roles on the current path and memoised results in reusable
+ * per-thread arrays, so checking an implication does neither allocate memory
+ * nor access the storage.
+ * <p>
+ * The graph is read from the storage on first use and afterwards maintained
+ * by the admin service when roles are created or removed and when members are
+ * added or removed. Member arrays are never modified in place but replaced,
+ * so readers need no locking.
+ * <p>
+ * Changes made to the storage by others - e.g. other nodes sharing an LDAP
+ * directory - are not seen unless a refresh interval is configured: then the
+ * graph is read again into new nodes, which replace the current ones as a
+ * whole once complete.
+ */
+class RoleGraph {
+
+    private static final int[] NO_IDS = new int[0];
+
+    /**
+     * A role in the graph.
+     */
+    private static final class Node {
+
+        private final int        id;
+
+        private final String     name;
+
+        private final boolean    anyone;
+
+        private volatile boolean exists;
+
+        private volatile boolean group;
+
+        private volatile int[]   basicMembers    = NO_IDS;
+
+        private volatile int[]   requiredMembers = NO_IDS;
+
+        private volatile int[]   groups          = NO_IDS;
+
+        private Node(int id, String name) {
+            this.id = id;
+            this.name = name;
+            this.anyone = Role.USER_ANYONE.equals(name);
+        }
+    }
+
+    /**
+     * The nodes of the graph as read from the storage - replaced as a whole
+     * when the graph is read again.
+     */
+    private static final class Nodes {
+
+        private final ConcurrentMap<String, Node> byName = new ConcurrentHashMap<String, Node>();
+
+        /**
+         * Nodes indexed by their ID - replaced when growing.
+         */
+        private volatile Node[]                   byId   = new Node[16];
+
+        private int                               count;
+    }
+
+    /**
+     * Per-thread state of an evaluation: the roles on the current path and
+     * the results memoised so far. All arrays are reused by later
+     * evaluations of the same thread.
+     */
+    private static final class Evaluation {
+
+        private static final ImplicationResult[] RESULTS   = ImplicationResult.values();
+
+        private static final byte                UNTOUCHED = 0;
+
+        private static final byte                UNKNOWN   = 1;
+
+        private static final byte                ON_PATH   = 2;
+
+        private static final byte                RESULT    = 3;
+
+        /**
+         * State of each role - one of the constants above or
+         * <code>RESULT</code> plus the ordinal of the memoised result.
+         */
+        private byte[]                           states    = new byte[16];
+
+        /**
+         * IDs of all roles whose state is not <code>UNTOUCHED</code>.
+         */
+        private int[]                            touched   = new int[16];
+
+        private int                              touchedCount;
+
+        /**
+         * IDs of the roles on the current path.
+         */
+        private int[]                            path      = new int[16];
+
+        private int                              pathLength;
+
+        /**
+         * The lowest path index a loop was detected at since the evaluation
+         * of the current role was started.
+         */
+        private int                              loopIndex;
+
+        /**
+         * Roles visited by <code>getImpliedRoles()</code> - a role is marked
+         * if its entry equals the current epoch, so the marks need not be
+         * cleared between calls.
+         */
+        private int[]                            marks     = new int[16];
+
+        private int                              epoch;
+
+        /**
+         * IDs of the implied roles whose groups are still to be visited,
+         * followed by all implied roles found.
+         */
+        private int[]                            pending   = new int[16];
+
+        private Evaluation begin(int size) {
+            if (states.length < size) {
+                states = new byte[Math.max(size, states.length * 2)];
+            }
+            loopIndex = Integer.MAX_VALUE;
+            return this;
+        }
+
+        private void beginMarks(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+            }
+            if (++epoch == 0) {
+                // wrapped around: old stamps could equal the new epoch
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * Marks a role as visited.
+         *
+         * @return True if the role was not marked yet.
+         */
+        private boolean mark(int id) {
+            if (marks[id] == epoch) {
+                return false;
+            }
+            marks[id] = epoch;
+            return true;
+        }
+
+        private void end() {
+            for (int i = 0; i < touchedCount; i++) {
+                states[touched[i]] = UNTOUCHED;
+            }
+            touchedCount = 0;
+            pathLength = 0;
+        }
+
+        private int enter(int id) {
+            if (UNTOUCHED == states[id]) {
+                if (touchedCount == touched.length) {
+                    touched = grow(touched);
+                }
+                touched[touchedCount++] = id;
+            }
+            states[id] = ON_PATH;
+            if (pathLength == path.length) {
+                path = grow(path);
+            }
+            path[pathLength] = id;
+            return pathLength++;
+        }
+
+        private void leave(int id, ImplicationResult result, boolean memoise) {
+            pathLength--;
+            states[id] = memoise ? (byte) (RESULT + result.ordinal()) : UNKNOWN;
+        }
+
+        private void loopDetected(int id) {
+            for (int i = pathLength - 1; i >= 0; i--) {
+                if (path[i] == id) {
+                    loopIndex = Math.min(loopIndex, i);
+                    return;
+                }
+            }
+        }
+
+        private static int[] grow(int[] array) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    /**
+     * The number of roles read from a paging storage provider at once.
+     */
+    private static final int              PAGE_SIZE   = 1000;
+
+    private final PaxUserAdmin            admin;
+
+    private final ThreadLocal<Evaluation> evaluations = new ThreadLocal<Evaluation>() {
+
+                                                          @Override
+                                                          protected Evaluation initialValue() {
+                                                              return new Evaluation();
+                                                          }
+                                                      };
+
+    /**
+     * Set while a thread reads the graph again - others keep using the
+     * current nodes meanwhile.
+     */
+    private final AtomicBoolean           refreshing  = new AtomicBoolean();
+
+    /**
+     * The current nodes, null if the graph is not built.
+     */
+    private volatile Nodes                graph;
+
+    /**
+     * The time in milliseconds after which the graph is read again, 0 if it
+     * is never read again.
+     */
+    private volatile long                 refreshInterval;
+
+    /**
+     * The time the graph is to be read again at.
+     */
+    private volatile long                 refreshAt;
+
+    /**
+     * Constructor.
+     *
+     * @param admin
+     *            The admin service used to read the roles when the graph is
+     *            built.
+     */
+    RoleGraph(PaxUserAdmin admin) {
+        this.admin = admin;
+    }
+
+    /**
+     * Sets the time after which the graph is read again from the storage.
+     * Without it only changes made through the admin service are seen, so
+     * this is needed if others write to the same storage.
+     *
+     * @param refreshInterval
+     *            The time in milliseconds, 0 to never read the graph again.
+     */
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the current nodes - reading the graph from the storage if this
+     * has not been done yet or the refresh interval has passed.
+     *
+     * @return The nodes or null if the graph could not be read.
+     */
+    private Nodes build() {
+        Nodes nodes = graph;
+        if (null != nodes) {
+            if (0 < refreshInterval && System.currentTimeMillis() >= refreshAt) {
+                refresh();
+                nodes = graph;
+            }
+            if (null != nodes) {
+                return nodes;
+            }
+        }
+        synchronized (this) {
+            if (null == graph) {
+                graph = read();
+            }
+            return graph;
+        }
+    }
+
+    /**
+     * Reads the graph again unless another thread is doing so. The lock is
+     * held while reading, so changes made meanwhile are applied to the new
+     * nodes - whether the storage returned them already or not.
+     */
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (null == graph || System.currentTimeMillis() < refreshAt) {
+                    // cleared or read by another thread meanwhile
+                    return;
+                }
+                Nodes nodes = read();
+                if (null != nodes) {
+                    // replaced before the invalidation, so a role set
+                    // computed from the old nodes is not cached
+                    graph = nodes;
+                    admin.getImpliedRolesCache().invalidateAll();
+                }
+            }
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Reads all roles and memberships from the storage - page by page if the
+     * storage provider supports this. Must be called with the lock held.
+     *
+     * @return The nodes read or null if the graph could not be read.
+     */
+    private Nodes read() {
+        // not retried before the interval passed, even if reading fails
+        refreshAt = System.currentTimeMillis() + refreshInterval;
+        Nodes nodes = new Nodes();
+        try {
+            StorageProvider storageProvider = admin.getStorageProvider();
+            if (storageProvider instanceof PagedStorageProvider) {
+                PagedStorageProvider pagedStorageProvider = (PagedStorageProvider) storageProvider;
+                String continuation = null;
+                do {
+                    RolePage page = pagedStorageProvider.findRoles(admin, null, continuation, PAGE_SIZE);
+                    for (Role role : page.getRoles()) {
+                        read(nodes, storageProvider, role);
+                    }
+                    continuation = page.getContinuation();
+                } while (null != continuation);
+            } else {
+                for (Role role : storageProvider.findRoles(admin, null)) {
+                    read(nodes, storageProvider, role);
+                }
+            }
+            return nodes;
+        } catch (StorageException e) {
+            admin.logMessage(this, LogService.LOG_ERROR, "could not read role graph: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void read(Nodes nodes, StorageProvider storageProvider, Role role) throws StorageException {
+        Node node = intern(nodes, role.getName());
+        node.exists = true;
+        if (role instanceof Group) {
+            node.group = true;
+            for (String member : PaxUserAdmin.getMemberNames(storageProvider, admin, (Group) role, true)) {
+                addMember(node, intern(nodes, member), true);
+            }
+            for (String member : PaxUserAdmin.getMemberNames(storageProvider, admin, (Group) role, false)) {
+                addMember(node, intern(nodes, member), false);
+            }
+        }
+    }
+
+    /**
+     * Drops the graph - it will be read again on next use.
+     */
+    synchronized void clear() {
+        graph = null;
+    }
+
+    /**
+     * Evaluates if a role is implied by a user.
+     *
+     * @param roleName
+     *            The name of the role to check.
+     * @param userName
+     *            The name of the user.
+     * @param checkedRoles
+     *            Names of roles which are treated as already visited, i.e.
+     *            reaching them is reported as loop.
+     * @return The result of the evaluation - <code>IMPLIEDBY_NO</code> if the
+     *         graph is not available.
+     */
+    ImplicationResult isImpliedBy(String roleName, String userName, Collection<String> checkedRoles) {
+        Nodes graph = build();
+        if (null == graph) {
+            return ImplicationResult.IMPLIEDBY_NO;
+        }
+        Node node = graph.byName.get(roleName);
+        if (null == node || !node.exists) {
+            return ImplicationResult.IMPLIEDBY_NO;
+        }
+        Node user = graph.byName.get(userName);
+        // read after the lookups, so the snapshot contains the nodes found
+        Node[] nodes = graph.byId;
+        Evaluation evaluation = evaluations.get().begin(nodes.length);
+        try {
+            if (!checkedRoles.isEmpty()) {
+                for (String checkedRole : checkedRoles) {
+                    Node checked = graph.byName.get(checkedRole);
+                    if (null != checked && checked.id < nodes.length && Evaluation.ON_PATH != evaluation.states[checked.id]) {
+                        evaluation.enter(checked.id);
+                    }
+                }
+            }
+            return evaluate(nodes, evaluation, node, null != user ? user.id : -1);
+        } finally {
+            evaluation.end();
+        }
+    }
+
+    /**
+     * Computes the names of all roles implied by a user, including the user
+     * itself and <code>user.anyone</code>. Starting with these roles the graph
+     * is walked upwards to the groups containing an implied role - only these
+     * groups can be implied themselves.
+     *
+     * @param userName
+     *            The name of the user.
+     * @return The names of all implied roles or null if the graph is not
+     *         available.
+     */
+    Set<String> getImpliedRoles(String userName) {
+        Nodes graph = build();
+        if (null == graph) {
+            return null;
+        }
+        Node user = graph.byName.get(userName);
+        Node anyone = graph.byName.get(Role.USER_ANYONE);
+        Node[] nodes = graph.byId;
+        int userId = null != user ? user.id : -1;
+        // results are memoised across the groups checked for the user
+        Evaluation evaluation = evaluations.get().begin(nodes.length);
+        evaluation.beginMarks(nodes.length);
+        // implied roles are appended to pending[0..found), the ones in
+        // pending[next..found) still have to be walked upwards
+        int found = 0;
+        try {
+            found = addImplied(evaluation, found, user, nodes);
+            found = addImplied(evaluation, found, anyone, nodes);
+            for (int next = 0; next < found; next++) {
+                int[] groups = nodes[evaluation.pending[next]].groups;
+                for (int groupId : groups) {
+                    Node group = getNode(nodes, groupId);
+                    if (null != group && evaluation.mark(groupId)
+                            && ImplicationResult.IMPLIEDBY_YES == evaluate(nodes, evaluation, group, userId)) {
+                        found = append(evaluation, found, groupId);
+                    }
+                }
+            }
+        } finally {
+            evaluation.end();
+        }
+        Set<String> roleNames = new HashSet<String>(found * 4 / 3 + 1);
+        for (int i = 0; i < found; i++) {
+            roleNames.add(nodes[evaluation.pending[i]].name);
+        }
+        return roleNames;
+    }
+
+    private static int addImplied(Evaluation evaluation, int found, Node start, Node[] nodes) {
+        if (null != start && start.exists && start.id < nodes.length && evaluation.mark(start.id)) {
+            return append(evaluation, found, start.id);
+        }
+        return found;
+    }
+
+    private static int append(Evaluation evaluation, int found, int id) {
+        if (found == evaluation.pending.length) {
+            evaluation.pending = Evaluation.grow(evaluation.pending);
+        }
+        evaluation.pending[found] = id;
+        return found + 1;
+    }
+
+    /**
+     * Records a new role.
+     *
+     * @param role
+     *            The new role.
+     */
+    synchronized void roleCreated(Role role) {
+        if (null != graph) {
+            Node node = intern(graph, role.getName());
+            node.exists = true;
+            node.group = Role.GROUP == role.getType();
+        }
+    }
+
+    /**
+     * Removes a role and all memberships it is part of.
+     *
+     * @param role
+     *            The removed role.
+     * @return The names of the roles which may imply a group now because the
+     *         role was one of its required members - see
+     *         {@link #memberRemoved(Group, Role)}. Null if the graph is not
+     *         built.
+     */
+    synchronized Collection<String> roleRemoved(Role role) {
+        Nodes graph = this.graph;
+        if (null == graph) {
+            return null;
+        }
+        Collection<String> implying = new ArrayList<String>();
+        Node node = graph.byName.get(role.getName());
+        if (null != node) {
+            Node[] nodes = graph.byId;
+            for (int groupId : node.groups) {
+                Node group = nodes[groupId];
+                if (contains(group.requiredMembers, node.id)) {
+                    addBasicMemberNames(nodes, group, implying);
+                }
+                group.basicMembers = remove(group.basicMembers, node.id);
+                group.requiredMembers = remove(group.requiredMembers, node.id);
+            }
+            for (int memberId : node.basicMembers) {
+                nodes[memberId].groups = remove(nodes[memberId].groups, node.id);
+            }
+            for (int memberId : node.requiredMembers) {
+                nodes[memberId].groups = remove(nodes[memberId].groups, node.id);
+            }
+            node.basicMembers = NO_IDS;
+            node.requiredMembers = NO_IDS;
+            node.groups = NO_IDS;
+            node.exists = false;
+        }
+        return implying;
+    }
+
+    /**
+     * Records a new member of a group.
+     *
+     * @param group
+     *            The group.
+     * @param member
+     *            The new member.
+     * @param required
+     *            True if the member is a required member.
+     */
+    synchronized void memberAdded(Group group, Role member, boolean required) {
+        if (null != graph) {
+            Node groupNode = intern(graph, group.getName());
+            groupNode.exists = true;
+            groupNode.group = true;
+            Node memberNode = intern(graph, member.getName());
+            memberNode.exists = true;
+            addMember(groupNode, memberNode, required);
+        }
+    }
+
+    /**
+     * Records that a role is not a member of a group anymore.
+     * <p>
+     * Removing a required member may grant the group to roles which did not
+     * imply the required member - all of them imply one of the basic members
+     * of the group.
+     *
+     * @param group
+     *            The group.
+     * @param member
+     *            The removed member.
+     * @return The names of the basic members of the group if the member was
+     *         required, an empty collection if it was a basic member. Null if
+     *         the graph is not built or does not know the membership.
+     */
+    synchronized Collection<String> memberRemoved(Group group, Role member) {
+        Nodes graph = this.graph;
+        if (null == graph) {
+            return null;
+        }
+        Node groupNode = graph.byName.get(group.getName());
+        Node memberNode = graph.byName.get(member.getName());
+        if (null == groupNode || null == memberNode) {
+            return null;
+        }
+        Collection<String> implying = new ArrayList<String>();
+        if (contains(groupNode.requiredMembers, memberNode.id)) {
+            groupNode.requiredMembers = remove(groupNode.requiredMembers, memberNode.id);
+            addBasicMemberNames(graph.byId, groupNode, implying);
+        } else if (!contains(groupNode.basicMembers, memberNode.id)) {
+            return null;
+        }
+        groupNode.basicMembers = remove(groupNode.basicMembers, memberNode.id);
+        memberNode.groups = remove(memberNode.groups, groupNode.id);
+        return implying;
+    }
+
+    /**
+     * Adds the names of the basic members of a group. Must be called with the
+     * lock held.
+     */
+    private static void addBasicMemberNames(Node[] nodes, Node group, Collection<String> names) {
+        for (int memberId : group.basicMembers) {
+            names.add(nodes[memberId].name);
+        }
+    }
+
+    /**
+     * Evaluates if a role is implied by a user - following the rules of
+     * <code>SPIRole.isImpliedBy()</code>: a role is implied by itself and
+     * <code>user.anyone</code> is implied by everyone. A group is implied if
+     * all its required members and at least one of its basic members are
+     * implied. Reaching a role which is already on the current path is
+     * reported as loop.
+     * <p>
+     * The result of each group is memoised for the rest of the evaluation, so
+     * groups reachable on many paths are evaluated once. Results depending on
+     * a loop back to a role above the group are path dependent and therefore
+     * not memoised.
+     */
+    private ImplicationResult evaluate(Node[] nodes, Evaluation evaluation, Node node, int userId) {
+        int id = node.id;
+        byte state = evaluation.states[id];
+        if (Evaluation.ON_PATH == state) {
+            evaluation.loopDetected(id);
+            return ImplicationResult.IMPLIEDBY_LOOPDETECTED;
+        }
+        if (id == userId || node.anyone) {
+            return ImplicationResult.IMPLIEDBY_YES;
+        }
+        if (!node.group) {
+            return ImplicationResult.IMPLIEDBY_NO;
+        }
+        if (state >= Evaluation.RESULT) {
+            return Evaluation.RESULTS[state - Evaluation.RESULT];
+        }
+        int index = evaluation.enter(id);
+        int outerLoopIndex = evaluation.loopIndex;
+        evaluation.loopIndex = Integer.MAX_VALUE;
+        ImplicationResult result = evaluateMembers(nodes, evaluation, node, userId);
+        evaluation.leave(id, result, evaluation.loopIndex >= index);
+        evaluation.loopIndex = Math.min(outerLoopIndex, evaluation.loopIndex);
+        return result;
+    }
+
+    private ImplicationResult evaluateMembers(Node[] nodes, Evaluation evaluation, Node group, int userId) {
+        for (int memberId : group.requiredMembers) {
+            Node member = getNode(nodes, memberId);
+            if (null != member) {
+                ImplicationResult result = evaluate(nodes, evaluation, member, userId);
+                if (ImplicationResult.IMPLIEDBY_YES != result) {
+                    // not implied because not all required members are
+                    // implied or a loop was detected
+                    return result;
+                }
+            }
+        }
+        for (int memberId : group.basicMembers) {
+            Node member = getNode(nodes, memberId);
+            if (null != member && ImplicationResult.IMPLIEDBY_YES == evaluate(nodes, evaluation, member, userId)) {
+                // implied because one basic member is implied
+                return ImplicationResult.IMPLIEDBY_YES;
+            }
+        }
+        return ImplicationResult.IMPLIEDBY_NO;
+    }
+
+    /**
+     * @return The existing node with the given ID or null if there is none
+     *         in the given snapshot.
+     */
+    private static Node getNode(Node[] nodes, int id) {
+        if (id < nodes.length) {
+            Node node = nodes[id];
+            if (null != node && node.exists) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the node of the given name - creating it if needed. Must be
+     * called with the lock held.
+     */
+    private static Node intern(Nodes nodes, String name) {
+        Node node = nodes.byName.get(name);
+        if (null == node) {
+            Node[] byId = nodes.byId;
+            if (nodes.count == byId.length) {
+                byId = new Node[byId.length * 2];
+                System.arraycopy(nodes.byId, 0, byId, 0, nodes.count);
+            }
+            node = new Node(nodes.count, Interner.SHARED.intern(name));
+            byId[nodes.count++] = node;
+            // published before the name, see isImpliedBy()
+            nodes.byId = byId;
+            nodes.byName.put(node.name, node);
+        }
+        return node;
+    }
+
+    /**
+     * Adds a membership. Must be called with the lock held.
+     */
+    private static void addMember(Node group, Node member, boolean required) {
+        if (required) {
+            group.requiredMembers = add(group.requiredMembers, member.id);
+        } else {
+            group.basicMembers = add(group.basicMembers, member.id);
+        }
+        member.groups = add(member.groups, group.id);
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int existing : ids) {
+            if (existing == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] add(int[] ids, int id) {
+        for (int existing : ids) {
+            if (existing == id) {
+                return ids;
+            }
+        }
+        int[] result = new int[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, ids.length);
+        result[ids.length] = id;
+        return result;
+    }
+
+    private static int[] remove(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                if (ids.length == 1) {
+                    return NO_IDS;
+                }
+                int[] result = new int[ids.length - 1];
+                System.arraycopy(ids, 0, result, 0, i);
+                System.arraycopy(ids, i + 1, result, i, ids.length - i - 1);
+                return result;
+            }
+        }
+        return ids;
+    }
+}
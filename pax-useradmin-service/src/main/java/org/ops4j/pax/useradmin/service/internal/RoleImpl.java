@@ -66,7 +66,8 @@ public abstract class RoleImpl
             throw (new IllegalArgumentException(UserAdminMessages.MSG_INVALID_USERADMIN));
         }
         //
-        m_name = name;
+        // canonical names are shared by all instances of a role
+        m_name = Interner.SHARED.intern(name);
         m_admin = userAdmin;
         m_properties = new RoleProperties(this, m_admin, properties);
     }
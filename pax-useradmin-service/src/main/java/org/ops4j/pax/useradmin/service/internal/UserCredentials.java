@@ -20,7 +20,6 @@ package org.ops4j.pax.useradmin.service.internal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,15 +34,21 @@ import org.osgi.service.useradmin.UserAdminPermission;
  */
 public class UserCredentials extends AbstractProperties<User> {
 
-    private final Set<String> credentialKeys;
+    /**
+     * The keys of the stored credentials - replaced, never modified, so
+     * readers need no lock.
+     */
+    private volatile CompactMap credentialKeys;
 
     protected UserCredentials(User user, UserAdminUtil util, Set<String> initialCredentialKeys) {
         super(user, util, null);
+        CompactMap keys = CompactMap.EMPTY;
         if (initialCredentialKeys != null) {
-            this.credentialKeys = new HashSet<String>(initialCredentialKeys);
-        } else {
-            this.credentialKeys = new HashSet<String>();
+            for (String key : initialCredentialKeys) {
+                keys = keys.with(key, Boolean.TRUE);
+            }
         }
+        this.credentialKeys = keys;
     }
 
     @Override
@@ -56,7 +61,9 @@ public class UserCredentials extends AbstractProperties<User> {
         UserAdminUtil util = getUtil();
         util.checkPermission(key, UserAdminPermission.CHANGE_CREDENTIAL);
         storageProvider.getCredentialProvider().setUserCredential(util.getEncryptor(), getRole(), key, plainValue);
-        credentialKeys.add(key);
+        if (!credentialKeys.containsKey(key)) {
+            credentialKeys = credentialKeys.with(key, Boolean.TRUE);
+        }
         return plainValue;
     }
 
@@ -64,13 +71,14 @@ public class UserCredentials extends AbstractProperties<User> {
     protected synchronized void remove(StorageProvider storageProvider, String key) throws StorageException {
         getUtil().checkPermission(key, UserAdminPermission.CHANGE_CREDENTIAL);
         storageProvider.getCredentialProvider().removeUserCredential(getRole(), key);
-        credentialKeys.remove(key);
+        credentialKeys = credentialKeys.without(key);
     }
 
     @Override
-    public synchronized Object get(Object key) {
-        //call super for security and param checks...
-        super.get(key);
+    public Object get(Object key) {
+        checkKeyValid(key);
+        checkGetPermission((String) key);
+        // credential values are not kept in memory, always ask the storage
         UserAdminUtil util = getUtil();
         return util.getStorageProvider().getCredentialProvider().getUserCredential(util.getDecryptor(), getRole(), (String) key);
     }
@@ -82,7 +90,7 @@ public class UserCredentials extends AbstractProperties<User> {
 
     @Override
     public Enumeration<String> keys() {
-        return Collections.enumeration(credentialKeys);
+        return credentialKeys.keys();
     }
 
     @Override
@@ -98,9 +106,8 @@ public class UserCredentials extends AbstractProperties<User> {
     @Override
     public Enumeration<Object> elements() {
         ArrayList<Object> list = new ArrayList<Object>();
-        String[] keys = credentialKeys.toArray(new String[0]);
-        for (String key : keys) {
-            list.add(get(key));
+        for (Enumeration<String> keys = credentialKeys.keys(); keys.hasMoreElements();) {
+            list.add(get(keys.nextElement()));
         }
         return Collections.enumeration(list);
     }
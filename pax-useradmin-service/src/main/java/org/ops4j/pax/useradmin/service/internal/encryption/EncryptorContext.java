@@ -16,6 +16,7 @@
  */
 package org.ops4j.pax.useradmin.service.internal.encryption;
 
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -50,13 +51,31 @@ public class EncryptorContext {
      */
     private final static String DEFAULT_ENCRYPTION_RANDOM_SALTLENGTH = "32";
 
-    private final int           saltLength;
+    private final int                        saltLength;
 
-    private final SecureRandom  secureRandom;
+    private final String                     hashAlgorithm;
 
-    private final MessageDigest messageDigest;
+    private final String                     secureRandomAlgorithm;
 
-    private final Cipher        cipher;
+    /**
+     * The cipher name as written by {@link #toStringValue()}.
+     */
+    private final String                     cipherName;
+
+    /*
+     * The algorithm instances are not thread safe (or synchronize
+     * internally), so each thread gets instances of its own instead of
+     * serializing all hash calculations on one instance.
+     */
+
+    private final ThreadLocal<SecureRandom>  secureRandoms;
+
+    private final ThreadLocal<MessageDigest> messageDigests;
+
+    /**
+     * Null if no cipher is used.
+     */
+    private final ThreadLocal<Cipher>        ciphers;
 
     public EncryptorContext(Map<String, ?> properties) throws NoSuchAlgorithmException, NumberFormatException, NoSuchPaddingException {
         this(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM, DEFAULT_ENCRYPTION_HASH_ALGORITHM),//
@@ -65,23 +84,56 @@ public class EncryptorContext {
         UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, DEFAULT_ENCRYPTION_CIPHER_ALGORITHM));
     }
 
-    private EncryptorContext(String hashAlgorith, String secureRandomAlgorith, int saltLength, String cipherAlgorithm) throws NoSuchAlgorithmException,
+    private EncryptorContext(final String hashAlgorith, final String secureRandomAlgorith, int saltLength, final String cipherAlgorithm) throws NoSuchAlgorithmException,
             NoSuchPaddingException {
         this.saltLength = saltLength;
-        secureRandom = SecureRandom.getInstance(secureRandomAlgorith);
-        messageDigest = MessageDigest.getInstance(hashAlgorith);
+        // create the first instances right away, so unknown algorithms are reported here
+        SecureRandom secureRandom = SecureRandom.getInstance(secureRandomAlgorith);
+        MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorith);
+        secureRandomAlgorithm = secureRandom.getAlgorithm();
+        hashAlgorithm = messageDigest.getAlgorithm();
+        secureRandoms = new PerThread<SecureRandom>(secureRandom) {
+
+            @Override
+            protected SecureRandom create() throws GeneralSecurityException {
+                return SecureRandom.getInstance(secureRandomAlgorith);
+            }
+        };
+        messageDigests = new PerThread<MessageDigest>(messageDigest) {
+
+            @Override
+            protected MessageDigest create() throws GeneralSecurityException {
+                return MessageDigest.getInstance(hashAlgorith);
+            }
+        };
         if (CIPHER_PAX_EMPTY.equals(cipherAlgorithm)) {
-            cipher = null;
+            cipherName = CIPHER_PAX_EMPTY;
+            ciphers = null;
         } else if (CIPHER_PAX_PLAIN.equals(cipherAlgorithm) || "null".equals(cipherAlgorithm)) {
-            cipher = new NullCipher();
+            cipherName = CIPHER_PAX_PLAIN;
+            ciphers = new PerThread<Cipher>(new NullCipher()) {
+
+                @Override
+                protected Cipher create() {
+                    return new NullCipher();
+                }
+            };
         } else {
             //Fetch a default one
-            cipher = Cipher.getInstance(cipherAlgorithm);
+            Cipher cipher = Cipher.getInstance(cipherAlgorithm);
+            cipherName = cipher.getAlgorithm();
+            ciphers = new PerThread<Cipher>(cipher) {
+
+                @Override
+                protected Cipher create() throws GeneralSecurityException {
+                    return Cipher.getInstance(cipherAlgorithm);
+                }
+            };
         }
     }
 
     /**
-     * @return the current value of cipher
+     * @return the cipher of the calling thread, null if no cipher is used
      */
     Cipher getCipher(int encryptMode) {
         //FIXME: we need to init the cypher!
@@ -89,7 +141,7 @@ public class EncryptorContext {
         //        SecretKeySpec key = new SecretKeySpec(keyBytes, "DES");
         //        IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
         //        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-        return cipher;
+        return ciphers == null ? null : ciphers.get();
     }
 
     /**
@@ -97,23 +149,24 @@ public class EncryptorContext {
      */
     String toStringValue() {
         StringBuilder sb = new StringBuilder();
-        sb.append(messageDigest.getAlgorithm());
+        sb.append(hashAlgorithm);
         sb.append("##");
-        sb.append(secureRandom.getAlgorithm());
+        sb.append(secureRandomAlgorithm);
         sb.append("##");
         sb.append(saltLength);
         sb.append("##");
-        sb.append(cipher == null ? CIPHER_PAX_EMPTY : ((cipher instanceof NullCipher) ? CIPHER_PAX_PLAIN : cipher.getAlgorithm()));
+        sb.append(cipherName);
         return sb.toString();
     }
 
-    synchronized byte[] generateRandomSalt() {
+    byte[] generateRandomSalt() {
         byte[] bytes = new byte[saltLength];
-        secureRandom.nextBytes(bytes);
+        secureRandoms.get().nextBytes(bytes);
         return bytes;
     }
 
-    synchronized byte[] hashValues(byte[]... byteArray) {
+    byte[] hashValues(byte[]... byteArray) {
+        MessageDigest messageDigest = messageDigests.get();
         messageDigest.reset();
         for (byte[] bs : byteArray) {
             messageDigest.update(bs);
@@ -125,4 +178,30 @@ public class EncryptorContext {
         return new EncryptorContext(params[0], params[1], Integer.parseInt(params[2]), params[3]);
     }
 
+    /**
+     * Holds one algorithm instance per thread, starting with the instance of
+     * the creating thread.
+     */
+    private abstract static class PerThread<T> extends ThreadLocal<T> {
+
+        private PerThread(T first) {
+            set(first);
+        }
+
+        /**
+         * @return A new instance for the calling thread.
+         */
+        protected abstract T create() throws GeneralSecurityException;
+
+        @Override
+        protected T initialValue() {
+            try {
+                return create();
+            } catch (GeneralSecurityException e) {
+                // the same algorithm was available when the context was created
+                throw new IllegalStateException("algorithm instance can't be created", e);
+            }
+        }
+    }
+
 }
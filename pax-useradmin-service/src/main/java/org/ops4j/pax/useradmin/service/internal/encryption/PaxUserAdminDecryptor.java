@@ -16,8 +16,11 @@
  */
 package org.ops4j.pax.useradmin.service.internal.encryption;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -29,9 +32,21 @@ import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 
 public class PaxUserAdminDecryptor implements Decryptor {
 
+    /**
+     * The maximum number of contexts kept - stored values usually share one
+     * or a few algorithm configurations.
+     */
+    private static final int                                   MAX_CONTEXTS = 32;
+
+    /**
+     * Ready contexts by their algorithm parameter, so the algorithms are not
+     * looked up again for every value.
+     */
+    private final ConcurrentMap<ByteBuffer, EncryptorContext> contexts     = new ConcurrentHashMap<ByteBuffer, EncryptorContext>();
+
     @Override
     public Object decrypt(byte[] encryptedBytes, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
-        EncryptorContext context = createContext(algorithmParameter);
+        EncryptorContext context = getContext(algorithmParameter);
         Cipher cipher = context.getCipher(Cipher.DECRYPT_MODE);
         if (cipher == null) {
             throw new UnsupportedOperationException("credential can't be decrypted, it was not stored for retrival");
@@ -56,19 +71,32 @@ public class PaxUserAdminDecryptor implements Decryptor {
 
     @Override
     public boolean verify(String key, String value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
-        PaxUserAdminEncryptedValue encrypt = createEncryptor(algorithmParameter).encrypt(key, value);
-        return MessageDigest.isEqual(encrypt.getVerificationBytes(salt), verificationBytes);
+        return verify(key, UserAdminTools.stringToBytes(value), verificationBytes, salt, algorithmParameter);
     }
 
     @Override
     public boolean verify(String key, byte[] value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
-        PaxUserAdminEncryptedValue encrypt = createEncryptor(algorithmParameter).encrypt(key, value);
-        return MessageDigest.isEqual(encrypt.getVerificationBytes(salt), verificationBytes);
+        // the same hash as PaxUserAdminEncryptedValue.getVerificationBytes()
+        byte[] hash = getContext(algorithmParameter).hashValues(UserAdminTools.stringToBytes(key), salt, value);
+        return MessageDigest.isEqual(hash, verificationBytes);
     }
 
-    private PaxUserAdminEncryptor createEncryptor(byte[] algorithmParameter) {
-        EncryptorContext context = createContext(algorithmParameter);
-        return new PaxUserAdminEncryptor(context);
+    /**
+     * @param algorithmParameter
+     *            The algorithm parameter stored with a value.
+     * @return The context for the given parameter, cached.
+     */
+    EncryptorContext getContext(byte[] algorithmParameter) {
+        EncryptorContext context = contexts.get(ByteBuffer.wrap(algorithmParameter));
+        if (null == context) {
+            context = createContext(algorithmParameter);
+            if (contexts.size() >= MAX_CONTEXTS) {
+                // more configurations than expected, start over
+                contexts.clear();
+            }
+            contexts.put(ByteBuffer.wrap(algorithmParameter.clone()), context);
+        }
+        return context;
     }
 
     private EncryptorContext createContext(byte[] algorithmParameter) {
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.UserAdmin;
+
+/**
+ * Optional extension of the {@link StorageProvider} interface for providers
+ * which can check for the existence of a role and create or delete it in a
+ * single operation. If a provider implements this interface, the UserAdmin
+ * service uses these methods instead of looking up the role first.
+ */
+public interface AtomicStorageProvider extends StorageProvider {
+
+    /**
+     * Creates a new role with the given name unless a role with that name
+     * already exists. The role initially has no properties or credentials
+     * assigned.
+     *
+     * @see UserAdmin#createRole(String, int)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the
+     *            implementation object.
+     * @param name
+     *            The role name.
+     * @param type
+     *            The role type, either <code>Role.USER</code> or
+     *            <code>Role.GROUP</code>.
+     * @return The new role or null if a role with the given name already
+     *         exists.
+     * @throws StorageException
+     *             if the role could not be created
+     */
+    Role createIfAbsent(UserAdminFactory factory, String name, int type) throws StorageException;
+
+    /**
+     * Deletes the role with the given name if it exists. The role is also
+     * removed from all groups it is a member of.
+     *
+     * @see UserAdmin#removeRole(String)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the
+     *            implementation object of the deleted role.
+     * @param name
+     *            The name of the role to delete.
+     * @return The deleted role or null if no role with the given name exists.
+     * @throws StorageException
+     *             if the role could not be deleted
+     */
+    Role deleteByName(UserAdminFactory factory, String name) throws StorageException;
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.List;
+
+/**
+ * Translates the terms of a parsed role filter into the query language of a
+ * storage provider, see {@link QueryPlan#translate(FilterTranslator)}. The
+ * terms are translated bottom up: the results of the children are passed to
+ * the method of their parent.
+ * <p>
+ * Keys are passed as written in the filter, they are compared case
+ * insensitively by filters. Values are passed without escapes.
+ *
+ * @param <T>
+ *            The type of the translated terms.
+ */
+public interface FilterTranslator<T> {
+
+    /**
+     * @return The translation of a <code>(&amp;...)</code> term.
+     */
+    T and(List<T> children);
+
+    /**
+     * @return The translation of a <code>(|...)</code> term.
+     */
+    T or(List<T> children);
+
+    /**
+     * @return The translation of a <code>(!...)</code> term.
+     */
+    T not(T child);
+
+    /**
+     * @return The translation of a <code>(key=value)</code> term without
+     *         wildcards.
+     */
+    T equal(String key, String value);
+
+    /**
+     * @return The translation of a <code>(key=*)</code> term.
+     */
+    T present(String key);
+
+    /**
+     * @param parts
+     *            The parts of the value between the wildcards: the first part
+     *            is the prefix and the last part the suffix, both are empty
+     *            if the value starts or ends with a wildcard.
+     * @return The translation of a <code>(key=a*b)</code> term.
+     */
+    T substring(String key, List<String> parts);
+
+    /**
+     * @return The translation of a <code>(key&gt;=value)</code> term.
+     */
+    T greaterOrEqual(String key, String value);
+
+    /**
+     * @return The translation of a <code>(key&lt;=value)</code> term.
+     */
+    T lessOrEqual(String key, String value);
+
+    /**
+     * @return The translation of a <code>(key~=value)</code> term.
+     */
+    T approx(String key, String value);
+}
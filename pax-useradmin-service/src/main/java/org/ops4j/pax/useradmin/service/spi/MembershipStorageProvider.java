@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.Collection;
+
+import org.ops4j.pax.useradmin.service.PaxRoleQueryService;
+import org.osgi.service.useradmin.Group;
+
+/**
+ * Optional extension of the {@link StorageProvider} interface for providers
+ * which can retrieve the names of the members of a group without creating a
+ * <code>Role</code> object for each member. If a provider does not implement
+ * this interface, the UserAdmin service takes the names from the result of
+ * {@link StorageProvider#getMembers(UserAdminFactory, Group)} and
+ * {@link StorageProvider#getRequiredMembers(UserAdminFactory, Group)}.
+ *
+ * @see PaxRoleQueryService
+ */
+public interface MembershipStorageProvider extends StorageProvider {
+
+    /**
+     * Retrieves the names of the basic members of the given group.
+     *
+     * @param group
+     *            The <code>Group</code> whose members are retrieved.
+     * @return The names of the basic members, never null.
+     * @throws StorageException
+     *             if the members could not be read
+     */
+    Collection<String> getMemberNames(Group group) throws StorageException;
+
+    /**
+     * Retrieves the names of the required members of the given group.
+     *
+     * @param group
+     *            The <code>Group</code> whose members are retrieved.
+     * @return The names of the required members, never null.
+     * @throws StorageException
+     *             if the members could not be read
+     */
+    Collection<String> getRequiredMemberNames(Group group) throws StorageException;
+
+    /**
+     * Counts the members of the given group.
+     *
+     * @param group
+     *            The <code>Group</code> whose members are counted.
+     * @return The number of basic plus the number of required members.
+     * @throws StorageException
+     *             if the members could not be read
+     */
+    int getMemberCount(Group group) throws StorageException;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import org.ops4j.pax.useradmin.service.PaxRoleQueryService;
+import org.ops4j.pax.useradmin.service.RolePage;
+
+/**
+ * Optional extension of the {@link StorageProvider} interface for providers
+ * which can retrieve the roles matching a filter page by page. If a provider
+ * does not implement this interface, the UserAdmin service pages the result
+ * of {@link StorageProvider#findRoles(UserAdminFactory, String)}.
+ *
+ * @see PaxRoleQueryService
+ */
+public interface PagedStorageProvider extends StorageProvider {
+
+    /**
+     * Returns a page of the roles that match the given filter.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to eventually create
+     *            the implementation objects.
+     * @param filter
+     *            The search filter for the roles to be retrieved or null for
+     *            all roles.
+     * @param continuation
+     *            The token of the previous page as created by this provider
+     *            or null for the first page.
+     * @param pageSize
+     *            The maximum number of roles to return.
+     * @return The page, its continuation is null if there are no more roles.
+     * @throws StorageException
+     *             if the filter is invalid or the roles could not be read
+     */
+    RolePage findRoles(UserAdminFactory factory, String filter, String continuation, int pageSize) throws StorageException;
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+
+/**
+ * A hash index from the <code>String</code> values of selected role
+ * properties to the names of the roles having these values. Storage
+ * providers which evaluate filters in memory can use it to answer equality
+ * lookups like <code>UserAdmin.getUser(key, value)</code> without visiting
+ * every role.
+ * <p>
+ * Property keys are compared case insensitively as in LDAP filters. Values
+ * which are not strings are only recorded as being present. The index is
+ * thread safe.
+ */
+public class PropertyIndex {
+
+    private static final String                                  PATTERN_SPLIT_LIST_VALUE = "[;,] *";
+
+    /**
+     * The indexed keys (lower case).
+     */
+    private final Set<String>                                    keys;
+
+    /**
+     * Maps indexed keys to (sorted) values and these to the names of the
+     * roles.
+     */
+    private final Map<String, NavigableMap<String, Set<String>>> index                    = new HashMap<String, NavigableMap<String, Set<String>>>();
+
+    /**
+     * Maps indexed keys to the names of the roles having any value.
+     */
+    private final Map<String, Set<String>>                       present                  = new HashMap<String, Set<String>>();
+
+    /**
+     * Maps indexed keys to the names of the roles having a value which is not
+     * a string.
+     */
+    private final Map<String, Set<String>>                       other                    = new HashMap<String, Set<String>>();
+
+    /**
+     * Maps role names to their indexed keys and values, null for values which
+     * are not strings.
+     */
+    private final Map<String, Map<String, String>>               roleValues               = new HashMap<String, Map<String, String>>();
+
+    /**
+     * @param keys
+     *            The property keys to index.
+     */
+    public PropertyIndex(Collection<String> keys) {
+        Set<String> normalized = new HashSet<String>();
+        for (String key : keys) {
+            normalized.add(normalize(key));
+        }
+        this.keys = Collections.unmodifiableSet(normalized);
+    }
+
+    /**
+     * Creates an index for the keys configured by
+     * {@link PaxUserAdminConstants#PROPERTY_INDEX_KEYS}.
+     *
+     * @param properties
+     *            The configuration.
+     * @return A new index, possibly without any keys.
+     */
+    public static PropertyIndex fromConfiguration(Map<String, ?> properties) {
+        Collection<String> keys = new ArrayList<String>();
+        if (null != properties) {
+            Object value = properties.get(PaxUserAdminConstants.PROPERTY_INDEX_KEYS);
+            if (null != value) {
+                for (String key : value.toString().split(PATTERN_SPLIT_LIST_VALUE)) {
+                    if (key.trim().length() > 0) {
+                        keys.add(key.trim());
+                    }
+                }
+            }
+        }
+        return new PropertyIndex(keys);
+    }
+
+    /**
+     * Checks if a value given in a filter can be looked up in the index
+     * as-is: it must not contain wildcards, escapes or parentheses, nor start
+     * or end with whitespace.
+     *
+     * @param value
+     *            The value to check.
+     * @return True if the value matches only properties with exactly that
+     *         value.
+     */
+    public static boolean isPlainValue(String value) {
+        if (null == value || value.length() == 0 || !value.equals(value.trim())) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            switch (value.charAt(i)) {
+                case '*':
+                case '\\':
+                case '(':
+                case ')':
+                    return false;
+                default:
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The indexed keys in lower case.
+     */
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param key
+     *            A property key.
+     * @return True if values of the given property are indexed.
+     */
+    public boolean isIndexed(String key) {
+        return null != key && keys.contains(normalize(key));
+    }
+
+    /**
+     * Records the value of a property of a role. Values which are not strings
+     * are only recorded as being present.
+     *
+     * @param roleName
+     *            The name of the role.
+     * @param key
+     *            The property key.
+     * @param value
+     *            The new property value.
+     */
+    public synchronized void put(String roleName, String key, Object value) {
+        if (!isIndexed(key)) {
+            return;
+        }
+        remove(roleName, key);
+        if (null == value) {
+            return;
+        }
+        String normalizedKey = normalize(key);
+        Map<String, String> values = roleValues.get(roleName);
+        if (null == values) {
+            values = new HashMap<String, String>();
+            roleValues.put(roleName, values);
+        }
+        values.put(normalizedKey, value instanceof String ? (String) value : null);
+        Set<String> owners = present.get(normalizedKey);
+        if (null == owners) {
+            owners = new HashSet<String>();
+            present.put(normalizedKey, owners);
+        }
+        owners.add(roleName);
+        if (!(value instanceof String)) {
+            owners = other.get(normalizedKey);
+            if (null == owners) {
+                owners = new HashSet<String>();
+                other.put(normalizedKey, owners);
+            }
+            owners.add(roleName);
+        } else {
+            NavigableMap<String, Set<String>> names = index.get(normalizedKey);
+            if (null == names) {
+                names = new TreeMap<String, Set<String>>();
+                index.put(normalizedKey, names);
+            }
+            Set<String> roles = names.get(value);
+            if (null == roles) {
+                roles = new HashSet<String>();
+                names.put((String) value, roles);
+            }
+            roles.add(roleName);
+        }
+    }
+
+    /**
+     * Records all properties of a role, replacing what was recorded before.
+     *
+     * @param roleName
+     *            The name of the role.
+     * @param properties
+     *            The properties of the role, might be null.
+     */
+    public synchronized void putAll(String roleName, Map<String, ?> properties) {
+        removeRole(roleName);
+        if (null != properties) {
+            for (Entry<String, ?> entry : properties.entrySet()) {
+                put(roleName, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes a property of a role from the index.
+     *
+     * @param roleName
+     *            The name of the role.
+     * @param key
+     *            The property key.
+     */
+    public synchronized void remove(String roleName, String key) {
+        Map<String, String> values = roleValues.get(roleName);
+        if (null == values || null == key) {
+            return;
+        }
+        String normalizedKey = normalize(key);
+        if (values.containsKey(normalizedKey)) {
+            unlink(roleName, normalizedKey, values.remove(normalizedKey));
+        }
+        if (values.isEmpty()) {
+            roleValues.remove(roleName);
+        }
+    }
+
+    /**
+     * Removes all properties of a role from the index.
+     *
+     * @param roleName
+     *            The name of the role.
+     */
+    public synchronized void removeRole(String roleName) {
+        Map<String, String> values = roleValues.remove(roleName);
+        if (null != values) {
+            for (Entry<String, String> entry : values.entrySet()) {
+                unlink(roleName, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        index.clear();
+        present.clear();
+        other.clear();
+        roleValues.clear();
+    }
+
+    /**
+     * @param key
+     *            An indexed property key.
+     * @param value
+     *            The property value.
+     * @return The names of all roles having the given value for the given
+     *         property or null if the property is not indexed. Roles having a
+     *         value which is not a string for the property are always
+     *         included, as filters might match their elements.
+     */
+    public synchronized Collection<String> lookup(String key, String value) {
+        if (!isIndexed(key)) {
+            return null;
+        }
+        String normalizedKey = normalize(key);
+        Map<String, Set<String>> names = index.get(normalizedKey);
+        Set<String> roles = null != names ? names.get(value) : null;
+        Set<String> others = other.get(normalizedKey);
+        if (null == roles && null == others) {
+            return Collections.emptyList();
+        }
+        Collection<String> result = new ArrayList<String>();
+        if (null != roles) {
+            result.addAll(roles);
+        }
+        if (null != others) {
+            result.addAll(others);
+        }
+        return result;
+    }
+
+    /**
+     * @param key
+     *            An indexed property key.
+     * @param prefix
+     *            The start of the property value.
+     * @return The names of all roles having a <code>String</code> value
+     *         starting with the given prefix for the given property or null if
+     *         the property is not indexed.
+     */
+    public synchronized Collection<String> lookupPrefix(String key, String prefix) {
+        if (!isIndexed(key)) {
+            return null;
+        }
+        Set<String> result = new HashSet<String>();
+        NavigableMap<String, Set<String>> names = index.get(normalize(key));
+        if (null != names) {
+            for (Entry<String, Set<String>> entry : names.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                result.addAll(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param key
+     *            An indexed property key.
+     * @return The names of all roles having any value for the given property
+     *         or null if the property is not indexed.
+     */
+    public synchronized Collection<String> lookupPresent(String key) {
+        if (!isIndexed(key)) {
+            return null;
+        }
+        Set<String> roles = present.get(normalize(key));
+        if (null == roles) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(roles);
+    }
+
+    private void unlink(String roleName, String normalizedKey, String value) {
+        Set<String> owners = present.get(normalizedKey);
+        if (null != owners) {
+            owners.remove(roleName);
+            if (owners.isEmpty()) {
+                present.remove(normalizedKey);
+            }
+        }
+        owners = null == value ? other.get(normalizedKey) : null;
+        if (null != owners) {
+            owners.remove(roleName);
+            if (owners.isEmpty()) {
+                other.remove(normalizedKey);
+            }
+        }
+        Map<String, Set<String>> names = null != value ? index.get(normalizedKey) : null;
+        if (null != names) {
+            Set<String> roles = names.get(value);
+            if (null != roles) {
+                roles.remove(roleName);
+                if (roles.isEmpty()) {
+                    names.remove(value);
+                }
+            }
+        }
+    }
+
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + keys;
+    }
+}
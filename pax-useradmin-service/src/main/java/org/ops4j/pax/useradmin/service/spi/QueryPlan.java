@@ -0,0 +1,325 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.osgi.framework.Filter;
+
+/**
+ * A compiled role filter together with the terms of the filter which can be
+ * answered by a {@link PropertyIndex}: equality, presence and prefix
+ * comparisons combined by <code>&amp;</code> and <code>|</code>.
+ * <p>
+ * The candidates selected from the index are a superset of the matching
+ * roles; the compiled filter still has to be matched against each candidate,
+ * which evaluates all residual predicates. Providers with a query language
+ * can {@link #translate(FilterTranslator)} the parsed filter instead.
+ *
+ * @see QueryPlanner
+ */
+public final class QueryPlan {
+
+    private final String filterString;
+
+    private final Filter filter;
+
+    private final Term   term;
+
+    QueryPlan(String filterString, Filter filter, Term term) {
+        this.filterString = filterString;
+        this.filter = filter;
+        this.term = term;
+    }
+
+    /**
+     * @return The filter string this plan was created for.
+     */
+    public String getFilterString() {
+        return filterString;
+    }
+
+    /**
+     * @return The compiled filter to match the candidates against.
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param index
+     *            The index of the provider, might be null.
+     * @return The names of the roles which might match the filter or null if
+     *         the filter can not be answered by the given index and all roles
+     *         have to be matched.
+     */
+    public Collection<String> getCandidates(PropertyIndex index) {
+        if (null == term || null == index) {
+            return null;
+        }
+        return term.getCandidates(index);
+    }
+
+    /**
+     * @param translator
+     *            The translator of the terms.
+     * @return The translated filter or null if the filter could not be
+     *         parsed.
+     */
+    public <T> T translate(FilterTranslator<T> translator) {
+        if (null == term) {
+            return null;
+        }
+        return term.translate(translator);
+    }
+
+    @Override
+    public String toString() {
+        return filterString;
+    }
+
+    private static <T> List<T> translate(List<Term> terms, FilterTranslator<T> translator) {
+        List<T> result = new ArrayList<T>(terms.size());
+        for (Term term : terms) {
+            result.add(term.translate(translator));
+        }
+        return result;
+    }
+
+    /**
+     * A node of the parsed filter.
+     */
+    abstract static class Term {
+
+        /**
+         * @return The candidates of the term or null if the index does not
+         *         know them.
+         */
+        abstract Collection<String> getCandidates(PropertyIndex index);
+
+        abstract <T> T translate(FilterTranslator<T> translator);
+    }
+
+    /**
+     * A <code>(&amp;...)</code> term: the intersection of the candidates of
+     * the children answered by the index.
+     */
+    static final class And extends Term {
+
+        private final List<Term> children;
+
+        And(List<Term> children) {
+            this.children = children;
+        }
+
+        @Override
+        Collection<String> getCandidates(PropertyIndex index) {
+            Set<String> result = null;
+            for (Term child : children) {
+                Collection<String> candidates = child.getCandidates(index);
+                if (null == candidates) {
+                    continue;
+                }
+                if (null == result) {
+                    result = new HashSet<String>(candidates);
+                } else {
+                    result.retainAll(candidates);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        <T> T translate(FilterTranslator<T> translator) {
+            return translator.and(QueryPlan.translate(children, translator));
+        }
+    }
+
+    /**
+     * A <code>(|...)</code> term: the union of the candidates of all children,
+     * if all of them are answered by the index.
+     */
+    static final class Or extends Term {
+
+        private final List<Term> children;
+
+        Or(List<Term> children) {
+            this.children = children;
+        }
+
+        @Override
+        Collection<String> getCandidates(PropertyIndex index) {
+            Set<String> result = new HashSet<String>();
+            for (Term child : children) {
+                Collection<String> candidates = child.getCandidates(index);
+                if (null == candidates) {
+                    return null;
+                }
+                result.addAll(candidates);
+            }
+            return result;
+        }
+
+        @Override
+        <T> T translate(FilterTranslator<T> translator) {
+            return translator.or(QueryPlan.translate(children, translator));
+        }
+    }
+
+    /**
+     * A <code>(!...)</code> term, the index can not answer it.
+     */
+    static final class Not extends Term {
+
+        private final Term child;
+
+        Not(Term child) {
+            this.child = child;
+        }
+
+        @Override
+        Collection<String> getCandidates(PropertyIndex index) {
+            return null;
+        }
+
+        @Override
+        <T> T translate(FilterTranslator<T> translator) {
+            return translator.not(child.translate(translator));
+        }
+    }
+
+    /**
+     * An ordering (<code>&gt;=</code>, <code>&lt;=</code>) or approximate
+     * (<code>~=</code>) comparison, the index can not answer it.
+     */
+    static final class Compare extends Term {
+
+        private final String key;
+
+        private final char   operator;
+
+        private final String value;
+
+        Compare(String key, char operator, String value) {
+            this.key = key;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        Collection<String> getCandidates(PropertyIndex index) {
+            return null;
+        }
+
+        @Override
+        <T> T translate(FilterTranslator<T> translator) {
+            switch (operator) {
+                case '>':
+                    return translator.greaterOrEqual(key, unescape(value));
+                case '<':
+                    return translator.lessOrEqual(key, unescape(value));
+                default:
+                    return translator.approx(key, unescape(value));
+            }
+        }
+    }
+
+    /**
+     * A <code>(key=value)</code> term, where the value is either plain,
+     * <code>*</code> or a plain prefix followed by <code>*</code>.
+     */
+    static final class Equal extends Term {
+
+        private final String key;
+
+        private final String value;
+
+        Equal(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        Collection<String> getCandidates(PropertyIndex index) {
+            if ("*".equals(value)) {
+                return index.lookupPresent(key);
+            }
+            if (value.endsWith("*")) {
+                String prefix = value.substring(0, value.length() - 1);
+                if (PropertyIndex.isPlainValue(prefix)) {
+                    return index.lookupPrefix(key, prefix);
+                }
+                return null;
+            }
+            if (PropertyIndex.isPlainValue(value)) {
+                return index.lookup(key, value);
+            }
+            return null;
+        }
+
+        @Override
+        <T> T translate(FilterTranslator<T> translator) {
+            if ("*".equals(value)) {
+                return translator.present(key);
+            }
+            List<String> parts = new ArrayList<String>();
+            StringBuilder part = new StringBuilder();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    part.append(value.charAt(++i));
+                } else if (c == '*') {
+                    parts.add(part.toString());
+                    part.setLength(0);
+                } else {
+                    part.append(c);
+                }
+            }
+            parts.add(part.toString());
+            if (parts.size() == 1) {
+                return translator.equal(key, parts.get(0));
+            }
+            return translator.substring(key, parts);
+        }
+    }
+
+    /**
+     * @return The given filter value without escapes.
+     */
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
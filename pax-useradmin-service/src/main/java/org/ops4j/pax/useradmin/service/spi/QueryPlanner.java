@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ops4j.pax.useradmin.service.spi.QueryPlan.Term;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Compiles role filters into {@link QueryPlan}s and keeps the most recently
+ * used plans, so that storage providers evaluating filters in memory do not
+ * parse the same filter string again on every call.
+ * <p>
+ * Subclasses may override {@link #createFilter(String)} to compile filters by
+ * other means than {@link FrameworkUtil#createFilter(String)}.
+ */
+public class QueryPlanner {
+
+    /**
+     * The default number of plans kept.
+     */
+    public static final int              DEFAULT_CACHE_SIZE = 128;
+
+    private final Map<String, QueryPlan> plans;
+
+    public QueryPlanner() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxSize
+     *            The maximum number of plans kept.
+     */
+    public QueryPlanner(final int maxSize) {
+        plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the plan for the given filter, compiling it if it is not cached.
+     *
+     * @param filterString
+     *            The filter.
+     * @return The plan for the filter.
+     * @throws InvalidSyntaxException
+     *             if the filter is invalid
+     */
+    public QueryPlan plan(String filterString) throws InvalidSyntaxException {
+        QueryPlan plan;
+        synchronized (plans) {
+            plan = plans.get(filterString);
+        }
+        if (null == plan) {
+            plan = new QueryPlan(filterString, createFilter(filterString), parse(filterString));
+            synchronized (plans) {
+                plans.put(filterString, plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Drops all cached plans.
+     */
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+
+    /**
+     * Compiles a filter.
+     *
+     * @param filterString
+     *            The filter.
+     * @return The compiled filter.
+     * @throws InvalidSyntaxException
+     *             if the filter is invalid
+     */
+    protected Filter createFilter(String filterString) throws InvalidSyntaxException {
+        return FrameworkUtil.createFilter(filterString);
+    }
+
+    /**
+     * Parses the structure of the given (valid) filter.
+     *
+     * @return The root term or null if the filter could not be parsed, in
+     *         which case all roles have to be matched.
+     */
+    static Term parse(String filterString) {
+        try {
+            Parser parser = new Parser(filterString);
+            Term term = parser.parseFilter();
+            parser.skipWhitespace();
+            return parser.isAtEnd() ? term : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A recursive descent parser for RFC 1960 filters which keeps the values
+     * as they are written, including escapes.
+     */
+    private static final class Parser {
+
+        private final String filter;
+
+        private int          pos;
+
+        private Parser(String filter) {
+            this.filter = filter;
+        }
+
+        private Term parseFilter() {
+            skipWhitespace();
+            expect('(');
+            skipWhitespace();
+            Term term;
+            switch (peek()) {
+                case '&':
+                    pos++;
+                    term = new QueryPlan.And(parseList());
+                    break;
+                case '|':
+                    pos++;
+                    term = new QueryPlan.Or(parseList());
+                    break;
+                case '!':
+                    pos++;
+                    term = new QueryPlan.Not(parseFilter());
+                    skipWhitespace();
+                    break;
+                default:
+                    term = parseItem();
+            }
+            expect(')');
+            return term;
+        }
+
+        private List<Term> parseList() {
+            List<Term> children = new ArrayList<Term>();
+            skipWhitespace();
+            while (peek() == '(') {
+                children.add(parseFilter());
+                skipWhitespace();
+            }
+            if (children.isEmpty()) {
+                throw new IllegalArgumentException("empty filter list");
+            }
+            return children;
+        }
+
+        private Term parseItem() {
+            int start = pos;
+            while ("=~<>()".indexOf(peek()) < 0) {
+                pos++;
+            }
+            String key = filter.substring(start, pos).trim();
+            char op = peek();
+            if (key.length() == 0 || op == '(' || op == ')') {
+                throw new IllegalArgumentException("missing attribute");
+            }
+            pos++;
+            if (op != '=') {
+                expect('=');
+            }
+            start = pos;
+            while (peek() != ')') {
+                if (filter.charAt(pos) == '\\') {
+                    pos++;
+                }
+                pos++;
+            }
+            String value = filter.substring(start, pos);
+            if (op == '=') {
+                return new QueryPlan.Equal(key, value);
+            }
+            return new QueryPlan.Compare(key, op, value);
+        }
+
+        private char peek() {
+            if (isAtEnd()) {
+                throw new IllegalArgumentException("unexpected end of filter");
+            }
+            return filter.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("expected " + c + " at " + pos);
+            }
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (!isAtEnd() && Character.isWhitespace(filter.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean isAtEnd() {
+            return pos >= filter.length();
+        }
+    }
+}
@@ -57,6 +57,20 @@ public interface UserAdminFactory {
      */
     Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys);
 
+    /**
+     * Returns the canonical instance of a role name or property key. The
+     * dictionary is shared by all providers, so equal names read by
+     * different providers or at different times are kept in memory once and
+     * may be compared by identity. Names and keys passed to
+     * <code>createUser()</code> and <code>createGroup()</code> are interned
+     * anyway - providers should use this for names they keep themselves.
+     * 
+     * @param name
+     *            The name or key, may be null.
+     * @return The canonical instance equal to the given name.
+     */
+    String intern(String name);
+
     /**
      * Publish an event of the given type related to the role specified.
      * 
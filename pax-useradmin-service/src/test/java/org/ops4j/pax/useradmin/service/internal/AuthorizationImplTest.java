@@ -19,16 +19,21 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.Executors;
 
 import junit.framework.Assert;
 
 import org.easymock.classextension.EasyMock;
 import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxAuthorization;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
-import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.log.LogService;
 import org.osgi.service.useradmin.Authorization;
 import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.UserAdminListener;
+import org.osgi.util.tracker.ServiceTracker;
 
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
@@ -58,31 +63,29 @@ public class AuthorizationImplTest {
     }
 
     @Test
-    public void getRolesInvalidSyntaxException() {
+    public void getRolesStorageException() {
         PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
         UserImpl user = new UserImpl(USER_NAME1, userAdmin, null, null);
 
         StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getImpliedRolesCache()).andReturn(new ImpliedRolesCache()).anyTimes();
+        EasyMock.expect(userAdmin.getRoleGraph()).andReturn(new RoleGraph(userAdmin)).anyTimes();
         try {
-            EasyMock.expect(userAdmin.getRoles(null)).andThrow(new InvalidSyntaxException("", null));
-        } catch (InvalidSyntaxException e) {
-            // expected
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andThrow(new StorageException(""));
+            userAdmin.logMessage(EasyMock.isA(RoleGraph.class), EasyMock.eq(LogService.LOG_ERROR), EasyMock.isA(String.class));
+        } catch (StorageException e) {
+            Assert.fail("Unexpected StorageException: " + e.getMessage());
         }
         EasyMock.replay(userAdmin, sp);
         //
         Authorization authorization = new AuthorizationImpl(userAdmin, user);
         Assert.assertNotNull("Authorization object not created", authorization);
-        try {
-            assertThat(authorization.getRoles().length, equalTo(0));
-        } catch (IllegalStateException e) {
-            // expected
-        }
+        assertThat(authorization.getRoles().length, equalTo(0));
         //
         EasyMock.verify(userAdmin, sp);
     }
 
-
-
     @Test
     public void getRolesOk() {
         PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
@@ -94,42 +97,38 @@ public class AuthorizationImplTest {
         GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
         GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
         GroupImpl group3 = new GroupImpl(GROUP_NAME3, userAdmin, null, null);
+        EasyMock.expect(userAdmin.getImpliedRolesCache()).andReturn(new ImpliedRolesCache()).anyTimes();
+        EasyMock.expect(userAdmin.getRoleGraph()).andReturn(new RoleGraph(userAdmin)).anyTimes();
         try {
             // 1st addMember()
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user1)).andReturn(true);
-            EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1, group1, group2 });
+            userAdmin.memberAdded(group1, user1, false);
             //
             // 2nd addMember()
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group3, userAnyone)).andReturn(true);
+            userAdmin.memberAdded(group3, userAnyone, false);
             //
-            // 1st getRoles()
+            // getRoles() for user1 reads the role graph
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            Collection<Role> roles = new ArrayList<Role>();
+            roles.add(user1);
+            roles.add(group1);
+            roles.add(group2);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
             EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> group1Members = new ArrayList<Role>();
             group1Members.add(user1);
             EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(group1Members);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            Collection<Role> group2Members = new ArrayList<Role>();
-            EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(group2Members);
-            //
-            // 2nd getRoles()
-            EasyMock.expect(userAdmin.getRoles(null)).andReturn(null);
-            //
-            // 3rd getRoles()
-            EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { userAnyone });
+            EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
             //
+            // user2 and group3 are unknown to the role graph - no further calls
         } catch (StorageException e) {
             Assert.fail("Unexpected StorageException: " + e.getMessage());
-        } catch (InvalidSyntaxException e) {
-            Assert.fail("Unexpected InvalidSyntaxException: " + e.getMessage());
         }
         EasyMock.replay(userAdmin, sp);
         //
@@ -152,6 +151,129 @@ public class AuthorizationImplTest {
 
     @Test
     public void hasRoleOk() {
-        // TODO: implement test
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        EasyMock.expect(userAdmin.getImpliedRolesCache()).andReturn(new ImpliedRolesCache()).anyTimes();
+        EasyMock.expect(userAdmin.getRoleGraph()).andReturn(new RoleGraph(userAdmin)).anyTimes();
+        try {
+            // roles are read only once - further checks are served from memory
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            Collection<Role> roles = new ArrayList<Role>();
+            roles.add(user1);
+            roles.add(group1);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
+            Collection<Role> group1Members = new ArrayList<Role>();
+            group1Members.add(user1);
+            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(group1Members);
+        } catch (StorageException e) {
+            Assert.fail("Unexpected StorageException: " + e.getMessage());
+        }
+        EasyMock.replay(userAdmin, sp);
+        //
+        Authorization authorization = new AuthorizationImpl(userAdmin, user1);
+        Assert.assertTrue("User 1 does not have group 1", authorization.hasRole(GROUP_NAME1));
+        Assert.assertTrue("User 1 does not have itself", authorization.hasRole(USER_NAME1));
+        Assert.assertFalse("User 1 has group 2", authorization.hasRole(GROUP_NAME2));
+        //
+        authorization = new AuthorizationImpl(userAdmin, user1);
+        Assert.assertTrue("User 1 does not have group 1", authorization.hasRole(GROUP_NAME1));
+        //
+        PaxAuthorization paxAuthorization = new AuthorizationImpl(userAdmin, user1);
+        boolean[] result = paxAuthorization.hasRoles(GROUP_NAME1, GROUP_NAME2, USER_NAME1);
+        Assert.assertTrue("Mismatching result", result[0] && !result[1] && result[2]);
+        Assert.assertTrue("User 1 has none of the roles", paxAuthorization.hasAnyRole(GROUP_NAME2, GROUP_NAME1));
+        Assert.assertFalse("User 1 has all roles", paxAuthorization.hasAllRoles(GROUP_NAME2, GROUP_NAME1));
+        Assert.assertTrue("User 1 has not all roles", paxAuthorization.hasAllRoles(USER_NAME1, GROUP_NAME1));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void snapshotOk() {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        ImpliedRolesCache cache = new ImpliedRolesCache();
+        EasyMock.expect(userAdmin.getImpliedRolesCache()).andReturn(cache).anyTimes();
+        EasyMock.expect(userAdmin.getRoleGraph()).andReturn(new RoleGraph(userAdmin)).anyTimes();
+        try {
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            Collection<Role> roles = new ArrayList<Role>();
+            roles.add(user1);
+            roles.add(group1);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
+            Collection<Role> group1Members = new ArrayList<Role>();
+            group1Members.add(user1);
+            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(group1Members);
+        } catch (StorageException e) {
+            Assert.fail("Unexpected StorageException: " + e.getMessage());
+        }
+        EasyMock.replay(userAdmin, sp);
+        //
+        AuthorizationImpl authorization = new AuthorizationImpl(userAdmin, user1, true);
+        Assert.assertFalse("Unused snapshot is stale", authorization.isStale());
+        Assert.assertTrue("User 1 does not have group 1", authorization.hasRole(GROUP_NAME1));
+        long generation = authorization.getGeneration();
+        Assert.assertFalse("Snapshot is stale", authorization.isStale());
+        //
+        cache.invalidate(GROUP_NAME1);
+        Assert.assertTrue("Snapshot is not stale", authorization.isStale());
+        Assert.assertEquals("Snapshot generation changed", generation, authorization.getGeneration());
+        Assert.assertTrue("Snapshot changed", authorization.hasRole(GROUP_NAME1));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void requiredMemberRemoved() {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        try {
+            // user 1 is a basic member of group 1, which requires group 2
+            Collection<Role> roles = new ArrayList<Role>();
+            roles.add(user1);
+            roles.add(group1);
+            roles.add(group2);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
+            Collection<Role> group1Required = new ArrayList<Role>();
+            group1Required.add(group2);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(group1Required);
+            Collection<Role> group1Members = new ArrayList<Role>();
+            group1Members.add(user1);
+            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(group1Members);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
+            EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
+            EasyMock.expect(sp.removeMember(group1, group2)).andReturn(true);
+        } catch (StorageException e) {
+            Assert.fail("Unexpected StorageException: " + e.getMessage());
+        }
+        EasyMock.replay(sp);
+        //
+        AuthorizationImpl snapshot = new AuthorizationImpl(userAdmin, user1, true);
+        Assert.assertFalse("User 1 has group 1", snapshot.hasRole(GROUP_NAME1));
+        Assert.assertFalse("User 1 has group 1", new AuthorizationImpl(userAdmin, user1).hasRole(GROUP_NAME1));
+        //
+        Assert.assertTrue("Required member not removed", group1.removeMember(group2));
+        Assert.assertTrue("Snapshot is not stale", snapshot.isStale());
+        Assert.assertTrue("User 1 does not have group 1", new AuthorizationImpl(userAdmin, user1).hasRole(GROUP_NAME1));
+        //
+        EasyMock.verify(sp);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PaxUserAdmin createUserAdmin(StorageProvider sp) {
+        ServiceTracker<LogService, LogService> logService = EasyMock.createNiceMock(ServiceTracker.class);
+        ServiceTracker<EventAdmin, EventAdmin> eventService = EasyMock.createNiceMock(ServiceTracker.class);
+        ServiceTracker<UserAdminListener, UserAdminListener> listenerService = EasyMock.createNiceMock(ServiceTracker.class);
+        EasyMock.replay(logService, eventService, listenerService);
+        return new PaxUserAdmin(sp, logService, eventService, listenerService, Executors.newCachedThreadPool());
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the CachingStorageProvider class.
+ */
+public class CachingStorageProviderTest {
+
+    private static final String USER_NAME1  = "user1";
+    private static final String USER_NAME2  = "user2";
+    private static final String GROUP_NAME1 = "group1";
+    private static final String KEY1        = "key1";
+
+    @Test
+    public void rolesCached() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getRole(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(USER_NAME1))).andReturn(user1).times(2);
+        sp.setRoleAttribute(user1, KEY1, "value");
+        EasyMock.replay(userAdmin, sp);
+        //
+        CachingStorageProvider cache = new CachingStorageProvider(sp, userAdmin, 10, 0);
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        cache.setRoleAttribute(user1, KEY1, "value");
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        EasyMock.expect(sp.getRole(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(USER_NAME1))).andReturn(user1).times(2);
+        EasyMock.expect(sp.getRole(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(USER_NAME2))).andReturn(user2);
+        EasyMock.replay(userAdmin, sp);
+        //
+        CachingStorageProvider cache = new CachingStorageProvider(sp, userAdmin, 1, 0);
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        Assert.assertSame("Mismatching role", user2, cache.getRole(userAdmin, USER_NAME2));
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void membersCached() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        Collection<Role> members = new ArrayList<Role>();
+        members.add(user1);
+        EasyMock.expect(sp.getMembers(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(group1))).andReturn(members);
+        EasyMock.expect(sp.addMember(group1, user2)).andReturn(true);
+        members = new ArrayList<Role>();
+        members.add(user1);
+        members.add(user2);
+        EasyMock.expect(sp.getMembers(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(group1))).andReturn(members);
+        EasyMock.replay(userAdmin, sp);
+        //
+        CachingStorageProvider cache = new CachingStorageProvider(sp, userAdmin, 10, 0);
+        Assert.assertEquals("Mismatching members", 1, cache.getMembers(userAdmin, group1).size());
+        Assert.assertEquals("Mismatching members", 1, cache.getMembers(userAdmin, group1).size());
+        // members are cached as roles as well
+        Assert.assertSame("Mismatching role", user1, cache.getRole(userAdmin, USER_NAME1));
+        Assert.assertTrue("Member not added", cache.addMember(group1, user2));
+        Assert.assertEquals("Mismatching members", 2, cache.getMembers(userAdmin, group1).size());
+        Assert.assertEquals("Mismatching members", 2, cache.getMembers(userAdmin, group1).size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void memberNamesCached() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        MembershipStorageProvider sp = EasyMock.createMock(MembershipStorageProvider.class);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getMemberNames(group1)).andReturn(Arrays.asList(USER_NAME1));
+        EasyMock.expect(sp.removeMember(group1, user2)).andReturn(false);
+        EasyMock.expect(sp.getMemberNames(group1)).andReturn(Arrays.asList(USER_NAME1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        CachingStorageProvider cache = new CachingStorageProvider(sp, userAdmin, 10, 0);
+        Assert.assertEquals("Mismatching members", Arrays.asList(USER_NAME1), PaxUserAdmin.getMemberNames(cache, userAdmin, group1, false));
+        Assert.assertEquals("Mismatching members", Arrays.asList(USER_NAME1), PaxUserAdmin.getMemberNames(cache, userAdmin, group1, false));
+        cache.removeMember(group1, user2);
+        Assert.assertEquals("Mismatching members", Arrays.asList(USER_NAME1), PaxUserAdmin.getMemberNames(cache, userAdmin, group1, false));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void credentialKeysCached() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        CredentialProvider cp = EasyMock.createMock(CredentialProvider.class);
+        Decryptor decryptor = EasyMock.createMock(Decryptor.class);
+        Encryptor encryptor = EasyMock.createMock(Encryptor.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getCredentialProvider()).andReturn(cp).anyTimes();
+        EasyMock.expect(sp.createUser(EasyMock.isA(UserAdminFactory.class), EasyMock.eq(USER_NAME1))).andReturn(user1);
+        cp.setUserCredential(encryptor, user1, KEY1, "value");
+        EasyMock.expect(cp.getUserCredential(decryptor, user1, KEY1)).andReturn("value");
+        EasyMock.replay(userAdmin, sp, cp, decryptor, encryptor);
+        //
+        CachingStorageProvider cache = new CachingStorageProvider(sp, userAdmin, 10, 0);
+        Assert.assertSame("Mismatching role", user1, cache.createUser(userAdmin, USER_NAME1));
+        CredentialProvider credentials = cache.getCredentialProvider();
+        // a new user has no credentials - answered from the cache
+        Assert.assertNull("Unexpected credential", credentials.getUserCredential(decryptor, user1, KEY1));
+        Assert.assertFalse("Unexpected credential", credentials.hasUserCredential(decryptor, user1, KEY1, "value"));
+        credentials.setUserCredential(encryptor, user1, KEY1, "value");
+        Assert.assertEquals("Mismatching credential", "value", credentials.getUserCredential(decryptor, user1, KEY1));
+        //
+        EasyMock.verify(userAdmin, sp, cp, decryptor, encryptor);
+    }
+}
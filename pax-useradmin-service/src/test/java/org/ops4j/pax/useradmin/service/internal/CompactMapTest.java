@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing the CompactMap class.
+ */
+public class CompactMapTest {
+
+    private static Map<String, Object> getProperties(int count) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            properties.put(new String("key" + i), "value" + i);
+        }
+        return properties;
+    }
+
+    @Test
+    public void getAndChange() {
+        CompactMap map = CompactMap.of(getProperties(5));
+        Assert.assertEquals("Mismatching size", 5, map.size());
+        Assert.assertEquals("Mismatching value", "value3", map.get("key3"));
+        Assert.assertNull("Unexpected value", map.get("key5"));
+        //
+        CompactMap changed = map.with("key3", "changed").with("key5", "value5");
+        Assert.assertEquals("Mismatching size", 6, changed.size());
+        Assert.assertEquals("Mismatching value", "changed", changed.get("key3"));
+        Assert.assertEquals("Mismatching value", "value5", changed.get("key5"));
+        Assert.assertEquals("Original map changed", "value3", map.get("key3"));
+        Assert.assertFalse("Original map changed", map.containsKey("key5"));
+        //
+        CompactMap removed = changed.without("key0").without("key9");
+        Assert.assertEquals("Mismatching size", 5, removed.size());
+        Assert.assertFalse("Key not removed", removed.containsKey("key0"));
+        for (int i = 1; i < 6; i++) {
+            Assert.assertTrue("Key lost", removed.containsKey("key" + i));
+        }
+    }
+
+    @Test
+    public void emptyMap() {
+        Assert.assertSame("Empty map not shared", CompactMap.EMPTY, CompactMap.of(Collections.<String, Object> emptyMap()));
+        Assert.assertNull("Unexpected value", CompactMap.EMPTY.get("key"));
+        Assert.assertFalse("Unexpected keys", CompactMap.EMPTY.keys().hasMoreElements());
+        Assert.assertSame("Empty map not shared", CompactMap.EMPTY, CompactMap.EMPTY.with("key", "value").without("key"));
+    }
+
+    @Test
+    public void enumeration() {
+        CompactMap map = CompactMap.of(getProperties(40));
+        Map<String, Object> entries = new HashMap<String, Object>();
+        for (Enumeration<String> keys = map.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            entries.put(key, map.get(key));
+        }
+        Assert.assertEquals("Mismatching entries", getProperties(40), entries);
+        Assert.assertEquals("Mismatching values", 40, Collections.list(map.elements()).size());
+    }
+
+    private static String findKey(CompactMap map, String name) {
+        for (Enumeration<String> keys = map.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            if (name.equals(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void keysInterned() {
+        CompactMap map1 = CompactMap.of(getProperties(3));
+        CompactMap map2 = CompactMap.EMPTY.with(new String("key1"), "value");
+        Assert.assertSame("Key not shared", findKey(map1, "key1"), findKey(map2, "key1"));
+        Assert.assertSame("Key not shared", findKey(map1, "key2"), findKey(CompactMap.of(getProperties(3)), "key2"));
+    }
+
+    /**
+     * Checks the table size instead of measuring the heap: a map holds one
+     * array of two references per slot, at most three quarters of the slots
+     * are used and never less than half of that. See RoleFootprintBenchmark
+     * for the heap used per role.
+     */
+    @Test
+    public void tableSize() {
+        Assert.assertEquals("Empty map has slots", 0, CompactMap.EMPTY.capacity());
+        CompactMap grown = CompactMap.EMPTY;
+        for (int size = 1; size <= 64; size++) {
+            grown = grown.with("key" + (size - 1), "value");
+            for (CompactMap map : new CompactMap[] { CompactMap.of(getProperties(size)), grown }) {
+                int capacity = map.capacity();
+                Assert.assertTrue("Too few slots for " + size + " entries: " + capacity, capacity * 3 >= size * 4);
+                Assert.assertTrue("Too many slots for " + size + " entries: " + capacity, capacity == 2 || capacity * 3 < size * 8);
+            }
+        }
+        CompactMap shrunk = grown;
+        for (int i = 0; i < 63; i++) {
+            shrunk = shrunk.without("key" + i);
+        }
+        Assert.assertEquals("Slots not released", 2, shrunk.capacity());
+    }
+}
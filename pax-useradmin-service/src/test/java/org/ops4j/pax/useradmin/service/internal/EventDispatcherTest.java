@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxEventBatch;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.UserAdminEvent;
+
+/**
+ * Testing the EventDispatcher class.
+ */
+public class EventDispatcherTest {
+
+    private static final String              NAME1     = "role1";
+    private static final String              NAME2     = "role2";
+
+    private final List<List<UserAdminEvent>> delivered = new ArrayList<List<UserAdminEvent>>();
+
+    private EventDispatcher                  dispatcher;
+
+    private Role                             role1;
+
+    private Role                             role2;
+
+    @Before
+    public void initData() {
+        delivered.clear();
+        dispatcher = new EventDispatcher(new EventDispatcher.Delivery() {
+
+            @Override
+            public void deliver(List<UserAdminEvent> events) {
+                delivered.add(new ArrayList<UserAdminEvent>(events));
+            }
+        });
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        role1 = new UserImpl(NAME1, userAdmin, null, null);
+        role2 = new UserImpl(NAME2, userAdmin, null, null);
+    }
+
+    private void fire(int type, Role role) {
+        dispatcher.fire(new UserAdminEvent(null, type, role));
+    }
+
+    @Test
+    public void deliveredImmediately() {
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        Assert.assertEquals("Mismatching deliveries", 2, delivered.size());
+    }
+
+    @Test
+    public void changesMergedInBatch() {
+        PaxEventBatch batch = dispatcher.beginBatch();
+        fire(UserAdminEvent.ROLE_CREATED, role1);
+        fire(UserAdminEvent.ROLE_CHANGED, role2);
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        fire(UserAdminEvent.ROLE_CHANGED, role2);
+        Assert.assertTrue("Events delivered in batch", delivered.isEmpty());
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        batch.end();
+        //
+        Assert.assertEquals("Mismatching deliveries", 1, delivered.size());
+        List<UserAdminEvent> events = delivered.get(0);
+        Assert.assertEquals("Mismatching events", 2, events.size());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_CREATED, events.get(0).getType());
+        Assert.assertSame("Mismatching role", role1, events.get(0).getRole());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_CHANGED, events.get(1).getType());
+        Assert.assertSame("Mismatching role", role2, events.get(1).getRole());
+    }
+
+    @Test
+    public void removalNotMerged() {
+        PaxEventBatch batch = dispatcher.beginBatch();
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        fire(UserAdminEvent.ROLE_REMOVED, role1);
+        fire(UserAdminEvent.ROLE_CREATED, role1);
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        batch.end();
+        List<UserAdminEvent> events = delivered.get(0);
+        Assert.assertEquals("Mismatching events", 3, events.size());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_REMOVED, events.get(1).getType());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_CREATED, events.get(2).getType());
+    }
+
+    @Test
+    public void batchEndedOnce() {
+        PaxEventBatch batch = dispatcher.beginBatch();
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        batch.end();
+        batch.end();
+        Assert.assertEquals("Mismatching deliveries", 1, delivered.size());
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        Assert.assertEquals("Event held back after batch", 2, delivered.size());
+    }
+
+    @Test
+    public void openBatchEndedByNextBatch() {
+        // not ended, e.g. because of an exception
+        PaxEventBatch open = dispatcher.beginBatch();
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        PaxEventBatch batch = dispatcher.beginBatch();
+        Assert.assertEquals("Open batch not delivered", 1, delivered.size());
+        fire(UserAdminEvent.ROLE_CHANGED, role2);
+        open.end();
+        Assert.assertEquals("Ended batch delivered again", 1, delivered.size());
+        batch.end();
+        Assert.assertEquals("Mismatching deliveries", 2, delivered.size());
+        Assert.assertSame("Mismatching role", role2, delivered.get(1).get(0).getRole());
+    }
+
+    @Test
+    public void changesMergedInWindow() {
+        dispatcher.setWindow(60000);
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        fire(UserAdminEvent.ROLE_CHANGED, role1);
+        Assert.assertTrue("Events delivered in window", delivered.isEmpty());
+        dispatcher.close();
+        Assert.assertEquals("Mismatching deliveries", 1, delivered.size());
+        Assert.assertEquals("Mismatching events", 1, delivered.get(0).size());
+    }
+}
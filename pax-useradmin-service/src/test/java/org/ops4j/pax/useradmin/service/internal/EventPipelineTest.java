@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.EventListenerMetrics;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.UserAdminEvent;
+import org.osgi.service.useradmin.UserAdminListener;
+
+/**
+ * Testing the EventPipeline class.
+ */
+public class EventPipelineTest {
+
+    private static final String        NAME1     = "role1";
+    private static final String        NAME2     = "role2";
+
+    private final List<Runnable>       tasks     = Collections.synchronizedList(new ArrayList<Runnable>());
+
+    private final List<UserAdminEvent> delivered = Collections.synchronizedList(new ArrayList<UserAdminEvent>());
+
+    private UserAdminListener          listener;
+
+    private UserAdminUtil              util;
+
+    private Role                       role1;
+
+    private Role                       role2;
+
+    @Before
+    public void initData() {
+        tasks.clear();
+        delivered.clear();
+        listener = new UserAdminListener() {
+
+            @Override
+            public void roleChanged(UserAdminEvent event) {
+                delivered.add(event);
+            }
+        };
+        util = EasyMock.createNiceMock(UserAdminUtil.class);
+        EasyMock.replay(util);
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        role1 = new UserImpl(NAME1, userAdmin, null, null);
+        role2 = new UserImpl(NAME2, userAdmin, null, null);
+    }
+
+    private EventPipeline createPipeline(UserAdminListener target, int capacity, EventPipeline.OverflowPolicy policy) {
+        return new EventPipeline(target, new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, util, capacity, policy);
+    }
+
+    private static UserAdminEvent event(int type, Role role) {
+        return new UserAdminEvent(null, type, role);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void deliveredInOrder() {
+        EventPipeline pipeline = createPipeline(listener, 10, EventPipeline.OverflowPolicy.BLOCK);
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CREATED, role1), event(UserAdminEvent.ROLE_CREATED, role2)));
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_REMOVED, role1)));
+        Assert.assertEquals("Mismatching tasks", 1, tasks.size());
+        Assert.assertEquals("Mismatching queue depth", 3, pipeline.getMetrics().getQueueDepth());
+        runTasks();
+        Assert.assertEquals("Mismatching events", 3, delivered.size());
+        Assert.assertSame("Mismatching role", role1, delivered.get(0).getRole());
+        Assert.assertSame("Mismatching role", role2, delivered.get(1).getRole());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_REMOVED, delivered.get(2).getType());
+        Assert.assertEquals("Mismatching delivered count", 3, pipeline.getMetrics().getDelivered());
+    }
+
+    @Test
+    public void dropWhenFull() {
+        EventPipeline pipeline = createPipeline(listener, 1, EventPipeline.OverflowPolicy.DROP);
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CHANGED, role1), event(UserAdminEvent.ROLE_CHANGED, role2)));
+        runTasks();
+        Assert.assertEquals("Mismatching events", 1, delivered.size());
+        Assert.assertSame("Mismatching role", role1, delivered.get(0).getRole());
+        Assert.assertEquals("Mismatching dropped count", 1, pipeline.getMetrics().getDropped());
+    }
+
+    @Test
+    public void coalesceWhenFull() {
+        EventPipeline pipeline = createPipeline(listener, 2, EventPipeline.OverflowPolicy.COALESCE);
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CREATED, role1), event(UserAdminEvent.ROLE_CHANGED, role2),
+                event(UserAdminEvent.ROLE_CHANGED, role1), event(UserAdminEvent.ROLE_CHANGED, role2)));
+        runTasks();
+        Assert.assertEquals("Mismatching events", 2, delivered.size());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_CREATED, delivered.get(0).getType());
+        Assert.assertEquals("Mismatching coalesced count", 2, pipeline.getMetrics().getCoalesced());
+    }
+
+    @Test
+    public void coalesceDropsUnmergeableChanges() {
+        util = EasyMock.createMock(UserAdminUtil.class);
+        // the first drop is logged only
+        util.logMessage(EasyMock.isA(EventPipeline.class), EasyMock.eq(LogService.LOG_WARNING), EasyMock.isA(String.class));
+        EasyMock.replay(util);
+        EventPipeline pipeline = createPipeline(listener, 1, EventPipeline.OverflowPolicy.COALESCE);
+        // a change of another role can't be merged
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CHANGED, role1), event(UserAdminEvent.ROLE_CHANGED, role2)));
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CHANGED, role2)));
+        runTasks();
+        Assert.assertEquals("Mismatching events", 1, delivered.size());
+        Assert.assertSame("Mismatching role", role1, delivered.get(0).getRole());
+        Assert.assertEquals("Mismatching dropped count", 2, pipeline.getMetrics().getDropped());
+        Assert.assertEquals("Mismatching coalesced count", 0, pipeline.getMetrics().getCoalesced());
+        EasyMock.verify(util);
+    }
+
+    @Test(timeout = 10000)
+    public void coalesceWaitsForCreation() throws InterruptedException {
+        final EventPipeline pipeline = createPipeline(listener, 1, EventPipeline.OverflowPolicy.COALESCE);
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CHANGED, role1)));
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CREATED, role2)));
+            }
+        };
+        writer.start();
+        while (Thread.State.WAITING != writer.getState()) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals("Creation not waiting", 1, pipeline.getMetrics().getQueueDepth());
+        runTasks();
+        writer.join();
+        runTasks();
+        Assert.assertEquals("Mismatching events", 2, delivered.size());
+        Assert.assertEquals("Mismatching event type", UserAdminEvent.ROLE_CREATED, delivered.get(1).getType());
+        Assert.assertEquals("Mismatching dropped count", 0, pipeline.getMetrics().getDropped());
+    }
+
+    @Test
+    public void reentrantOfferNotBlocked() {
+        final EventPipeline[] pipeline = new EventPipeline[1];
+        pipeline[0] = createPipeline(new UserAdminListener() {
+
+            @Override
+            public void roleChanged(UserAdminEvent event) {
+                delivered.add(event);
+                if (UserAdminEvent.ROLE_CREATED == event.getType()) {
+                    pipeline[0].offer(Arrays.asList(event(UserAdminEvent.ROLE_CHANGED, event.getRole()),
+                            event(UserAdminEvent.ROLE_CHANGED, event.getRole())));
+                }
+            }
+        }, 1, EventPipeline.OverflowPolicy.BLOCK);
+        pipeline[0].offer(Arrays.asList(event(UserAdminEvent.ROLE_CREATED, role1)));
+        runTasks();
+        Assert.assertEquals("Mismatching events", 3, delivered.size());
+    }
+
+    @Test
+    public void failingListener() {
+        EventPipeline pipeline = createPipeline(new UserAdminListener() {
+
+            @Override
+            public void roleChanged(UserAdminEvent event) {
+                throw new IllegalStateException("failed");
+            }
+        }, 10, EventPipeline.OverflowPolicy.BLOCK);
+        pipeline.offer(Arrays.asList(event(UserAdminEvent.ROLE_CREATED, role1), event(UserAdminEvent.ROLE_CREATED, role2)));
+        runTasks();
+        EventListenerMetrics metrics = pipeline.getMetrics();
+        Assert.assertEquals("Mismatching delivered count", 2, metrics.getDelivered());
+        Assert.assertEquals("Mismatching failed count", 2, metrics.getFailed());
+        Assert.assertEquals("Mismatching queue depth", 0, metrics.getQueueDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity() {
+        createPipeline(listener, 0, EventPipeline.OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void parsePolicy() {
+        Assert.assertEquals("Mismatching policy", EventPipeline.OverflowPolicy.DROP, EventPipeline.OverflowPolicy.parse(" Drop "));
+    }
+}
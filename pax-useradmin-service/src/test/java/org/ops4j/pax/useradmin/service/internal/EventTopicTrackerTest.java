@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+
+/**
+ * Testing the EventTopicTracker class.
+ */
+public class EventTopicTrackerTest {
+
+    private static final String TOPIC = PaxUserAdminConstants.EVENT_TOPIC_PREFIX + "ROLE_CHANGED";
+
+    @Test
+    public void topicMatches() {
+        Assert.assertTrue("Wildcard not matched", EventTopicTracker.matches("*", TOPIC));
+        Assert.assertTrue("Prefix not matched", EventTopicTracker.matches("org/osgi/service/useradmin/*", TOPIC));
+        Assert.assertTrue("Prefix not matched", EventTopicTracker.matches(PaxUserAdminConstants.EVENT_TOPIC_PREFIX + "*", TOPIC));
+        Assert.assertTrue("Topic not matched", EventTopicTracker.matches(TOPIC, TOPIC));
+    }
+
+    @Test
+    public void topicNotMatched() {
+        Assert.assertFalse("Unexpected match", EventTopicTracker.matches("org/osgi/service/log/*", TOPIC));
+        Assert.assertFalse("Unexpected match", EventTopicTracker.matches(PaxUserAdminConstants.EVENT_TOPIC_PREFIX + "ROLE_REMOVED", TOPIC));
+        Assert.assertFalse("Unexpected match", EventTopicTracker.matches("org/osgi/service/user*", TOPIC));
+    }
+}
@@ -65,13 +65,16 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, false);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.removeMember(group, role1)).andReturn(true);
+            userAdmin.memberRemoved(group, role1);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
@@ -136,6 +139,7 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role)).andReturn(true);
+            userAdmin.memberAdded(group, role, false);
         } catch (StorageException e) {
             Assert.fail("Unexpected exception: " + e.getMessage());
         }
@@ -176,9 +180,11 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, false);
             //
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> roles = new ArrayList<Role>();
@@ -248,6 +254,7 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role)).andReturn(true);
+            userAdmin.memberAdded(group, role, true);
         } catch (StorageException e) {
             Assert.fail("Unexpected exception: " + e.getMessage());
         }
@@ -288,9 +295,11 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, true);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, true);
             //
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> roles = new ArrayList<Role>();
@@ -342,122 +351,45 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user1)).andReturn(true);
+            userAdmin.memberAdded(group1, user1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user2)).andReturn(true);
+            userAdmin.memberAdded(group1, user2, false);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group2, user1)).andReturn(true);
+            userAdmin.memberAdded(group2, user1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group2, group1)).andReturn(true);
+            userAdmin.memberAdded(group2, group1, true);
             //
-            // User1 implies group1
+            // the role graph is read once
             //
+            EasyMock.expect(userAdmin.getRoleGraph()).andReturn(new RoleGraph(userAdmin)).anyTimes();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            Collection<Role> requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
+            Collection<Role> roles = new ArrayList<Role>();
+            roles.add(group1);
+            roles.add(group2);
+            roles.add(user1);
+            roles.add(user2);
+            roles.add(user3);
+            EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
             //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
             Collection<Role> basicRoles = new ArrayList<Role>();
             basicRoles.add(user1);
             basicRoles.add(user2);
             EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
             //
-            // User2 implies group1
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            basicRoles.add(user2);
-            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
-            //
-            // User3 implies group1
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            basicRoles.add(user2);
-            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
-            //
-            // User 1 implies group2
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            requiredRoles.add(group1);
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            basicRoles.add(user2);
-            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(basicRoles);
-            //
-            // User 2 implies group2
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
+            Collection<Role> requiredRoles = new ArrayList<Role>();
             requiredRoles.add(group1);
             EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            basicRoles.add(user2);
-            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             basicRoles = new ArrayList<Role>();
             basicRoles.add(user1);
             EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(basicRoles);
-            //
-            // User 2 loop
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            requiredRoles.add(group1);
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            requiredRoles = new ArrayList<Role>();
-            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //
-            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            basicRoles = new ArrayList<Role>();
-            basicRoles.add(user1);
-            basicRoles.add(user2);
-            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
-            //            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            //            requiredRoles = new ArrayList<Role>();
-            //            requiredRoles.add(user2);
-            //            EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(requiredRoles);
-            //            //
-            //            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
-            //            basicRoles = new ArrayList<Role>();
-            //            basicRoles.add(user1);
-            //            EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(basicRoles);
         } catch (StorageException e) {
             Assert.fail("Unexpected exception: " + e.getMessage());
         }
@@ -487,6 +419,6 @@ public class GroupImplTest {
         checkedRoles.add(USER_NAME1);
         Assert.assertEquals("Loop not detected", ImplicationResult.IMPLIEDBY_NO, group2.isImpliedBy(user1, checkedRoles));
         //
-        EasyMock.verify(userAdmin);
+        EasyMock.verify(userAdmin, sp);
     }
 }
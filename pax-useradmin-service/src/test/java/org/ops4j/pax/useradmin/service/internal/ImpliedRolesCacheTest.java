@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing the ImpliedRolesCache class.
+ */
+public class ImpliedRolesCacheTest {
+
+    private static final String USER_NAME  = "someUser";
+
+    private static final String GROUP_NAME = "someGroup";
+
+    private static final String OTHER_NAME = "otherRole";
+
+    @Test
+    public void uncachedRoleSetStale() {
+        ImpliedRolesCache cache = new ImpliedRolesCache();
+        long generation = cache.getGeneration();
+        Set<String> roleNames = roleNames();
+        // the put loses against a concurrent invalidation
+        cache.invalidate(OTHER_NAME);
+        cache.put(USER_NAME, roleNames, generation);
+        Assert.assertNull("Role set cached", cache.get(USER_NAME));
+        Assert.assertFalse("Unaffected role set stale", cache.isStale(USER_NAME, roleNames, generation));
+        cache.invalidate(GROUP_NAME);
+        Assert.assertTrue("Affected role set not stale", cache.isStale(USER_NAME, roleNames, generation));
+    }
+
+    @Test
+    public void userInvalidated() {
+        ImpliedRolesCache cache = new ImpliedRolesCache();
+        long generation = cache.getGeneration();
+        Set<String> roleNames = roleNames();
+        cache.put(USER_NAME, roleNames, generation);
+        cache.invalidate(USER_NAME);
+        Assert.assertTrue("Role set not stale", cache.isStale(USER_NAME, roleNames, generation));
+        Assert.assertFalse("Later role set stale", cache.isStale(USER_NAME, roleNames, cache.getGeneration()));
+    }
+
+    @Test
+    public void allInvalidated() {
+        ImpliedRolesCache cache = new ImpliedRolesCache();
+        cache.invalidate(GROUP_NAME);
+        long generation = cache.getGeneration();
+        Set<String> roleNames = roleNames();
+        Assert.assertFalse("Role set stale", cache.isStale(USER_NAME, roleNames, generation));
+        cache.invalidateAll();
+        Assert.assertTrue("Role set not stale", cache.isStale(USER_NAME, roleNames, generation));
+        Assert.assertFalse("Later role set stale", cache.isStale(USER_NAME, roleNames, cache.getGeneration()));
+    }
+
+    @Test
+    public void invalidationsBounded() {
+        ImpliedRolesCache cache = new ImpliedRolesCache(2);
+        long generation = cache.getGeneration();
+        Set<String> roleNames = roleNames();
+        cache.invalidate(OTHER_NAME + 1);
+        cache.invalidate(OTHER_NAME + 2);
+        Assert.assertFalse("Unaffected role set stale", cache.isStale(USER_NAME, roleNames, generation));
+        // too many roles recorded - earlier role sets can't be checked anymore
+        cache.invalidate(OTHER_NAME + 3);
+        Assert.assertTrue("Role set not stale", cache.isStale(USER_NAME, roleNames, generation));
+        generation = cache.getGeneration();
+        Assert.assertFalse("Later role set stale", cache.isStale(USER_NAME, roleNames, generation));
+        cache.invalidate(GROUP_NAME);
+        Assert.assertTrue("Affected role set not stale", cache.isStale(USER_NAME, roleNames, generation));
+    }
+
+    private static Set<String> roleNames() {
+        Set<String> roleNames = new HashSet<String>();
+        roleNames.add(USER_NAME);
+        roleNames.add(GROUP_NAME);
+        return roleNames;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing the Interner class.
+ */
+public class InternerTest {
+
+    private static final String NAME = "someRole";
+
+    @Test
+    public void canonicalInstance() {
+        Interner interner = new Interner();
+        String first = new String(NAME);
+        Assert.assertSame("First instance not canonical", first, interner.intern(first));
+        Assert.assertSame("Equal string not canonicalized", first, interner.intern(new String(NAME)));
+        Assert.assertNotSame("Different strings canonicalized", first, interner.intern(NAME + "2"));
+        Assert.assertEquals("Mismatching size", 2, interner.size());
+        Assert.assertNull("Null not kept", interner.intern(null));
+    }
+
+    @Test
+    public void roleNamesShared() {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        RoleImpl role1 = new UserImpl(new String(NAME), userAdmin, null, null);
+        RoleImpl role2 = new GroupImpl(new String(NAME), userAdmin, null, null);
+        Assert.assertSame("Role name not shared", role1.getName(), role2.getName());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.spi.PropertyIndex;
+
+/**
+ * Testing the PropertyIndex class.
+ */
+public class PropertyIndexTest {
+
+    private static final String ROLE_NAME1 = "role1";
+    private static final String ROLE_NAME2 = "role2";
+
+    private PropertyIndex createIndex() {
+        Map<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(PaxUserAdminConstants.PROPERTY_INDEX_KEYS, "mail, uid");
+        return PropertyIndex.fromConfiguration(properties);
+    }
+
+    @Test
+    public void configuredKeys() {
+        PropertyIndex index = createIndex();
+        Assert.assertTrue("Key not indexed", index.isIndexed("mail"));
+        Assert.assertTrue("Key not indexed", index.isIndexed("UID"));
+        Assert.assertFalse("Key indexed", index.isIndexed("cn"));
+        Assert.assertNull("Unexpected lookup result", index.lookup("cn", "value"));
+        Assert.assertTrue("Unexpected keys", PropertyIndex.fromConfiguration(null).getKeys().isEmpty());
+    }
+
+    @Test
+    public void putAndLookup() {
+        PropertyIndex index = createIndex();
+        index.put(ROLE_NAME1, "mail", "a@example.org");
+        index.put(ROLE_NAME2, "Mail", "a@example.org");
+        index.put(ROLE_NAME2, "cn", "a@example.org");
+        Assert.assertEquals("Mismatching lookup", 2, index.lookup("MAIL", "a@example.org").size());
+        Assert.assertTrue("Unexpected lookup result", index.lookup("mail", "A@example.org").isEmpty());
+        // replacing a value
+        index.put(ROLE_NAME2, "mail", "b@example.org");
+        Assert.assertEquals("Mismatching lookup", 1, index.lookup("mail", "a@example.org").size());
+        Assert.assertTrue("Role not found", index.lookup("mail", "b@example.org").contains(ROLE_NAME2));
+        // byte[] values are not indexed, every lookup includes them
+        index.put(ROLE_NAME2, "mail", new byte[] { 1 });
+        Assert.assertEquals("Mismatching lookup", 1, index.lookup("mail", "b@example.org").size());
+        Assert.assertTrue("Role not found", index.lookup("mail", "c@example.org").contains(ROLE_NAME2));
+    }
+
+    @Test
+    public void removeEntries() {
+        PropertyIndex index = createIndex();
+        index.put(ROLE_NAME1, "mail", "a@example.org");
+        index.put(ROLE_NAME1, "uid", "a");
+        index.remove(ROLE_NAME1, "mail");
+        Assert.assertTrue("Unexpected lookup result", index.lookup("mail", "a@example.org").isEmpty());
+        Assert.assertEquals("Mismatching lookup", 1, index.lookup("uid", "a").size());
+        index.removeRole(ROLE_NAME1);
+        Assert.assertTrue("Unexpected lookup result", index.lookup("uid", "a").isEmpty());
+    }
+
+    @Test
+    public void plainValues() {
+        Assert.assertTrue("Plain value rejected", PropertyIndex.isPlainValue("a@example.org"));
+        Assert.assertFalse("Wildcard accepted", PropertyIndex.isPlainValue("a*"));
+        Assert.assertFalse("Escape accepted", PropertyIndex.isPlainValue("a\\(b"));
+        Assert.assertFalse("Whitespace accepted", PropertyIndex.isPlainValue(" a"));
+        Assert.assertFalse("Null accepted", PropertyIndex.isPlainValue(null));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.FilterTranslator;
+import org.ops4j.pax.useradmin.service.spi.PropertyIndex;
+import org.ops4j.pax.useradmin.service.spi.QueryPlan;
+import org.ops4j.pax.useradmin.service.spi.QueryPlanner;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Testing the QueryPlanner class.
+ */
+public class QueryPlannerTest {
+
+    private static final String ROLE_NAME1 = "role1";
+    private static final String ROLE_NAME2 = "role2";
+    private static final String ROLE_NAME3 = "role3";
+
+    private QueryPlanner        m_planner;
+
+    private PropertyIndex       m_index;
+
+    @Before
+    public void initData() {
+        m_planner = new QueryPlanner();
+        m_index = new PropertyIndex(Arrays.asList("mail", "uid"));
+        m_index.put(ROLE_NAME1, "mail", "a@example.org");
+        m_index.put(ROLE_NAME1, "uid", "a");
+        m_index.put(ROLE_NAME2, "mail", "b@example.org");
+        m_index.put(ROLE_NAME2, "uid", "b");
+        m_index.put(ROLE_NAME3, "uid", "c");
+    }
+
+    private Collection<String> candidates(String filter) throws InvalidSyntaxException {
+        return m_planner.plan(filter).getCandidates(m_index);
+    }
+
+    @Test
+    public void plansCached() throws InvalidSyntaxException {
+        QueryPlan plan = m_planner.plan("(uid=a)");
+        Assert.assertNotNull("Filter not compiled", plan.getFilter());
+        Assert.assertSame("Plan not cached", plan, m_planner.plan("(uid=a)"));
+        m_planner.clear();
+        Assert.assertNotSame("Plan still cached", plan, m_planner.plan("(uid=a)"));
+    }
+
+    @Test(expected = InvalidSyntaxException.class)
+    public void invalidFilter() throws InvalidSyntaxException {
+        m_planner.plan("(uid=a");
+    }
+
+    @Test
+    public void indexedTerms() throws InvalidSyntaxException {
+        Assert.assertEquals("Mismatching candidates", Arrays.asList(ROLE_NAME1), candidates("(uid=a)"));
+        Assert.assertEquals("Mismatching candidates", 2, candidates("(mail=*)").size());
+        Assert.assertEquals("Mismatching candidates", new HashSet<String>(Arrays.asList(ROLE_NAME1)), candidates("(MAIL=a*)"));
+        Assert.assertTrue("Unexpected candidates", candidates("(uid=d)").isEmpty());
+    }
+
+    @Test
+    public void combinedTerms() throws InvalidSyntaxException {
+        // residual terms of a conjunction are left to the filter
+        Assert.assertEquals("Mismatching candidates", 1, candidates("(&(cn=x)(uid=b))").size());
+        Assert.assertTrue("Unexpected candidates", candidates("(&(uid=a)(uid=b))").isEmpty());
+        Assert.assertEquals("Mismatching candidates", 2, candidates("(|(uid=a)(mail=b@example.org))").size());
+        Assert.assertEquals("Mismatching candidates", 3, candidates("(&(!(cn=x))(|(uid=*)(mail=a*)))").size());
+    }
+
+    @Test
+    public void residualTerms() throws InvalidSyntaxException {
+        Assert.assertNull("Unexpected candidates", candidates("(cn=x)"));
+        Assert.assertNull("Unexpected candidates", candidates("(!(uid=a))"));
+        Assert.assertNull("Unexpected candidates", candidates("(|(uid=a)(cn=x))"));
+        Assert.assertNull("Unexpected candidates", candidates("(uid>=a)"));
+        Assert.assertNull("Unexpected candidates", candidates("(uid=a\\*)"));
+        Assert.assertNull("Unexpected candidates", candidates("(mail=*@example.org)"));
+    }
+
+    @Test
+    public void translatedTerms() throws InvalidSyntaxException {
+        Assert.assertEquals("Mismatching translation", "and(eq(uid,a),not(present(cn)))", translate("(&(uid=a)(!(cn=*)))"));
+        Assert.assertEquals("Mismatching translation", "or(sub(mail,[, @example.org]),sub(cn,[a, b, ]))", translate("(|(mail=*@example.org)(cn=a*b*))"));
+        Assert.assertEquals("Mismatching translation", "eq(uid,a*)", translate("(uid=a\\*)"));
+        Assert.assertEquals("Mismatching translation", "and(ge(uid,a),le(uid,c),approx(cn,x))", translate("(&(uid>=a)(uid<=c)(cn~=x))"));
+    }
+
+    private String translate(String filter) throws InvalidSyntaxException {
+        return m_planner.plan(filter).translate(new FilterTranslator<String>() {
+
+            @Override
+            public String and(List<String> children) {
+                return "and(" + join(children) + ")";
+            }
+
+            @Override
+            public String or(List<String> children) {
+                return "or(" + join(children) + ")";
+            }
+
+            @Override
+            public String not(String child) {
+                return "not(" + child + ")";
+            }
+
+            @Override
+            public String equal(String key, String value) {
+                return "eq(" + key + "," + value + ")";
+            }
+
+            @Override
+            public String present(String key) {
+                return "present(" + key + ")";
+            }
+
+            @Override
+            public String substring(String key, List<String> parts) {
+                return "sub(" + key + "," + parts + ")";
+            }
+
+            @Override
+            public String greaterOrEqual(String key, String value) {
+                return "ge(" + key + "," + value + ")";
+            }
+
+            @Override
+            public String lessOrEqual(String key, String value) {
+                return "le(" + key + "," + value + ")";
+            }
+
+            @Override
+            public String approx(String key, String value) {
+                return "approx(" + key + "," + value + ")";
+            }
+
+            private String join(List<String> children) {
+                StringBuilder result = new StringBuilder();
+                for (String child : children) {
+                    if (result.length() > 0) {
+                        result.append(',');
+                    }
+                    result.append(child);
+                }
+                return result.toString();
+            }
+        });
+    }
+}
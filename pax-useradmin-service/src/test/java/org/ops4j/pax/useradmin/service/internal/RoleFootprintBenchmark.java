@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.easymock.classextension.EasyMock;
+
+/**
+ * Measures the heap used per user - the role, its properties and its
+ * credentials - for a given number of properties. Not run by the build, the
+ * result depends on the VM and its settings; run the main method with a
+ * fixed heap size, e.g. <code>-Xms512m -Xmx512m</code>.
+ */
+public final class RoleFootprintBenchmark {
+
+    private static final int ROLE_COUNT = 100000;
+
+    private RoleFootprintBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            Optionally the number of properties per user, 4 by default.
+     */
+    public static void main(String[] args) {
+        int propertyCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put("key" + i, "value" + i);
+        }
+        Set<String> credentialKeys = new HashSet<String>();
+        credentialKeys.add("password");
+        // names are created up front, they are not part of the footprint
+        String[] names = new String[ROLE_COUNT];
+        for (int i = 0; i < ROLE_COUNT; i++) {
+            names[i] = "user" + i;
+        }
+        Object[] roles = new Object[ROLE_COUNT];
+        long before = usedMemory();
+        for (int i = 0; i < ROLE_COUNT; i++) {
+            roles[i] = new UserImpl(names[i], userAdmin, properties, credentialKeys);
+        }
+        long bytes = usedMemory() - before;
+        System.out.println(roles.length + " users with " + propertyCount + " properties and " + credentialKeys.size()
+                + " credential: " + bytes / ROLE_COUNT + " bytes per user");
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the RoleGraph class.
+ */
+public class RoleGraphTest {
+
+    private static final String USER_NAME1 = "user1";
+    private static final String USER_NAME2 = "user2";
+
+    /**
+     * Levels of groups with two groups each, both containing both groups of
+     * the next level. Without memoisation evaluating a group not implied by
+     * the user would visit 2^DEPTH paths.
+     */
+    private static final int    DEPTH      = 40;
+
+    @Test(timeout = 10000)
+    public void diamondsEvaluatedOnce() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        Collection<Role> roles = new ArrayList<Role>();
+        roles.add(user1);
+        roles.add(user2);
+        GroupImpl[] groups = new GroupImpl[DEPTH * 2];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new GroupImpl("group" + i, userAdmin, null, null);
+            roles.add(groups[i]);
+        }
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+        EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
+        for (int i = 0; i < groups.length; i++) {
+            Collection<Role> members = new ArrayList<Role>();
+            if (i + 2 < groups.length) {
+                int next = i - i % 2 + 2;
+                members.add(groups[next]);
+                members.add(groups[next + 1]);
+            } else {
+                members.add(user1);
+            }
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, groups[i])).andReturn(new ArrayList<Role>());
+            EasyMock.expect(sp.getMembers(userAdmin, groups[i])).andReturn(members);
+        }
+        EasyMock.replay(userAdmin, sp);
+        //
+        RoleGraph graph = new RoleGraph(userAdmin);
+        Collection<String> checkedRoles = new ArrayList<String>();
+        Assert.assertEquals("User 1 does not imply group 0", ImplicationResult.IMPLIEDBY_YES, graph.isImpliedBy("group0", USER_NAME1, checkedRoles));
+        Assert.assertEquals("User 2 does imply group 0", ImplicationResult.IMPLIEDBY_NO, graph.isImpliedBy("group0", USER_NAME2, checkedRoles));
+        //
+        Set<String> impliedRoles = graph.getImpliedRoles(USER_NAME1);
+        Assert.assertEquals("Not all groups implied", groups.length + 1, impliedRoles.size());
+        impliedRoles = graph.getImpliedRoles(USER_NAME2);
+        Assert.assertEquals("Groups implied", 1, impliedRoles.size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    /*
+     * group1:
+     *     - basic: group2
+     * group2:
+     *     - basic: group1, user1
+     * group3:
+     *     - required: group4
+     *     - basic: user1
+     * group4:
+     *     - required: group3
+     *     - basic: user1
+     */
+
+    @Test
+    public void loops() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl("group2", userAdmin, null, null);
+        GroupImpl group3 = new GroupImpl("group3", userAdmin, null, null);
+        GroupImpl group4 = new GroupImpl("group4", userAdmin, null, null);
+        Collection<Role> roles = new ArrayList<Role>();
+        roles.add(user1);
+        roles.add(group1);
+        roles.add(group2);
+        roles.add(group3);
+        roles.add(group4);
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+        EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
+        Collection<Role> members = new ArrayList<Role>();
+        members.add(group2);
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(members);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
+        members = new ArrayList<Role>();
+        members.add(group1);
+        members.add(user1);
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(members);
+        members = new ArrayList<Role>();
+        members.add(group4);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group3)).andReturn(members);
+        members = new ArrayList<Role>();
+        members.add(user1);
+        EasyMock.expect(sp.getMembers(userAdmin, group3)).andReturn(members);
+        members = new ArrayList<Role>();
+        members.add(group3);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group4)).andReturn(members);
+        members = new ArrayList<Role>();
+        members.add(user1);
+        EasyMock.expect(sp.getMembers(userAdmin, group4)).andReturn(members);
+        EasyMock.replay(userAdmin, sp);
+        //
+        RoleGraph graph = new RoleGraph(userAdmin);
+        Collection<String> checkedRoles = new ArrayList<String>();
+        Assert.assertEquals("User 1 does not imply group 1", ImplicationResult.IMPLIEDBY_YES, graph.isImpliedBy("group1", USER_NAME1, checkedRoles));
+        Assert.assertEquals("User 1 does not imply group 2", ImplicationResult.IMPLIEDBY_YES, graph.isImpliedBy("group2", USER_NAME1, checkedRoles));
+        Assert.assertEquals("Loop not detected", ImplicationResult.IMPLIEDBY_LOOPDETECTED, graph.isImpliedBy("group3", USER_NAME1, checkedRoles));
+        Assert.assertEquals("Loop not detected", ImplicationResult.IMPLIEDBY_LOOPDETECTED, graph.isImpliedBy("group4", USER_NAME1, checkedRoles));
+        checkedRoles.add("group2");
+        Assert.assertEquals("Loop not detected", ImplicationResult.IMPLIEDBY_NO, graph.isImpliedBy("group1", USER_NAME1, checkedRoles));
+        //
+        Set<String> impliedRoles = graph.getImpliedRoles(USER_NAME1);
+        Assert.assertEquals("Mismatching implied roles", 3, impliedRoles.size());
+        Assert.assertTrue("Group 1 not implied", impliedRoles.contains("group1"));
+        Assert.assertFalse("Group 3 implied", impliedRoles.contains("group3"));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void readPageByPage() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        PagedStorageProvider sp = EasyMock.createMock(PagedStorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl("group2", userAdmin, null, null);
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+        EasyMock.expect(sp.findRoles(userAdmin, null, null, 1000)).andReturn(new RolePage(Arrays.<Role> asList(user1, group1), "group1"));
+        EasyMock.expect(sp.findRoles(userAdmin, null, "group1", 1000)).andReturn(new RolePage(Arrays.<Role> asList(group2), null));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(Arrays.<Role> asList(group2));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(new ArrayList<Role>());
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(Arrays.<Role> asList(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        RoleGraph graph = new RoleGraph(userAdmin);
+        Assert.assertEquals("User 1 does not imply group 1", ImplicationResult.IMPLIEDBY_YES, graph.isImpliedBy("group1", USER_NAME1, new ArrayList<String>()));
+        Assert.assertEquals("Mismatching implied roles", 3, graph.getImpliedRoles(USER_NAME1).size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void readAgainAfterRefreshInterval() throws StorageException, InterruptedException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        ImpliedRolesCache cache = new ImpliedRolesCache();
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp).times(2);
+        EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(Arrays.<Role> asList(user1, group1)).times(2);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>()).times(2);
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
+        // added by someone else
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(Arrays.<Role> asList(user1));
+        EasyMock.expect(userAdmin.getImpliedRolesCache()).andReturn(cache);
+        EasyMock.replay(userAdmin, sp);
+        //
+        RoleGraph graph = new RoleGraph(userAdmin);
+        graph.setRefreshInterval(50);
+        Collection<String> checkedRoles = new ArrayList<String>();
+        Assert.assertEquals("User 1 implies group 1", ImplicationResult.IMPLIEDBY_NO, graph.isImpliedBy("group1", USER_NAME1, checkedRoles));
+        long generation = cache.getGeneration();
+        Thread.sleep(100);
+        Assert.assertEquals("User 1 does not imply group 1", ImplicationResult.IMPLIEDBY_YES, graph.isImpliedBy("group1", USER_NAME1, checkedRoles));
+        Assert.assertTrue("Role sets not invalidated", cache.getGeneration() > generation);
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+}
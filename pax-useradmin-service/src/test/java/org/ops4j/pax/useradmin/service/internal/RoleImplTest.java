@@ -19,8 +19,11 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.easymock.classextension.EasyMock;
@@ -329,6 +332,36 @@ public class RoleImplTest {
         EasyMock.verify(userAdmin, sp);
     }
 
+    @Test
+    public void addPropertyKeepsEnumeration() {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        // without KEY2, so VALUE2 is only seen if the writer changes the enumeration
+        Map<String, Object> properties = getProperties();
+        properties.remove(KEY2);
+        RoleImpl role = new UserImpl(NAME, userAdmin, properties, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        //
+        try {
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            userAdmin.checkPermission(KEY1, UserAdminPermission.CHANGE_PROPERTY);
+            sp.setRoleAttribute(role, KEY1, VALUE2);
+            userAdmin.fireEvent(UserAdminEvent.ROLE_CHANGED, role);
+        } catch (StorageException e) {
+            Assert.fail("Unexpected exception: " + e.getMessage());
+        }
+        EasyMock.replay(userAdmin, sp);
+        //
+        Enumeration<Object> elements = role.getProperties().elements();
+        Assert.assertEquals("Mismatching previous value", VALUE1, role.getProperties().put(KEY1, VALUE2));
+        Assert.assertEquals("Mismatching value", VALUE2, role.getProperties().get(KEY1));
+        // readers keep the values they started with
+        List<Object> values = Collections.list(elements);
+        Assert.assertTrue("Enumeration changed by writer", values.contains(VALUE1));
+        Assert.assertFalse("Enumeration changed by writer", values.contains(VALUE2));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void removePropertyNullKey() {
         PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
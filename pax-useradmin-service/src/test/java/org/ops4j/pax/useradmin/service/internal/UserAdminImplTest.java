@@ -18,13 +18,19 @@
 package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.Iterator;
 import java.util.concurrent.Executors;
 
 import org.easymock.classextension.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.RolePage;
+import org.ops4j.pax.useradmin.service.spi.AtomicStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.MembershipStorageProvider;
+import org.ops4j.pax.useradmin.service.spi.PagedStorageProvider;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.framework.BundleContext;
@@ -316,6 +322,89 @@ public class UserAdminImplTest {
         EasyMock.verify(sp, eventAdmin);
     }
 
+    @Test
+    public void removeRequiredMemberGrantsGroup() throws StorageException {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        UserImpl user = new UserImpl(NAME1, userAdmin, null, null);
+        GroupImpl group = new GroupImpl("someGroup", userAdmin, null, null);
+        GroupImpl required = new GroupImpl("someRequiredGroup", userAdmin, null, null);
+        // the user is a basic member of the group but not of the required group
+        EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(Arrays.<Role> asList(user, group, required));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group)).andReturn(Arrays.<Role> asList(required));
+        EasyMock.expect(sp.getMembers(userAdmin, group)).andReturn(Arrays.<Role> asList(user));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, required)).andReturn(new ArrayList<Role>());
+        EasyMock.expect(sp.getMembers(userAdmin, required)).andReturn(new ArrayList<Role>());
+        EasyMock.expect(sp.getRole(userAdmin, "someRequiredGroup")).andReturn(required);
+        EasyMock.expect(sp.deleteRole(required)).andReturn(true);
+        EasyMock.replay(sp);
+        //
+        AuthorizationImpl snapshot = new AuthorizationImpl(userAdmin, user, true);
+        Assert.assertFalse("User has group", snapshot.hasRole("someGroup"));
+        Assert.assertFalse("User has group", new AuthorizationImpl(userAdmin, user).hasRole("someGroup"));
+        Assert.assertTrue("Required group not removed", userAdmin.removeRole("someRequiredGroup"));
+        Assert.assertTrue("Snapshot is not stale", snapshot.isStale());
+        Assert.assertTrue("User does not have group", new AuthorizationImpl(userAdmin, user).hasRole("someGroup"));
+        //
+        EasyMock.verify(sp);
+    }
+
+    @Test
+    public void createRoleAtomic() throws StorageException {
+        AtomicStorageProvider sp = EasyMock.createMock(AtomicStorageProvider.class);
+        EventAdmin eventAdmin = EasyMock.createMock(EventAdmin.class);
+        LogService log = EasyMock.createMock(LogService.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp, log, eventAdmin);
+        UserImpl role = new UserImpl(NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.createIfAbsent(userAdmin, NAME1, Role.USER)).andReturn(role);
+        EasyMock.expect(sp.createIfAbsent(userAdmin, NAME1, Role.USER)).andReturn(null);
+        eventAdmin.postEvent(EasyMock.isA(Event.class));
+        log.log(EasyMock.eq(LogService.LOG_INFO), EasyMock.isA(String.class));
+        log.log(LogService.LOG_INFO, "[" + PaxUserAdmin.class.getName() + "] createRole() - role already exists: " + NAME1);
+        EasyMock.replay(sp, log, eventAdmin);
+        Assert.assertNotNull("User not created", userAdmin.createRole(NAME1, Role.USER));
+        Assert.assertNull("Duplicate role created", userAdmin.createRole(NAME1, Role.USER));
+        EasyMock.verify(sp, log, eventAdmin);
+    }
+
+    @Test
+    public void removeRoleAtomic() throws StorageException {
+        AtomicStorageProvider sp = EasyMock.createMock(AtomicStorageProvider.class);
+        EventAdmin eventAdmin = EasyMock.createMock(EventAdmin.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp, eventAdmin);
+        UserImpl user = new UserImpl(NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.deleteByName(userAdmin, NAME1)).andReturn(user);
+        EasyMock.expect(sp.deleteByName(userAdmin, NAME1)).andReturn(null);
+        eventAdmin.postEvent(EasyMock.isA(Event.class));
+        //
+        EasyMock.replay(sp, eventAdmin);
+        //
+        Assert.assertTrue(userAdmin.removeRole(NAME1));
+        Assert.assertFalse(userAdmin.removeRole(NAME1));
+        //
+        EasyMock.verify(sp, eventAdmin);
+    }
+
+    @Test
+    public void getRoleNotFoundRemembered() throws StorageException {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EventAdmin eventAdmin = EasyMock.createMock(EventAdmin.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp, eventAdmin);
+        UserImpl user = new UserImpl(NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getRole(userAdmin, NAME1)).andReturn(null);
+        EasyMock.expect(sp.getRole(userAdmin, NAME1)).andReturn(user);
+        eventAdmin.postEvent(EasyMock.isA(Event.class));
+        EasyMock.replay(sp, eventAdmin);
+        //
+        Assert.assertNull("Role found", userAdmin.getRole(NAME1));
+        Assert.assertNull("Role found", userAdmin.getRole(NAME1));
+        // creating the role drops the entry
+        userAdmin.fireEvent(UserAdminEvent.ROLE_CREATED, user);
+        Assert.assertNotNull("Role not found", userAdmin.getRole(NAME1));
+        //
+        EasyMock.verify(sp, eventAdmin);
+    }
+
     @Test
     public void getRolesNullFilter() throws StorageException, InvalidSyntaxException {
         StorageProvider sp = EasyMock.createMock(StorageProvider.class);
@@ -353,6 +442,90 @@ public class UserAdminImplTest {
         EasyMock.verify(sp, log);
     }
 
+    @Test
+    public void getRolesPageEmulated() throws StorageException, InvalidSyntaxException {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        ArrayList<Role> roles = new ArrayList<Role>();
+        roles.add(new UserImpl("c", userAdmin, null, null));
+        roles.add(new UserImpl("a", userAdmin, null, null));
+        roles.add(new UserImpl("b", userAdmin, null, null));
+        EasyMock.expect(sp.findRoles(userAdmin, null)).andReturn(roles).times(2);
+        EasyMock.replay(sp);
+        // providers without paging support are paged in name order
+        RolePage page = userAdmin.getRoles(null, null, 2);
+        Assert.assertEquals("Mismatching page size", 2, page.getRoles().size());
+        Assert.assertEquals("Mismatching role", "a", page.getRoles().get(0).getName());
+        Assert.assertTrue("No more roles", page.hasMore());
+        page = userAdmin.getRoles(null, page.getContinuation(), 2);
+        Assert.assertEquals("Mismatching page size", 1, page.getRoles().size());
+        Assert.assertEquals("Mismatching role", "c", page.getRoles().get(0).getName());
+        Assert.assertFalse("More roles", page.hasMore());
+        EasyMock.verify(sp);
+    }
+
+    @Test
+    public void iterateRolesPaged() throws StorageException, InvalidSyntaxException {
+        PagedStorageProvider sp = EasyMock.createMock(PagedStorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        ArrayList<Role> roles = new ArrayList<Role>();
+        roles.add(new UserImpl("a", userAdmin, null, null));
+        EasyMock.expect(sp.findRoles(userAdmin, null, null, 1)).andReturn(new RolePage(roles, "token1"));
+        EasyMock.expect(sp.findRoles(userAdmin, null, "token1", 1)).andReturn(new RolePage(new ArrayList<Role>(), "token2"));
+        EasyMock.expect(sp.findRoles(userAdmin, null, "token2", 1)).andReturn(new RolePage(roles, null));
+        EasyMock.replay(sp);
+        Iterator<Role> iterator = userAdmin.iterateRoles(null, 1);
+        Assert.assertEquals("Mismatching role", "a", iterator.next().getName());
+        // empty pages are skipped
+        Assert.assertTrue("No more roles", iterator.hasNext());
+        Assert.assertEquals("Mismatching role", "a", iterator.next().getName());
+        Assert.assertFalse("More roles", iterator.hasNext());
+        EasyMock.verify(sp);
+    }
+
+    @Test
+    public void getMemberNamesEmulated() throws StorageException {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        GroupImpl group = new GroupImpl(NAME1, userAdmin, null, null);
+        ArrayList<Role> members = new ArrayList<Role>();
+        members.add(new UserImpl("a", userAdmin, null, null));
+        members.add(new UserImpl("b", userAdmin, null, null));
+        EasyMock.expect(sp.getMembers(userAdmin, group)).andReturn(members).times(2);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group)).andReturn(null).times(2);
+        EasyMock.replay(sp);
+        // providers without name support are asked for the member roles
+        Assert.assertEquals("Mismatching members", Arrays.asList("a", "b"), userAdmin.getMemberNames(group));
+        Assert.assertTrue("Unexpected members", userAdmin.getRequiredMemberNames(group).isEmpty());
+        Assert.assertEquals("Mismatching member count", 2, userAdmin.getMemberCount(group));
+        EasyMock.verify(sp);
+    }
+
+    @Test
+    public void getMemberNamesFromProvider() throws StorageException {
+        MembershipStorageProvider sp = EasyMock.createMock(MembershipStorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        GroupImpl group = new GroupImpl(NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getMemberNames(group)).andReturn(Arrays.asList("a"));
+        EasyMock.expect(sp.getRequiredMemberNames(group)).andReturn(Arrays.asList("b"));
+        EasyMock.expect(sp.getMemberCount(group)).andReturn(2);
+        EasyMock.replay(sp);
+        Assert.assertEquals("Mismatching members", Arrays.asList("a"), userAdmin.getMemberNames(group));
+        Assert.assertEquals("Mismatching members", Arrays.asList("b"), userAdmin.getRequiredMemberNames(group));
+        Assert.assertEquals("Mismatching member count", 2, userAdmin.getMemberCount(group));
+        EasyMock.verify(sp);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getMemberNamesStorageException() throws StorageException {
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        PaxUserAdmin userAdmin = createUserAdmin(sp);
+        GroupImpl group = new GroupImpl(NAME1, userAdmin, null, null);
+        EasyMock.expect(sp.getMembers(userAdmin, group)).andThrow(new StorageException("failed"));
+        EasyMock.replay(sp);
+        userAdmin.getMemberNames(group);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void getRoleNullName() {
         PaxUserAdmin userAdmin = createUserAdmin();
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
+
+/**
+ * Measures how the hashing of credentials scales with the number of threads.
+ * Not run by the build, the result depends on the machine; run the main
+ * method on an otherwise idle machine.
+ */
+public final class EncryptorContextBenchmark {
+
+    private static final int    HASHES_PER_THREAD = 20000;
+
+    private static final byte[] KEY               = UserAdminTools.stringToBytes("password");
+
+    private static final byte[] VALUE             = UserAdminTools.stringToBytes("secret");
+
+    private EncryptorContextBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            Optionally the maximum number of threads, 4 by default.
+     */
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final EncryptorContext context = new EncryptorContext(new HashMap<String, Object>());
+        final byte[] salt = context.generateRandomSalt();
+        // warm up, so the first measurement is not dominated by compilation
+        for (int j = 0; j < HASHES_PER_THREAD; j++) {
+            context.hashValues(KEY, salt, VALUE);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Object>> results = new ArrayList<Future<Object>>();
+                long start = System.nanoTime();
+                for (int i = 0; i < threads; i++) {
+                    results.add(executor.submit(new Callable<Object>() {
+
+                        @Override
+                        public Object call() {
+                            Object last = null;
+                            for (int j = 0; j < HASHES_PER_THREAD; j++) {
+                                last = context.hashValues(KEY, salt, VALUE);
+                            }
+                            return last;
+                        }
+                    }));
+                }
+                for (Future<Object> result : results) {
+                    result.get();
+                }
+                long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+                System.out.println(threads + " thread(s): " + threads * HASHES_PER_THREAD * 1000L / elapsed + " hashes/s");
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
+
+/**
+ * Testing the EncryptorContext class.
+ */
+public class EncryptorContextTest {
+
+    private static final int    THREADS           = 4;
+
+    private static final int    HASHES_PER_THREAD = 2000;
+
+    private static final byte[] KEY               = UserAdminTools.stringToBytes("password");
+
+    private static final byte[] VALUE             = UserAdminTools.stringToBytes("secret");
+
+    private EncryptorContext    context;
+
+    @Before
+    public void initData() throws Exception {
+        context = new EncryptorContext(new HashMap<String, Object>());
+    }
+
+    @Test
+    public void paramsRoundTrip() throws Exception {
+        String value = context.toStringValue();
+        Assert.assertEquals("Mismatching parameters", value, EncryptorContext.fromParams(value.split("##")).toStringValue());
+        Assert.assertNull("Unexpected cipher", context.getCipher(0));
+    }
+
+    @Test
+    public void saltsDiffer() {
+        byte[] salt = context.generateRandomSalt();
+        Assert.assertEquals("Mismatching salt length", 32, salt.length);
+        Assert.assertFalse("Salt repeated", Arrays.equals(salt, context.generateRandomSalt()));
+    }
+
+    /**
+     * Hashes concurrently, checking each result against the single threaded
+     * one. See EncryptorContextBenchmark for the throughput.
+     */
+    @Test
+    public void concurrentHashing() throws Exception {
+        final byte[] salt = context.generateRandomSalt();
+        final byte[] expected = context.hashValues(KEY, salt, VALUE);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() {
+                        boolean ok = true;
+                        for (int j = 0; j < HASHES_PER_THREAD; j++) {
+                            ok &= Arrays.equals(expected, context.hashValues(KEY, salt, VALUE));
+                        }
+                        return ok;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue("Mismatching hash", result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+
+/**
+ * Testing the PaxUserAdminDecryptor class.
+ */
+public class PaxUserAdminDecryptorTest {
+
+    private static final String KEY   = "password";
+
+    private static final String VALUE = "secret";
+
+    private static PaxUserAdminEncryptedValue encrypt(Map<String, Object> properties) throws Exception {
+        return new PaxUserAdminEncryptor(new EncryptorContext(properties)).encrypt(KEY, VALUE);
+    }
+
+    @Test
+    public void verify() throws Exception {
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        PaxUserAdminEncryptedValue value = encrypt(new HashMap<String, Object>());
+        byte[] salt = value.getSalt();
+        byte[] parameter = value.getAlgorithmParameter();
+        Assert.assertTrue("Value not verified", decryptor.verify(KEY, VALUE, value.getVerificationBytes(), salt, parameter));
+        Assert.assertTrue("Value not verified", decryptor.verify(KEY, VALUE.getBytes("UTF-8"), value.getVerificationBytes(), salt, parameter));
+        Assert.assertFalse("Wrong value verified", decryptor.verify(KEY, VALUE + "x", value.getVerificationBytes(), salt, parameter));
+        Assert.assertFalse("Wrong key verified", decryptor.verify(KEY + "x", VALUE, value.getVerificationBytes(), salt, parameter));
+    }
+
+    @Test
+    public void contextsCached() throws Exception {
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        byte[] parameter1 = encrypt(properties).getAlgorithmParameter();
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM, "SHA-256");
+        byte[] parameter2 = encrypt(properties).getAlgorithmParameter();
+        //
+        EncryptorContext context1 = decryptor.getContext(parameter1);
+        Assert.assertSame("Context not cached", context1, decryptor.getContext(parameter1.clone()));
+        Assert.assertNotSame("Context of other parameter", context1, decryptor.getContext(parameter2));
+        // the cache key must not change with the array passed in
+        parameter1[0] = 'x';
+        Assert.assertEquals("Cached context changed", "MD5", context1.toStringValue().split("##")[0]);
+        Assert.assertNotNull("Context lost", decryptor.getContext(encrypt(new HashMap<String, Object>()).getAlgorithmParameter()));
+    }
+}